@@ -0,0 +1,70 @@
+package com.birdsenger.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-message work that doesn't touch the network: finding every member's sessions
+ * for a group message, and the rate limit check in front of each event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Group {
+        @Param({"2", "50", "500"})
+        public int members;
+
+        final SessionRegistry sessions = new SessionRegistry();
+        int[] memberIds;
+
+        @Setup
+        public void setup() {
+            // 10k users online, every third one on two devices
+            for (int userId = 1; userId <= 10_000; userId++) {
+                sessions.register(userId, UUID.randomUUID());
+                if (userId % 3 == 0) {
+                    sessions.register(userId, UUID.randomUUID());
+                }
+            }
+            memberIds = new int[members];
+            for (int i = 0; i < members; i++) {
+                memberIds[i] = 1 + i * 17 % 12_000; // some of them offline
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Limits {
+        // Never actually limits: measures the check, not the rejection
+        final RateLimiter rateLimiter = new RateLimiter("send_message=1000000000:1000000");
+    }
+
+    @Benchmark
+    public void fanOut(Group group, Blackhole bh) {
+        for (int userId : group.memberIds) {
+            if (group.sessions.isOnline(userId)) {
+                for (UUID sid : group.sessions.sessions(userId)) {
+                    bh.consume(sid);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(1024)
+    public long rateLimit(Limits limits) {
+        long waited = 0;
+        for (int userId = 0; userId < 1024; userId++) {
+            waited += limits.rateLimiter.tryAcquire("send_message", userId);
+        }
+        return waited;
+    }
+}
@@ -0,0 +1,79 @@
+package com.birdsenger.server;
+
+import com.corundumstudio.socketio.protocol.JacksonJsonSupport;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.Unpooled;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event payloads on both ends: the server's Map -> JSON (Jackson, as netty-socketio
+ * encodes it) and back, and the client's Map -> JSONObject -> text and parsing a
+ * received new_message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadBenchmark {
+
+    private final JacksonJsonSupport jsonSupport = new JacksonJsonSupport();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private Map<String, Object> message;
+    private byte[] encodedMessage;
+    private String clientText;
+    private ByteBuf buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        // Same shape as SocketServer.deliverMessage
+        message = new HashMap<>();
+        message.put("id", 123456);
+        message.put("conversationId", 4321);
+        message.put("senderId", 42);
+        message.put("content", "Are we still on for dinner tonight? I can pick you up at seven.");
+        message.put("messageType", "text");
+        message.put("timestamp", 1760000000000L);
+        message.put("senderName", "Jane Doe");
+        message.put("senderAvatarRef", "a1b2c3d4");
+        message.put("unreadCount", 3);
+
+        encodedMessage = mapper.writeValueAsBytes(message);
+        clientText = new JSONObject(message).toString();
+        buffer = Unpooled.buffer(1024);
+    }
+
+    @Benchmark
+    public ByteBuf serverEncodeEvent() throws Exception {
+        buffer.clear();
+        jsonSupport.writeValue(new ByteBufOutputStream(buffer), List.of("new_message", message));
+        return buffer;
+    }
+
+    @Benchmark
+    public Map<?, ?> serverDecodePayload() throws Exception {
+        return mapper.readValue(encodedMessage, Map.class);
+    }
+
+    @Benchmark
+    public String clientEncodeEvent() {
+        return new JSONObject(message).toString();
+    }
+
+    @Benchmark
+    public int clientDecodeMessage() throws Exception {
+        // What MessagesController.showPushedMessage reads
+        JSONObject data = new JSONObject(clientText);
+        return data.getInt("conversationId") + data.getInt("senderId") + data.optString("content", "").length()
+                + data.optInt("unreadCount", 0);
+    }
+}
@@ -0,0 +1,74 @@
+package com.birdsenger.services;
+
+import com.birdsenger.models.User;
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login costs: the password check at the work factor AuthService hashes with, and
+ * turning a users row into a User.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AuthBenchmark {
+
+    private String hash;
+    private ResultSet row;
+
+    @Setup
+    public void setup() {
+        hash = BCrypt.hashpw("correct horse battery staple", BCrypt.gensalt(AuthService.BCRYPT_COST));
+
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("id", 42);
+        columns.put("first_name", "Jane");
+        columns.put("last_name", "Doe");
+        columns.put("email", "jane@example.com");
+        columns.put("username", "jane");
+        columns.put("password_hash", hash);
+        columns.put("security_question", "First pet?");
+        columns.put("security_answer", "rex");
+        columns.put("profile_picture", null);
+        columns.put("balance", 1234.56);
+        columns.put("is_online", true);
+        columns.put("last_seen", new Timestamp(1760000000000L));
+        columns.put("created_at", new Timestamp(1700000000000L));
+        row = fakeRow(columns);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public boolean checkPassword() {
+        return BCrypt.checkpw("correct horse battery staple", hash);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public User mapUser() throws Exception {
+        return AuthService.mapResultSetToUser(row);
+    }
+
+    // A one-row ResultSet answering getX(column) from a map, like the driver's after next()
+    private static ResultSet fakeRow(Map<String, Object> columns) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    Object value = columns.get((String) args[0]);
+                    return switch (method.getName()) {
+                        case "getInt" -> value != null ? (Integer) value : 0;
+                        case "getDouble" -> value != null ? (Double) value : 0.0;
+                        case "getBoolean" -> value != null && (Boolean) value;
+                        default -> value;
+                    };
+                });
+    }
+}
@@ -0,0 +1,71 @@
+package com.birdsenger.utils;
+
+import javafx.application.Platform;
+import javafx.scene.image.Image;
+import org.openjdk.jmh.annotations.*;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Profile pictures are stored as base64 data URLs; every avatar in the chat list
+ * is decoded from one. Measures the base64 decode alone and the whole loadImage.
+ * loadImage needs the JavaFX toolkit, so that one only runs where it can start.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProfilePictureBenchmark {
+
+    @Param({"128", "512"})
+    public int size;
+
+    private String dataUrl;
+
+    @Setup
+    public void setup() throws Exception {
+        // A noisy picture compresses about as badly as a photo
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillOval(random.nextInt(size), random.nextInt(size), 4 + random.nextInt(size / 4), 4 + random.nextInt(size / 4));
+        }
+        g.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        dataUrl = "data:image/png;base64," + Base64.getEncoder().encodeToString(png.toByteArray());
+    }
+
+    @Benchmark
+    public byte[] decodeBase64() {
+        return ProfilePictureUtil.decodeBase64Image(dataUrl);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Toolkit {
+        @Setup
+        public void start() {
+            try {
+                Platform.startup(() -> {});
+            } catch (IllegalStateException alreadyStarted) {
+                // Fine
+            }
+        }
+    }
+
+    @Benchmark
+    public Image loadImage(Toolkit toolkit) {
+        return ProfilePictureUtil.loadImage(dataUrl);
+    }
+}
@@ -1,12 +1,16 @@
 package com.birdsenger;
 
+import com.birdsenger.utils.MessageTrace;
 import javafx.application.Application;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class BirdSengerApp extends Application {
+    private static final Logger log = LoggerFactory.getLogger(BirdSengerApp.class);
 
     public static final double WINDOW_WIDTH = 1280;
     public static final double WINDOW_HEIGHT = 820;
@@ -29,12 +33,13 @@ public class BirdSengerApp extends Application {
             primaryStage.show();
 
         } catch (Exception e) {
-            System.err.println("❌ Failed to load login screen");
-            e.printStackTrace();
+            log.error("failed to load login screen", e);
         }
     }
 
     public static void main(String[] args) {
+        // Message traces for TraceAnalyzer, see MessageTrace
+        MessageTrace.recordTo(System.getenv("BIRDSENGER_TRACE_FILE"));
         launch(args);
     }
 }
\ No newline at end of file
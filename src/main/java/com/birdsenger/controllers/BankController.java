@@ -5,6 +5,8 @@ import com.birdsenger.utils.SessionManager;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
 import javafx.scene.layout.VBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -12,6 +14,7 @@ import java.sql.ResultSet;
 import java.text.SimpleDateFormat;
 
 public class BankController {
+    private static final Logger log = LoggerFactory.getLogger(BankController.class);
 
     @FXML private Label totalBalanceLabel;
     @FXML private VBox accountsContainer;
@@ -46,7 +49,7 @@ public class BankController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load total balance failed", e);
         }
     }
 
@@ -76,7 +79,7 @@ public class BankController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load bank accounts failed", e);
         }
     }
 
@@ -4,6 +4,8 @@ import com.birdsenger.utils.DatabaseManager;
 import com.birdsenger.utils.SessionManager;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -12,6 +14,7 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class DashboardController {
+    private static final Logger log = LoggerFactory.getLogger(DashboardController.class);
 
     @FXML private Label welcomeLabel;
     @FXML private Label dateLabel;
@@ -44,17 +47,14 @@ public class DashboardController {
     }
 
     private void loadUnreadMessages() {
-        String sql = "SELECT COUNT(DISTINCT m.conversation_id) as unread_count " +
-                "FROM messages m " +
-                "JOIN conversation_members cm ON m.conversation_id = cm.conversation_id " +
-                "WHERE cm.user_id = ? AND m.sender_id != ? AND m.is_read = false";
+        // Conversations with unread messages, from the per-member counters
+        String sql = "SELECT COUNT(*) as unread_count FROM conversation_members " +
+                "WHERE user_id = ? AND unread_count > 0";
 
         try (Connection conn = DatabaseManager.getInstance().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            int userId = SessionManager.getInstance().getCurrentUserId();
-            stmt.setInt(1, userId);
-            stmt.setInt(2, userId);
+            stmt.setInt(1, SessionManager.getInstance().getCurrentUserId());
 
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
@@ -63,7 +63,7 @@ public class DashboardController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load unread messages failed", e);
             unreadMessagesLabel.setText("0 unread messages");
         }
     }
@@ -83,7 +83,7 @@ public class DashboardController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load balance failed", e);
             balanceLabel.setText("Balance: $0.00");
         }
     }
@@ -122,7 +122,7 @@ public class DashboardController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load last transaction failed", e);
             lastTransactionLabel.setText("No transactions");
         }
     }
@@ -9,12 +9,15 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
 public class ForgotPasswordController {
+    private static final Logger log = LoggerFactory.getLogger(ForgotPasswordController.class);
 
     @FXML private TextField usernameField;
     @FXML private Label securityQuestionLabel;
@@ -62,7 +65,7 @@ public class ForgotPasswordController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load security question failed", e);
         }
     }
 
@@ -91,7 +94,7 @@ public class ForgotPasswordController {
                     Thread.sleep(2000);
                     javafx.application.Platform.runLater(this::handleLogin);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
                 }
             }).start();
         } else {
@@ -114,8 +117,7 @@ public class ForgotPasswordController {
             stage.setScene(scene);
             stage.setTitle(title);
         } catch (Exception e) {
-            System.err.println("❌ Failed to load: " + fxmlPath);
-            e.printStackTrace();
+            log.error("load {} failed", fxmlPath, e);
         }
     }
 
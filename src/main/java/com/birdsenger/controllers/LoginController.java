@@ -10,8 +10,11 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class LoginController {
+    private static final Logger log = LoggerFactory.getLogger(LoginController.class);
 
     @FXML private TextField usernameField;
     @FXML private PasswordField passwordField;
@@ -72,8 +75,7 @@ public class LoginController {
             stage.setScene(scene);
             stage.setTitle(title);
         } catch (Exception e) {
-            System.err.println("❌ Failed to load: " + fxmlPath);
-            e.printStackTrace();
+            log.atError().addKeyValue("fxml", fxmlPath).setCause(e).log("failed to load screen");
         }
     }
 
@@ -13,8 +13,11 @@ import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.StackPane;
 import javafx.scene.shape.Circle;
 import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class MainController {
+    private static final Logger log = LoggerFactory.getLogger(MainController.class);
 
     @FXML private BorderPane mainContainer;
     @FXML private Label nameLabel;
@@ -136,7 +139,7 @@ public class MainController {
                     com.birdsenger.BirdSengerApp.WINDOW_HEIGHT));
             stage.setTitle("BirdSenger - Sign In");
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("logout failed", e);
         }
     }
 
@@ -150,8 +153,7 @@ public class MainController {
             Parent view = loader.load();
             contentArea.getChildren().setAll(view);
         } catch (Exception e) {
-            System.err.println("❌ Failed to load view: " + fxmlPath);
-            e.printStackTrace();
+            log.error("load view {} failed", fxmlPath, e);
 
             // Show error in content area
             Label errorLabel = new Label("Failed to load view: " + fxmlPath);
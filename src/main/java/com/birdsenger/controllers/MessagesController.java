@@ -1,6 +1,7 @@
 package com.birdsenger.controllers;
 
 import com.birdsenger.utils.DatabaseManager;
+import com.birdsenger.utils.MessageTrace;
 import com.birdsenger.utils.SessionManager;
 import com.birdsenger.utils.SocketClient;
 import javafx.application.Platform;
@@ -11,15 +12,38 @@ import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.shape.Circle;
+import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import com.birdsenger.utils.ProfilePictureUtil;
 import javafx.scene.image.ImageView;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class MessagesController {
+    private static final Logger log = LoggerFactory.getLogger(MessagesController.class);
+
+    // Messages per history page; (timestamp, id) orders messages sent in the same instant
+    private static final int MESSAGE_PAGE_SIZE = 50;
+    private static final String SELECT_LATEST_MESSAGES =
+            "SELECT m.id, m.sender_id, m.content, m.message_type, m.timestamp, " +
+            "u.first_name, u.last_name, u.profile_picture FROM messages m " +
+            "JOIN users u ON m.sender_id = u.id " +
+            "WHERE m.conversation_id = ? ORDER BY m.timestamp DESC, m.id DESC LIMIT ?";
+    private static final String SELECT_OLDER_MESSAGES =
+            "SELECT m.id, m.sender_id, m.content, m.message_type, m.timestamp, " +
+            "u.first_name, u.last_name, u.profile_picture FROM messages m " +
+            "JOIN users u ON m.sender_id = u.id " +
+            "WHERE m.conversation_id = ? AND (m.timestamp, m.id) < (?, ?) " +
+            "ORDER BY m.timestamp DESC, m.id DESC LIMIT ?";
+    // Only archived months that end after the chat was created can hold its messages
+    private static final String SELECT_ARCHIVED_SINCE_CREATED =
+            "SELECT EXISTS (SELECT 1 FROM message_archives a JOIN conversations c ON c.id = ? " +
+            "WHERE a.range_to > c.created_at)";
 
     @FXML private VBox chatList;
     @FXML private StackPane contentPane;
@@ -33,6 +57,21 @@ public class MessagesController {
     private TextField messageInput;
     private ScrollPane chatScrollPane;
 
+    // Other participant of each 1-on-1 chat in the list, for presence updates
+    private final Map<Integer, Integer> otherUserByConversation = new HashMap<>();
+
+    // State of the open chat, so pushed messages can be appended without queries
+    private boolean currentConversationIsGroup;
+    private final Set<Integer> renderedMessageIds = new HashSet<>();
+
+    // Keyset cursor of the open chat: the oldest message shown, null until the first page is in
+    private Timestamp oldestLoadedTime;
+    private int oldestLoadedId;
+    private boolean hasOlderMessages;
+    private boolean loadingOlderMessages;
+    // Past the end of the database: older months may still be in the server's archive
+    private boolean archivedMessages;
+
     @FXML
     public void initialize() {
         SocketClient.getInstance().setMessagesController(this);
@@ -82,34 +121,49 @@ public class MessagesController {
     }
 
     private void loadConversations() {
-        String sql = "SELECT DISTINCT c.id, c.name, c.is_group, " +
-                "(SELECT content FROM messages WHERE conversation_id = c.id ORDER BY timestamp DESC LIMIT 1) as last_msg, " +
-                "(SELECT timestamp FROM messages WHERE conversation_id = c.id ORDER BY timestamp DESC LIMIT 1) as last_msg_time, " +
-                "(SELECT COUNT(*) FROM messages WHERE conversation_id = c.id AND sender_id != ? AND is_read = false) as unread_count " +
-                "FROM conversations c " +
-                "JOIN conversation_members cm ON c.id = cm.conversation_id " +
+        // One query: the member rows give the unread counts, conversation_summaries the
+        // latest message, and for 1-on-1 chats the other member's row their name and picture
+        String sql = "SELECT c.id, c.name, c.is_group, cm.unread_count, s.last_preview, s.last_message_at, " +
+                "o.user_id AS other_user_id, u.first_name, u.last_name, u.profile_picture " +
+                "FROM conversation_members cm " +
+                "JOIN conversations c ON c.id = cm.conversation_id " +
+                "LEFT JOIN conversation_summaries s ON s.conversation_id = cm.conversation_id " +
+                "LEFT JOIN conversation_members o ON NOT c.is_group AND o.conversation_id = cm.conversation_id " +
+                "AND o.user_id <> cm.user_id " +
+                "LEFT JOIN users u ON u.id = o.user_id " +
                 "WHERE cm.user_id = ? " +
-                "ORDER BY last_msg_time DESC NULLS LAST";
+                "ORDER BY s.last_message_at DESC NULLS LAST, c.id DESC";
 
         try (Connection conn = DatabaseManager.getInstance().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            int currentUserId = SessionManager.getInstance().getCurrentUserId();
-            stmt.setInt(1, currentUserId);
-            stmt.setInt(2, currentUserId);
+            stmt.setInt(1, SessionManager.getInstance().getCurrentUserId());
             ResultSet rs = stmt.executeQuery();
 
             chatList.getChildren().clear();
+            otherUserByConversation.clear();
 
             while (rs.next()) {
                 int convId = rs.getInt("id");
                 boolean isGroup = rs.getBoolean("is_group");
-                String name = isGroup ? rs.getString("name") : getOtherUserName(convId);
-                String lastMsg = rs.getString("last_msg");
+                String lastMsg = rs.getString("last_preview");
                 int unreadCount = rs.getInt("unread_count");
-                boolean online = !isGroup && isUserOnline(getOtherUserId(convId));
+                String name;
+                String profilePic = null;
+                boolean online = false;
+                if (isGroup) {
+                    name = rs.getString("name");
+                } else {
+                    int otherUserId = rs.getInt("other_user_id");
+                    if (rs.wasNull()) otherUserId = -1;
+                    name = otherUserId != -1 ? rs.getString("first_name") + " " + rs.getString("last_name") : "Unknown";
+                    profilePic = rs.getString("profile_picture");
+                    otherUserByConversation.put(convId, otherUserId);
+                    online = isUserOnline(otherUserId);
+                }
 
-                HBox chatItem = createChatItem(convId, name, lastMsg != null ? lastMsg : "", online, unreadCount);
+                HBox chatItem = createChatItem(convId, isGroup, otherUserByConversation.getOrDefault(convId, -1),
+                        name, lastMsg != null ? lastMsg : "", online, unreadCount, profilePic);
                 chatList.getChildren().add(chatItem);
             }
 
@@ -121,11 +175,18 @@ public class MessagesController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load conversations failed", e);
         }
     }
 
-    private HBox createChatItem(int convId, String name, String lastMsg, boolean online, int unreadCount) {
+    private HBox createChatItem(int convId, boolean isGroup, int otherUserId, String name, String lastMsg,
+                                boolean online, int unreadCount) {
+        return createChatItem(convId, isGroup, otherUserId, name, lastMsg, online, unreadCount,
+                isGroup ? null : ProfilePictureUtil.getProfilePicture(otherUserId));
+    }
+
+    private HBox createChatItem(int convId, boolean isGroup, int otherUserId, String name, String lastMsg,
+                                boolean online, int unreadCount, String profilePic) {
         HBox item = new HBox(15);
         item.setAlignment(Pos.CENTER_LEFT);
         item.setPadding(new Insets(15));
@@ -138,11 +199,7 @@ public class MessagesController {
         StackPane avatarPane = new StackPane();
 
         // Get profile picture for this conversation
-        boolean isGroup = isConversationGroup(convId);
         if (!isGroup) {
-            int otherUserId = getOtherUserId(convId);
-            String profilePic = ProfilePictureUtil.getProfilePicture(otherUserId);
-
             if (profilePic != null && !profilePic.isEmpty()) {
                 ImageView avatar = ProfilePictureUtil.createCircularImageView(profilePic, 25);
                 avatarPane.getChildren().add(avatar);
@@ -153,12 +210,7 @@ public class MessagesController {
             }
 
             if (online) {
-                Circle indicator = new Circle(8);
-                indicator.setFill(Color.web("#10B981"));
-                indicator.setStroke(Color.WHITE);
-                indicator.setStrokeWidth(2);
-                StackPane.setAlignment(indicator, Pos.BOTTOM_RIGHT);
-                avatarPane.getChildren().add(indicator);
+                avatarPane.getChildren().add(createChatOnlineIndicator());
             }
         } else {
             Circle avatar = new Circle(25);
@@ -204,6 +256,16 @@ public class MessagesController {
     }
 
 
+    private Circle createChatOnlineIndicator() {
+        Circle indicator = new Circle(8);
+        indicator.setFill(Color.web("#10B981"));
+        indicator.setStroke(Color.WHITE);
+        indicator.setStrokeWidth(2);
+        indicator.getStyleClass().add("online-indicator");
+        StackPane.setAlignment(indicator, Pos.BOTTOM_RIGHT);
+        return indicator;
+    }
+
     private void openChat(int conversationId) {
         currentConversationId = conversationId;
         contentPane.getChildren().clear();
@@ -213,6 +275,7 @@ public class MessagesController {
 
         // Check if it's a group chat
         boolean isGroup = isConversationGroup(conversationId);
+        currentConversationIsGroup = isGroup;
 
         // Top bar
         HBox topBar = new HBox(15);
@@ -251,6 +314,11 @@ public class MessagesController {
         chatMessagesArea.setPadding(new Insets(20));
         chatMessagesArea.setStyle("-fx-background-color: #F9FAFB;");
         chatScrollPane.setContent(chatMessagesArea);
+        chatScrollPane.vvalueProperty().addListener((obs, oldValue, newValue) -> {
+            if (newValue.doubleValue() <= 0 && oldValue.doubleValue() > 0) {
+                loadOlderMessages();
+            }
+        });
 
         loadMessages(conversationId);
 
@@ -281,37 +349,136 @@ public class MessagesController {
         Platform.runLater(() -> messageInput.requestFocus());
     }
 
+    /**
+     * Show the newest page of a conversation; older pages are loaded as the user
+     * scrolls up, so opening a chat costs one small query however long it is
+     */
     private void loadMessages(int convId) {
-        String sql = "SELECT m.*, u.first_name, u.last_name, u.profile_picture FROM messages m " +
-                "JOIN users u ON m.sender_id = u.id " +
-                "WHERE m.conversation_id = ? ORDER BY m.timestamp ASC";
+        chatMessagesArea.getChildren().clear();
+        renderedMessageIds.clear();
+        oldestLoadedTime = null;
+        oldestLoadedId = 0;
+        hasOlderMessages = false;
+        archivedMessages = false;
+
+        chatMessagesArea.getChildren().addAll(loadMessagePage(convId));
+        Platform.runLater(() -> chatScrollPane.setVvalue(1.0));
+        if (chatMessagesArea.getChildren().isEmpty()) {
+            loadOlderMessages();
+        }
+    }
 
-        try (Connection conn = DatabaseManager.getInstance().getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
+    // Scrolled to the top: put the next older page above what is shown
+    private void loadOlderMessages() {
+        if (loadingOlderMessages || currentConversationId == -1) return;
+        if (!hasOlderMessages) {
+            if (archivedMessages) loadArchivedMessages();
+            return;
+        }
+        loadingOlderMessages = true;
+        try {
+            prependMessages(loadMessagePage(currentConversationId));
+        } finally {
+            loadingOlderMessages = false;
+        }
+    }
 
-            stmt.setInt(1, convId);
-            ResultSet rs = stmt.executeQuery();
+    // Only the server reads the archive, so these pages come over the socket
+    private void loadArchivedMessages() {
+        if (!SocketClient.getInstance().isConnected()) return;
+        int convId = currentConversationId;
+        int myId = SessionManager.getInstance().getCurrentUserId();
+        loadingOlderMessages = true;
+        SocketClient.getInstance().loadHistory(myId, convId, oldestLoadedId, result -> Platform.runLater(() -> {
+            loadingOlderMessages = false;
+            if (convId != currentConversationId || !result.optBoolean("success", false)) return;
+            try {
+                // Newest first, like the database pages
+                JSONArray messages = result.getJSONArray("messages");
+                List<HBox> page = new ArrayList<>();
+                for (int i = 0; i < messages.length(); i++) {
+                    JSONObject message = messages.getJSONObject(i);
+                    oldestLoadedId = message.getInt("id");
+                    HBox bubble = messageBubble(message, message.getInt("senderId") == myId);
+                    if (bubble != null) page.add(bubble);
+                }
+                archivedMessages = result.optBoolean("hasMore", false);
+                Collections.reverse(page);
+                prependMessages(page);
+            } catch (JSONException e) {
+                log.error("load archived messages failed", e);
+            }
+        }));
+    }
 
-            chatMessagesArea.getChildren().clear();
-            int myId = SessionManager.getInstance().getCurrentUserId();
-            boolean isGroup = isConversationGroup(convId);
+    // Put older bubbles above what is shown, keeping the view where it was
+    private void prependMessages(List<HBox> page) {
+        if (page.isEmpty()) return;
+        double oldHeight = chatMessagesArea.getHeight();
+        chatMessagesArea.getChildren().addAll(0, page);
+
+        chatScrollPane.applyCss();
+        chatScrollPane.layout();
+        double scrollable = chatMessagesArea.getHeight() - chatScrollPane.getViewportBounds().getHeight();
+        if (scrollable > 0) {
+            chatScrollPane.setVvalue((chatMessagesArea.getHeight() - oldHeight) / scrollable);
+        }
+    }
 
-            while (rs.next()) {
-                int senderId = rs.getInt("sender_id");
-                String content = rs.getString("content");
-                String type = rs.getString("message_type");
-                Timestamp time = rs.getTimestamp("timestamp");
-                String senderName = rs.getString("first_name") + " " + rs.getString("last_name");
-                String profilePic = rs.getString("profile_picture");
+    /**
+     * Bubbles for the page of messages just older than the cursor (the newest page
+     * if there is none yet), oldest first, and move the cursor past them
+     */
+    private List<HBox> loadMessagePage(int convId) {
+        List<HBox> bubbles = new ArrayList<>();
+        boolean first = oldestLoadedTime == null;
+        try (Connection conn = DatabaseManager.getInstance().getConnection();
+             PreparedStatement stmt = conn.prepareStatement(first ? SELECT_LATEST_MESSAGES : SELECT_OLDER_MESSAGES)) {
 
-                HBox msgBox = createMessageBubble(content, senderId == myId, type, time, isGroup ? senderName : null, profilePic);
-                chatMessagesArea.getChildren().add(msgBox);
+            stmt.setInt(1, convId);
+            if (first) {
+                stmt.setInt(2, MESSAGE_PAGE_SIZE + 1);
+            } else {
+                stmt.setTimestamp(2, oldestLoadedTime);
+                stmt.setInt(3, oldestLoadedId);
+                stmt.setInt(4, MESSAGE_PAGE_SIZE + 1);
             }
 
-            Platform.runLater(() -> chatScrollPane.setVvalue(1.0));
+            int myId = SessionManager.getInstance().getCurrentUserId();
+            int rows = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                // Newest first; one row past the page tells us whether there is more
+                while (rs.next()) {
+                    if (++rows > MESSAGE_PAGE_SIZE) break;
+                    int id = rs.getInt("id");
+                    oldestLoadedTime = rs.getTimestamp("timestamp");
+                    oldestLoadedId = id;
+                    if (!renderedMessageIds.add(id)) continue;
+
+                    int senderId = rs.getInt("sender_id");
+                    String senderName = rs.getString("first_name") + " " + rs.getString("last_name");
+                    bubbles.add(createMessageBubble(rs.getString("content"), senderId == myId,
+                            rs.getString("message_type"), oldestLoadedTime,
+                            currentConversationIsGroup ? senderName : null, rs.getString("profile_picture")));
+                }
+            }
+            hasOlderMessages = rows > MESSAGE_PAGE_SIZE;
+            Collections.reverse(bubbles);
+            // Asked once, when the database runs out; new and short chats never go to the server
+            archivedMessages = !hasOlderMessages && hasArchivedMonths(conn, convId);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load messages failed", e);
+        }
+        return bubbles;
+    }
+
+    private boolean hasArchivedMonths(Connection conn, int convId) throws SQLException {
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_ARCHIVED_SINCE_CREATED)) {
+            stmt.setInt(1, convId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() && rs.getBoolean(1);
+            }
         }
     }
 
@@ -370,26 +537,28 @@ public class MessagesController {
         String content = messageInput.getText().trim();
         if (content.isEmpty() || currentConversationId == -1) return;
 
-        SocketClient.getInstance().sendMessage(
-                currentConversationId,
-                SessionManager.getInstance().getCurrentUserId(),
-                content,
-                "text"
-        );
-
+        int convId = currentConversationId;
         messageInput.clear();
 
-        // Immediately reload messages to show your sent message
-        // The socket event will update it for others
-        Platform.runLater(() -> {
-            try {
-                Thread.sleep(100); // Small delay to let server process
-                loadMessages(currentConversationId);
-                loadConversations(); // Update last message in chat list
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
+        // Append the message once the server has stored it; its own push of the
+        // same message is then skipped by id
+        SocketClient.getInstance().sendMessage(convId, SessionManager.getInstance().getCurrentUserId(), content, "text")
+                .whenComplete((message, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        if (messageInput.getText().isEmpty() && convId == currentConversationId) {
+                            messageInput.setText(content);
+                        }
+                        Alert alert = new Alert(Alert.AlertType.WARNING, "Message not sent: " + error.getMessage());
+                        alert.setHeaderText(null);
+                        alert.show();
+                        return;
+                    }
+                    try {
+                        showPushedMessage(convId, message);
+                    } catch (JSONException e) {
+                        log.error("send message failed", e);
+                    }
+                }));
     }
 
     private void showSendMoneyDialog() {
@@ -413,19 +582,16 @@ public class MessagesController {
                             SessionManager.getInstance().getCurrentUserId(),
                             receiverId,
                             amt,
-                            currentConversationId
+                            currentConversationId,
+                            result -> Platform.runLater(() -> {
+                                // On success the payment arrives as a new message
+                                if (!result.optBoolean("success", false)) {
+                                    Alert alert = new Alert(Alert.AlertType.ERROR,
+                                            result.optString("message", "Payment failed"));
+                                    alert.showAndWait();
+                                }
+                            })
                     );
-
-                    // Reload messages after a short delay to show the payment
-                    Platform.runLater(() -> {
-                        try {
-                            Thread.sleep(200); // Wait for server to process
-                            loadMessages(currentConversationId);
-                            loadConversations();
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        }
-                    });
                 }
             } catch (NumberFormatException e) {
                 Alert alert = new Alert(Alert.AlertType.ERROR, "Invalid amount");
@@ -435,46 +601,207 @@ public class MessagesController {
     }
 
     // Socket event handlers
-    public void handleNewMessage(JSONObject data) {
+    /**
+     * A message pushed by the server; the trace ends once it is on screen
+     */
+    public void handleNewMessage(JSONObject data, MessageTrace trace) {
         try {
             int convId = data.getInt("conversationId");
             Platform.runLater(() -> {
-                // Only reload messages if we're viewing this conversation
-                if (convId == currentConversationId) {
-                    loadMessages(convId);
+                try {
+                    showPushedMessage(convId, data);
+                    trace.end(data.optLong("id"));
+                } catch (Exception e) {
+                    log.error("handle new message failed", e);
                 }
-                // Always reload conversation list to update last message
-                loadConversations();
             });
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("handle new message failed", e);
+        }
+    }
+
+    private void showPushedMessage(int convId, JSONObject data) throws JSONException {
+        if (!data.has("id")) {
+            // Bare notification without the message itself
+            if (convId == currentConversationId) {
+                loadMessages(convId);
+            }
+            loadConversations();
+            return;
+        }
+
+        int myId = SessionManager.getInstance().getCurrentUserId();
+        int senderId = data.getInt("senderId");
+        String content = data.optString("content", "");
+        int unreadCount = data.optInt("unreadCount", 0);
+
+        if (convId == currentConversationId && chatMessagesArea != null) {
+            appendMessage(data, senderId == myId);
+            if (senderId != myId && unreadCount > 0) {
+                // We're looking at it, so it's read
+                SocketClient.getInstance().markRead(convId, myId);
+                unreadCount = 0;
+            }
+        }
+
+        if (!updateChatItem(convId, content, unreadCount)) {
+            // First message of a chat we don't list yet
+            loadConversations();
+        }
+    }
+
+    private void appendMessage(JSONObject data, boolean isMe) throws JSONException {
+        HBox msgBox = messageBubble(data, isMe);
+        if (msgBox == null) return;
+        // Follow the conversation only if the reader hasn't scrolled up to older messages
+        boolean follow = isMe || atBottom();
+        chatMessagesArea.getChildren().add(msgBox);
+        if (follow) {
+            // Already on the FX thread: lay out now rather than scrolling in another runLater
+            chatScrollPane.applyCss();
+            chatScrollPane.layout();
+            chatScrollPane.setVvalue(chatScrollPane.getVmax());
+        }
+    }
+
+    private boolean atBottom() {
+        return chatMessagesArea.getHeight() <= chatScrollPane.getViewportBounds().getHeight()
+                || chatScrollPane.getVvalue() >= chatScrollPane.getVmax() - 0.01;
+    }
+
+    // A bubble for a message in new_message form, or null if it is already shown
+    private HBox messageBubble(JSONObject data, boolean isMe) throws JSONException {
+        // Our own messages can arrive both from a reload and from the socket
+        if (!renderedMessageIds.add(data.getInt("id"))) return null;
+
+        int senderId = data.getInt("senderId");
+        String senderName = currentConversationIsGroup ? data.optString("senderName", null) : null;
+        String profilePic = null;
+        if (currentConversationIsGroup && !isMe) {
+            profilePic = ProfilePictureUtil.getProfilePicture(senderId, data.optString("senderAvatarRef", null));
         }
+
+        return createMessageBubble(
+                data.optString("content", ""),
+                isMe,
+                data.optString("messageType", "text"),
+                new Timestamp(data.optLong("timestamp", System.currentTimeMillis())),
+                senderName,
+                profilePic
+        );
+    }
+
+    /**
+     * Update a chat row's preview and unread badge and move it to the top.
+     * Returns false if the conversation isn't in the list.
+     */
+    private boolean updateChatItem(int convId, String lastMsg, int unreadCount) {
+        for (javafx.scene.Node node : chatList.getChildren()) {
+            if (node instanceof HBox) {
+                HBox item = (HBox) node;
+                if (item.getUserData() != null && item.getUserData().equals(convId)) {
+                    VBox textBox = (VBox) item.getChildren().get(1);
+                    Label nameLabel = (Label) textBox.getChildren().get(0);
+                    Label msgLabel = (Label) textBox.getChildren().get(1);
+                    msgLabel.setText(lastMsg.length() > 40 ? lastMsg.substring(0, 40) + "..." : lastMsg);
+
+                    if (item.getChildren().size() > 2) {
+                        item.getChildren().remove(2); // Old badge
+                    }
+                    if (unreadCount > 0) {
+                        nameLabel.setStyle("-fx-font-weight: bold; -fx-font-size: 14px; -fx-text-fill: #1F2937;");
+                        msgLabel.setStyle("-fx-text-fill: #1F2937; -fx-font-size: 12px; -fx-font-weight: bold;");
+                        Label unreadBadge = new Label(String.valueOf(unreadCount));
+                        unreadBadge.setStyle("-fx-background-color: #EC6D87; -fx-text-fill: white; " +
+                                "-fx-background-radius: 10; -fx-padding: 2 8; -fx-font-size: 11px; -fx-font-weight: bold;");
+                        item.getChildren().add(unreadBadge);
+                    } else {
+                        nameLabel.setStyle("-fx-font-weight: normal; -fx-font-size: 14px; -fx-text-fill: #1F2937;");
+                        msgLabel.setStyle("-fx-text-fill: #9CA3AF; -fx-font-size: 12px;");
+                    }
+
+                    // Most recent chat first
+                    chatList.getChildren().remove(item);
+                    chatList.getChildren().add(0, item);
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
 
     public void handleMoneyReceived(JSONObject data) {
         try {
-            int convId = data.optInt("conversationId", -1);
             Platform.runLater(() -> {
                 Alert alert = new Alert(Alert.AlertType.INFORMATION,
                         "You received $" + data.optDouble("amount", 0));
                 alert.showAndWait();
+                // The payment message itself arrives as a regular new_message
+            });
+        } catch (Exception e) {
+            log.error("handle money received failed", e);
+        }
+    }
 
-                // Reload the current conversation to show the payment message
-                if (convId == currentConversationId) {
-                    loadMessages(convId);
+    public void handlePresenceChanged(int userId, boolean online) {
+        // Flip the green dot on matching chat rows instead of reloading the list
+        for (javafx.scene.Node node : chatList.getChildren()) {
+            if (node instanceof HBox) {
+                HBox item = (HBox) node;
+                Object convId = item.getUserData();
+                if (convId != null && Integer.valueOf(userId).equals(otherUserByConversation.get(convId))
+                        && item.getChildren().get(0) instanceof StackPane) {
+                    StackPane avatarPane = (StackPane) item.getChildren().get(0);
+                    avatarPane.getChildren().removeIf(n -> n.getStyleClass().contains("online-indicator"));
+                    if (online) {
+                        avatarPane.getChildren().add(createChatOnlineIndicator());
+                    }
                 }
+            }
+        }
+    }
 
-                // Reload conversations list
-                loadConversations();
-            });
-        } catch (Exception e) {
-            e.printStackTrace();
+    public void handleRateLimited(JSONObject data) {
+        Alert alert = new Alert(Alert.AlertType.WARNING,
+                data.optString("message", "You're doing that too fast. Please wait a moment and try again."));
+        alert.setTitle("Slow down");
+        alert.setHeaderText(null);
+        alert.show();
+    }
+
+    /**
+     * Events were lost while the connection was slow: reload the chat list and the open chat
+     */
+    public void handleResync() {
+        loadConversations();
+        if (currentConversationId != -1) {
+            loadMessages(currentConversationId);
         }
     }
 
-    public void handleFriendStatusChanged(JSONObject data) {
-        Platform.runLater(this::loadConversations);
+    /**
+     * A friend request was accepted: add the new chat to the top of the list
+     */
+    public void handleConversationCreated(JSONObject data) {
+        int convId = data.optInt("conversationId", -1);
+        if (convId == -1 || hasChatItem(convId)) return;
+
+        int otherUserId = data.optInt("otherUserId", -1);
+        otherUserByConversation.put(convId, otherUserId);
+        // Drop the "No conversations yet" placeholder
+        chatList.getChildren().removeIf(node -> node instanceof Label);
+        chatList.getChildren().add(0, createChatItem(convId, false, otherUserId, data.optString("name", "Unknown"),
+                "", data.optBoolean("online", false) || isUserOnline(otherUserId), 0));
+    }
+
+    private boolean hasChatItem(int convId) {
+        for (javafx.scene.Node node : chatList.getChildren()) {
+            if (node.getUserData() != null && node.getUserData().equals(convId)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public void handleNotification(JSONObject data) {
@@ -496,7 +823,7 @@ public class MessagesController {
                 alert.showAndWait();
             });
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("handle friend request response failed", e);
         }
     }
 
@@ -542,7 +869,7 @@ public class MessagesController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("show friends list failed", e);
         }
 
         ScrollPane scroll = new ScrollPane(friendsList);
@@ -653,6 +980,7 @@ public class MessagesController {
         title.setStyle("-fx-font-size: 24px; -fx-font-weight: bold;");
 
         VBox requestsList = new VBox(10);
+        List<Integer> requestIds = new ArrayList<>();
 
         String sql = "SELECT fr.id, fr.sender_id, u.first_name, u.last_name, u.username FROM friend_requests fr " +
                 "JOIN users u ON fr.sender_id = u.id WHERE fr.receiver_id = ? AND fr.status = 'pending'";
@@ -670,7 +998,9 @@ public class MessagesController {
                 String username = rs.getString("username");
 
                 HBox item = createPendingRequestItem(reqId, senderId, name, username);
+                item.setUserData(reqId);
                 requestsList.getChildren().add(item);
+                requestIds.add(reqId);
             }
 
             if (requestsList.getChildren().isEmpty()) {
@@ -680,7 +1010,7 @@ public class MessagesController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("show pending requests failed", e);
         }
 
         ScrollPane scroll = new ScrollPane(requestsList);
@@ -688,10 +1018,51 @@ public class MessagesController {
         scroll.setStyle("-fx-background: white;");
         VBox.setVgrow(scroll, Priority.ALWAYS);
 
-        view.getChildren().addAll(title, scroll);
+        if (requestIds.size() > 1) {
+            Button acceptAllBtn = new Button("Accept all (" + requestIds.size() + ")");
+            acceptAllBtn.setStyle("-fx-background-color: #10B981; -fx-text-fill: white; -fx-background-radius: 6; -fx-padding: 8 15; -fx-cursor: hand;");
+            acceptAllBtn.setOnAction(e -> {
+                acceptAllBtn.setDisable(true);
+                // One round trip for the whole list; new chats arrive as conversation_created
+                SocketClient.getInstance().respondToFriendRequests(
+                        SessionManager.getInstance().getCurrentUserId(), requestIds, true, result ->
+                                Platform.runLater(() -> {
+                                    if (result.optBoolean("success", false)) {
+                                        requestsList.getChildren().forEach(node -> fadeOut(node));
+                                    } else {
+                                        acceptAllBtn.setDisable(false);
+                                        showFriendRequestError(result);
+                                    }
+                                }));
+            });
+            view.getChildren().addAll(title, acceptAllBtn, scroll);
+        } else {
+            view.getChildren().addAll(title, scroll);
+        }
         contentPane.getChildren().setAll(view);
     }
 
+    private javafx.animation.FadeTransition fadeOut(javafx.scene.Node item) {
+        javafx.animation.FadeTransition fade = new javafx.animation.FadeTransition(
+                javafx.util.Duration.millis(300), item);
+        fade.setFromValue(1.0);
+        fade.setToValue(0.0);
+        fade.setOnFinished(event -> {
+            item.setVisible(false);
+            item.setManaged(false);
+        });
+        fade.play();
+        return fade;
+    }
+
+    private void showFriendRequestError(JSONObject result) {
+        Alert alert = new Alert(Alert.AlertType.WARNING,
+                result.optString("message", "Could not update friend requests"));
+        alert.setTitle("Error");
+        alert.setHeaderText(null);
+        alert.showAndWait();
+    }
+
     private HBox createPendingRequestItem(int requestId, int senderId, String name, String username) {
         HBox item = new HBox(15);
         item.setAlignment(Pos.CENTER_LEFT);
@@ -721,41 +1092,33 @@ public class MessagesController {
 
         Button acceptBtn = new Button("Accept");
         acceptBtn.setStyle("-fx-background-color: #10B981; -fx-text-fill: white; -fx-background-radius: 6; -fx-padding: 8 15; -fx-cursor: hand;");
-        acceptBtn.setOnAction(e -> {
-            SocketClient.getInstance().respondToFriendRequest(requestId, true);
-
-            javafx.animation.FadeTransition fade = new javafx.animation.FadeTransition(
-                    javafx.util.Duration.millis(300), item);
-            fade.setFromValue(1.0);
-            fade.setToValue(0.0);
-            fade.setOnFinished(event -> {
-                item.setVisible(false);
-                item.setManaged(false);
-                loadConversations();
-            });
-            fade.play();
-        });
+        acceptBtn.setOnAction(e -> respondToRequest(item, requestId, true));
 
         Button rejectBtn = new Button("Reject");
         rejectBtn.setStyle("-fx-background-color: #EF4444; -fx-text-fill: white; -fx-background-radius: 6; -fx-padding: 8 15; -fx-cursor: hand;");
-        rejectBtn.setOnAction(e -> {
-            SocketClient.getInstance().respondToFriendRequest(requestId, false);
-
-            javafx.animation.FadeTransition fade = new javafx.animation.FadeTransition(
-                    javafx.util.Duration.millis(300), item);
-            fade.setFromValue(1.0);
-            fade.setToValue(0.0);
-            fade.setOnFinished(event -> {
-                item.setVisible(false);
-                item.setManaged(false);
-            });
-            fade.play();
-        });
+        rejectBtn.setOnAction(e -> respondToRequest(item, requestId, false));
 
         item.getChildren().addAll(text, spacer, acceptBtn, rejectBtn);
         return item;
     }
 
+    // The row fades out right away and comes back if the server says no;
+    // an accepted request's chat arrives as conversation_created
+    private void respondToRequest(HBox item, int requestId, boolean accept) {
+        javafx.animation.FadeTransition fade = fadeOut(item);
+        SocketClient.getInstance().respondToFriendRequest(
+                SessionManager.getInstance().getCurrentUserId(), requestId, accept, result ->
+                        Platform.runLater(() -> {
+                            if (!result.optBoolean("success", false)) {
+                                fade.stop();
+                                item.setOpacity(1.0);
+                                item.setVisible(true);
+                                item.setManaged(true);
+                                showFriendRequestError(result);
+                            }
+                        }));
+    }
+
     private void showCreateGroupView() {
         VBox view = new VBox(20);
         view.setPadding(new Insets(30));
@@ -793,7 +1156,7 @@ public class MessagesController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("show create group view failed", e);
         }
 
         ScrollPane scroll = new ScrollPane(friendsList);
@@ -847,10 +1210,13 @@ public class MessagesController {
                     addStmt.setInt(2, memberId);
                     addStmt.executeUpdate();
                 }
+
+                // Let the server pick up the new members for message delivery
+                SocketClient.getInstance().notifyConversationChanged(convId);
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("create group failed", e);
         }
     }
 
@@ -889,13 +1255,15 @@ public class MessagesController {
                     addStmt.setInt(2, userId);
                     addStmt.executeUpdate();
 
+                    SocketClient.getInstance().notifyConversationChanged(newConvId);
+
                     loadConversations();
                     openChat(newConvId);
                 }
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("start conversation failed", e);
         }
     }
 
@@ -912,7 +1280,7 @@ public class MessagesController {
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("conversation name lookup failed", e);
         }
         return getOtherUserName(convId);
     }
@@ -933,7 +1301,7 @@ public class MessagesController {
                 return rs.getString("first_name") + " " + rs.getString("last_name");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("other user name lookup failed", e);
         }
         return "Unknown";
     }
@@ -952,24 +1320,14 @@ public class MessagesController {
                 return rs.getInt("user_id");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("other user id lookup failed", e);
         }
         return -1;
     }
 
     private boolean isUserOnline(int userId) {
-        if (userId == -1) return false;
-
-        String sql = "SELECT is_online FROM users WHERE id = ?";
-        try (Connection conn = DatabaseManager.getInstance().getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, userId);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) return rs.getBoolean("is_online");
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return false;
+        // Presence is pushed by the server; no need to poll users.is_online
+        return userId != -1 && SocketClient.getInstance().isUserOnline(userId);
     }
 
     private boolean isConversationGroup(int convId) {
@@ -982,7 +1340,7 @@ public class MessagesController {
                 return rs.getBoolean("is_group");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("group check failed", e);
         }
         return false;
     }
@@ -1019,7 +1377,7 @@ public class MessagesController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("show group members failed", e);
         }
 
         ScrollPane scroll = new ScrollPane(membersList);
@@ -1089,20 +1447,32 @@ public class MessagesController {
 
 
     private void markMessagesAsRead(int convId) {
-        String sql = "UPDATE messages SET is_read = true WHERE conversation_id = ? AND sender_id != ? AND is_read = false";
+        if (SocketClient.getInstance().isConnected()) {
+            // mark_read: the server zeroes our member row's unread count and moves its
+            // last-read pointer, for the user bound to the socket
+            SocketClient.getInstance().markRead(convId, SessionManager.getInstance().getCurrentUserId());
+            updateChatItemReadStatus(convId);
+            return;
+        }
+
+        // Offline: the same single-row update directly (zero the counter, point it at the newest message)
+        String sql = "UPDATE conversation_members SET unread_count = 0, last_read_message_id = GREATEST(last_read_message_id, " +
+                "COALESCE((SELECT id FROM messages WHERE conversation_id = ? ORDER BY timestamp DESC, id DESC LIMIT 1), 0)) " +
+                "WHERE conversation_id = ? AND user_id = ?";
 
         try (Connection conn = DatabaseManager.getInstance().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
             stmt.setInt(1, convId);
-            stmt.setInt(2, SessionManager.getInstance().getCurrentUserId());
+            stmt.setInt(2, convId);
+            stmt.setInt(3, SessionManager.getInstance().getCurrentUserId());
             stmt.executeUpdate();
 
             // Don't reload conversations here - just update the specific chat item
             updateChatItemReadStatus(convId);
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("mark messages as read failed", e);
         }
     }
 
@@ -3,6 +3,7 @@ package com.birdsenger.controllers;
 import com.birdsenger.utils.DatabaseManager;
 import com.birdsenger.utils.ProfilePictureUtil;
 import com.birdsenger.utils.SessionManager;
+import com.birdsenger.utils.SocketClient;
 import javafx.fxml.FXML;
 import javafx.scene.control.Label;
 import javafx.scene.control.TextField;
@@ -10,6 +11,8 @@ import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.shape.Circle;
 import javafx.stage.FileChooser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.file.Files;
@@ -18,6 +21,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 
 public class SettingsController {
+    private static final Logger log = LoggerFactory.getLogger(SettingsController.class);
 
     @FXML private ImageView profileImageView;
     @FXML private TextField nameField;
@@ -66,7 +70,7 @@ public class SettingsController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load user profile failed", e);
         }
     }
 
@@ -96,7 +100,7 @@ public class SettingsController {
                 showMessage("Profile picture updated successfully!", "#10B981");
 
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("upload profile picture failed", e);
                 showMessage("Failed to upload profile picture", "#EF4444");
             }
         }
@@ -114,8 +118,11 @@ public class SettingsController {
 
             currentProfilePicturePath = base64Image;
 
+            // Server caches names/avatar references for outgoing messages
+            SocketClient.getInstance().notifyProfileChanged(SessionManager.getInstance().getCurrentUserId());
+
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("update profile picture failed", e);
         }
     }
 
@@ -8,8 +8,11 @@ import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.stage.Stage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class SignupController {
+    private static final Logger log = LoggerFactory.getLogger(SignupController.class);
 
     @FXML private TextField firstNameField;
     @FXML private TextField lastNameField;
@@ -82,7 +85,7 @@ public class SignupController {
                     Thread.sleep(2000);
                     javafx.application.Platform.runLater(this::handleLogin);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
                 }
             }).start();
         } else {
@@ -105,8 +108,7 @@ public class SignupController {
             stage.setScene(scene);
             stage.setTitle(title);
         } catch (Exception e) {
-            System.err.println("❌ Failed to load: " + fxmlPath);
-            e.printStackTrace();
+            log.error("load {} failed", fxmlPath, e);
         }
     }
 
@@ -9,6 +9,8 @@ import javafx.scene.control.Button;
 import javafx.scene.control.Label;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -16,6 +18,7 @@ import java.sql.ResultSet;
 import java.text.SimpleDateFormat;
 
 public class TransactionsController {
+    private static final Logger log = LoggerFactory.getLogger(TransactionsController.class);
 
     @FXML private VBox transactionsContainer;
     @FXML private Button allButton;
@@ -142,7 +145,7 @@ public class TransactionsController {
             }
 
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load transactions failed", e);
         }
     }
 
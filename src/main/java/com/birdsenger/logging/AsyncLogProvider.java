@@ -0,0 +1,47 @@
+package com.birdsenger.logging;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.IMarkerFactory;
+import org.slf4j.helpers.BasicMDCAdapter;
+import org.slf4j.helpers.BasicMarkerFactory;
+import org.slf4j.spi.MDCAdapter;
+import org.slf4j.spi.SLF4JServiceProvider;
+
+/**
+ * The slf4j binding for the app, the server and the libraries they use (netty,
+ * HikariCP): asynchronous, structured, configured from the environment (see
+ * LogConfig). Found by slf4j through META-INF/services.
+ */
+public class AsyncLogProvider implements SLF4JServiceProvider {
+    private ILoggerFactory loggerFactory;
+    private IMarkerFactory markerFactory;
+    private MDCAdapter mdcAdapter;
+
+    @Override
+    public ILoggerFactory getLoggerFactory() {
+        return loggerFactory;
+    }
+
+    @Override
+    public IMarkerFactory getMarkerFactory() {
+        return markerFactory;
+    }
+
+    @Override
+    public MDCAdapter getMDCAdapter() {
+        return mdcAdapter;
+    }
+
+    @Override
+    public String getRequestedApiVersion() {
+        return "2.0.99";
+    }
+
+    @Override
+    public void initialize() {
+        LogConfig config = new LogConfig(System.getenv());
+        loggerFactory = new AsyncLoggerFactory(config, new RingBufferAppender(config.bufferSize, config.json));
+        markerFactory = new BasicMarkerFactory();
+        mdcAdapter = new BasicMDCAdapter();
+    }
+}
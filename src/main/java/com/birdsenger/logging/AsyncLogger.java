@@ -0,0 +1,81 @@
+package com.birdsenger.logging;
+
+import org.slf4j.Marker;
+import org.slf4j.event.Level;
+import org.slf4j.event.LoggingEvent;
+import org.slf4j.helpers.LegacyAbstractLogger;
+import org.slf4j.spi.LoggingEventAware;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An slf4j logger that checks its level and sampling on the calling thread and
+ * leaves everything else to the RingBufferAppender.
+ *
+ * Key-values added through the fluent API (log.atInfo().addKeyValue(...)) are kept
+ * as fields rather than folded into the message.
+ */
+final class AsyncLogger extends LegacyAbstractLogger implements LoggingEventAware {
+    private static final long serialVersionUID = 1L;
+
+    private final int level;
+    private final int sampling;
+    private final RingBufferAppender appender;
+
+    AsyncLogger(String name, Level level, int sampling, RingBufferAppender appender) {
+        this.name = name;
+        this.level = level.toInt();
+        this.sampling = sampling;
+        this.appender = appender;
+    }
+
+    @Override
+    public boolean isTraceEnabled() {
+        return level <= Level.TRACE.toInt();
+    }
+
+    @Override
+    public boolean isDebugEnabled() {
+        return level <= Level.DEBUG.toInt();
+    }
+
+    @Override
+    public boolean isInfoEnabled() {
+        return level <= Level.INFO.toInt();
+    }
+
+    @Override
+    public boolean isWarnEnabled() {
+        return level <= Level.WARN.toInt();
+    }
+
+    @Override
+    public boolean isErrorEnabled() {
+        return level <= Level.ERROR.toInt();
+    }
+
+    @Override
+    protected String getFullyQualifiedCallerName() {
+        return null;
+    }
+
+    @Override
+    protected void handleNormalizedLoggingCall(Level level, Marker marker, String messagePattern,
+                                               Object[] arguments, Throwable throwable) {
+        if (skip(level)) return;
+        appender.append(level, name, messagePattern, arguments, null, throwable, sampling);
+    }
+
+    @Override
+    public void log(LoggingEvent event) {
+        if (event.getLevel().toInt() < level || skip(event.getLevel())) return;
+        appender.append(event.getLevel(), name, event.getMessage(), event.getArgumentArray(),
+                event.getKeyValuePairs(), event.getThrowable(), sampling);
+    }
+
+    // Sampled loggers keep 1 in N events below WARN; warnings and errors are always kept
+    private boolean skip(Level level) {
+        return sampling > 1 && level.toInt() < Level.WARN.toInt()
+                && ThreadLocalRandom.current().nextInt(sampling) != 0;
+    }
+}
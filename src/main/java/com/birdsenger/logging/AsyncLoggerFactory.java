@@ -0,0 +1,23 @@
+package com.birdsenger.logging;
+
+import org.slf4j.ILoggerFactory;
+import org.slf4j.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+final class AsyncLoggerFactory implements ILoggerFactory {
+    private final LogConfig config;
+    private final RingBufferAppender appender;
+    private final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+
+    AsyncLoggerFactory(LogConfig config, RingBufferAppender appender) {
+        this.config = config;
+        this.appender = appender;
+    }
+
+    @Override
+    public Logger getLogger(String name) {
+        return loggers.computeIfAbsent(name, n ->
+                new AsyncLogger(n, config.levelFor(n), config.samplingFor(n), appender));
+    }
+}
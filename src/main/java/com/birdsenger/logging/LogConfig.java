@@ -0,0 +1,93 @@
+package com.birdsenger.logging;
+
+import org.slf4j.event.Level;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Logging settings, read once from the environment.
+ *
+ * BIRDSENGER_LOG_LEVEL   root level, then per-subsystem overrides by logger name prefix,
+ *                        e.g. "info,com.birdsenger.server=debug,io.netty=warn"
+ * BIRDSENGER_LOG_SAMPLE  keep 1 in N events below WARN for high-volume loggers,
+ *                        e.g. "com.birdsenger.server.SocketServer.messages=100" (1 keeps all)
+ * BIRDSENGER_LOG_FORMAT  "text" (key=value) or "json"
+ * BIRDSENGER_LOG_BUFFER  ring buffer slots, a power of two
+ */
+final class LogConfig {
+    private static final String DEFAULT_LEVELS = "info";
+    // One line per chat message is most of the volume under load
+    private static final String DEFAULT_SAMPLING = "com.birdsenger.server.SocketServer.messages=100";
+
+    // Keys whose values never reach the log (matched case-insensitively, by substring)
+    private static final Set<String> SENSITIVE = Set.of("password", "hash", "secret", "token", "answer");
+
+    final Level rootLevel;
+    final Map<String, Level> levels = new HashMap<>();
+    final Map<String, Integer> sampling = new HashMap<>();
+    final boolean json;
+    final int bufferSize;
+
+    LogConfig(Map<String, String> env) {
+        Level root = Level.INFO;
+        for (String entry : env.getOrDefault("BIRDSENGER_LOG_LEVEL", DEFAULT_LEVELS).split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts[0].isEmpty()) continue;
+            if (parts.length == 1) {
+                root = parseLevel(parts[0]);
+            } else {
+                levels.put(parts[0], parseLevel(parts[1]));
+            }
+        }
+        this.rootLevel = root;
+
+        String sample = DEFAULT_SAMPLING + "," + env.getOrDefault("BIRDSENGER_LOG_SAMPLE", "");
+        for (String entry : sample.split(",")) {
+            String[] parts = entry.trim().split("=");
+            if (parts.length == 2) sampling.put(parts[0], Math.max(1, Integer.parseInt(parts[1])));
+        }
+
+        this.json = "json".equalsIgnoreCase(env.getOrDefault("BIRDSENGER_LOG_FORMAT", "text"));
+        int size = Integer.parseInt(env.getOrDefault("BIRDSENGER_LOG_BUFFER", "8192"));
+        this.bufferSize = Integer.highestOneBit(Math.max(size, 64));
+    }
+
+    /**
+     * Level of the longest matching name prefix
+     */
+    Level levelFor(String loggerName) {
+        Level level = longestPrefix(levels, loggerName);
+        return level != null ? level : rootLevel;
+    }
+
+    int samplingFor(String loggerName) {
+        Integer n = longestPrefix(sampling, loggerName);
+        return n != null ? n : 1;
+    }
+
+    private static <T> T longestPrefix(Map<String, T> byPrefix, String name) {
+        String prefix = name;
+        while (true) {
+            T value = byPrefix.get(prefix);
+            if (value != null) return value;
+            int dot = prefix.lastIndexOf('.');
+            if (dot < 0) return null;
+            prefix = prefix.substring(0, dot);
+        }
+    }
+
+    static boolean isSensitive(String key) {
+        String lower = key.toLowerCase(Locale.ROOT);
+        for (String word : SENSITIVE) {
+            if (lower.contains(word)) return true;
+        }
+        return false;
+    }
+
+    private static Level parseLevel(String name) {
+        return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+    }
+}
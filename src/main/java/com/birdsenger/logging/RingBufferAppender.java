@@ -0,0 +1,319 @@
+package com.birdsenger.logging;
+
+import org.slf4j.event.KeyValuePair;
+import org.slf4j.event.Level;
+import org.slf4j.helpers.MessageFormatter;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands log events from any thread to one writer thread through a fixed ring of slots.
+ *
+ * A logging thread claims a slot with one CAS, fills in the raw event (message
+ * pattern, arguments, key-values) and moves on; formatting and the synchronized
+ * console write happen on the writer thread, many events per write. When the ring
+ * is full, events below WARN are dropped and counted; WARN and ERROR wait briefly
+ * for room instead.
+ */
+final class RingBufferAppender {
+    private static final long FULL_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final class Slot {
+        // pos: free for the producer claiming pos; pos + 1: filled, ready for the writer
+        volatile long sequence;
+        long timestamp;
+        Level level;
+        String logger;
+        String thread;
+        String message;
+        Object[] args;
+        List<KeyValuePair> keyValues;
+        Throwable error;
+        int sampling;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;  // writer thread only
+    private final LongAdder dropped = new LongAdder();
+    private long droppedReported;
+
+    private final boolean json;
+    private final PrintStream out = System.out;
+    private final PrintStream err = System.err;
+    private final StringBuilder outBatch = new StringBuilder(16 * 1024);
+    private final StringBuilder errBatch = new StringBuilder(1024);
+
+    private final Thread writer;
+    private volatile boolean sleeping;
+    private volatile boolean running = true;
+
+    RingBufferAppender(int size, boolean json) {
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.json = json;
+        this.writer = new Thread(this::run, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+    }
+
+    void append(Level level, String logger, String message, Object[] args,
+                List<KeyValuePair> keyValues, Throwable error, int sampling) {
+        long deadline = 0;
+        while (true) {
+            long pos = tail.get();
+            Slot slot = slots[(int) (pos & mask)];
+            long seq = slot.sequence;
+            if (seq == pos) {
+                if (!tail.compareAndSet(pos, pos + 1)) continue;
+                slot.timestamp = System.currentTimeMillis();
+                slot.level = level;
+                slot.logger = logger;
+                slot.thread = Thread.currentThread().getName();
+                slot.message = message;
+                slot.args = args;
+                slot.keyValues = keyValues;
+                slot.error = error;
+                slot.sampling = sampling;
+                slot.sequence = pos + 1;
+                if (sleeping) LockSupport.unpark(writer);
+                return;
+            }
+            if (seq - pos < 0) {
+                // Full: the writer hasn't freed this slot yet
+                if (level.toInt() < Level.WARN.toInt() || !running) {
+                    dropped.increment();
+                    return;
+                }
+                long now = System.nanoTime();
+                if (deadline == 0) {
+                    deadline = now + FULL_WAIT_NANOS;
+                } else if (now - deadline > 0) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100_000);
+            }
+        }
+    }
+
+    private void run() {
+        while (running || hasNext()) {
+            if (!drain()) {
+                sleeping = true;
+                // Re-check after announcing we sleep, so an append in between isn't missed
+                if (!hasNext() && running) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sleeping = false;
+            }
+        }
+        drain();
+    }
+
+    private boolean hasNext() {
+        return slots[(int) (head & mask)].sequence == head + 1;
+    }
+
+    /**
+     * Format and write everything that is ready; false if there was nothing
+     */
+    private boolean drain() {
+        int n = 0;
+        while (hasNext() && n < slots.length) {
+            Slot slot = slots[(int) (head & mask)];
+            StringBuilder sb = slot.level.toInt() >= Level.WARN.toInt() ? errBatch : outBatch;
+            try {
+                format(sb, slot);
+            } catch (RuntimeException e) {
+                // A broken toString() must not take the writer down
+                sb.append("log event from ").append(slot.logger).append(" failed to format: ").append(e).append('\n');
+            }
+            slot.args = null;
+            slot.keyValues = null;
+            slot.error = null;
+            slot.message = null;
+            slot.sequence = head + slots.length;
+            head++;
+            n++;
+        }
+
+        long lost = dropped.sum();
+        if (lost > droppedReported) {
+            errBatch.append(Instant.ofEpochMilli(System.currentTimeMillis()))
+                    .append(" WARN  logging: ring buffer full, dropped=").append(lost - droppedReported).append('\n');
+            droppedReported = lost;
+        }
+        if (outBatch.length() > 0) {
+            out.print(outBatch);
+            out.flush();
+            outBatch.setLength(0);
+        }
+        if (errBatch.length() > 0) {
+            err.print(errBatch);
+            err.flush();
+            errBatch.setLength(0);
+        }
+        return n > 0;
+    }
+
+    private void format(StringBuilder sb, Slot slot) {
+        String message = slot.args == null || slot.args.length == 0
+                ? slot.message
+                : MessageFormatter.basicArrayFormat(slot.message, slot.args);
+        if (json) {
+            formatJson(sb, slot, message);
+        } else {
+            formatText(sb, slot, message);
+        }
+    }
+
+    // 2026-01-02T10:11:12.345Z INFO  SocketServer [event-worker-3] message sent conv=42 sender=7
+    private void formatText(StringBuilder sb, Slot slot, String message) {
+        sb.append(Instant.ofEpochMilli(slot.timestamp)).append(' ');
+        String level = slot.level.name();
+        sb.append(level);
+        for (int i = level.length(); i < 6; i++) sb.append(' ');
+        sb.append(shortName(slot.logger)).append(" [").append(slot.thread).append("] ").append(message);
+        if (slot.keyValues != null) {
+            for (KeyValuePair kv : slot.keyValues) {
+                sb.append(' ').append(kv.key).append('=');
+                appendTextValue(sb, valueOf(kv));
+            }
+        }
+        if (slot.sampling > 1) {
+            sb.append(" sampled=1/").append(slot.sampling);
+        }
+        sb.append('\n');
+        if (slot.error != null) {
+            StringWriter trace = new StringWriter();
+            slot.error.printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+    }
+
+    private void formatJson(StringBuilder sb, Slot slot, String message) {
+        sb.append("{\"ts\":\"").append(Instant.ofEpochMilli(slot.timestamp)).append('"');
+        sb.append(",\"level\":\"").append(slot.level.name()).append('"');
+        sb.append(",\"logger\":");
+        appendJsonString(sb, slot.logger);
+        sb.append(",\"thread\":");
+        appendJsonString(sb, slot.thread);
+        sb.append(",\"msg\":");
+        appendJsonString(sb, message);
+        if (slot.keyValues != null) {
+            for (KeyValuePair kv : slot.keyValues) {
+                sb.append(',');
+                appendJsonString(sb, kv.key);
+                sb.append(':');
+                Object value = valueOf(kv);
+                if (value instanceof Number || value instanceof Boolean) {
+                    sb.append(value);
+                } else {
+                    appendJsonString(sb, String.valueOf(value));
+                }
+            }
+        }
+        if (slot.sampling > 1) {
+            sb.append(",\"sampled\":").append(slot.sampling);
+        }
+        if (slot.error != null) {
+            StringWriter trace = new StringWriter();
+            slot.error.printStackTrace(new PrintWriter(trace));
+            sb.append(",\"error\":");
+            appendJsonString(sb, trace.toString());
+        }
+        sb.append("}\n");
+    }
+
+    private static Object valueOf(KeyValuePair kv) {
+        return LogConfig.isSensitive(kv.key) ? "***" : kv.value;
+    }
+
+    private static void appendTextValue(StringBuilder sb, Object value) {
+        String s = String.valueOf(value);
+        boolean quote = s.isEmpty();
+        for (int i = 0; i < s.length() && !quote; i++) {
+            char c = s.charAt(i);
+            quote = c == ' ' || c == '"' || c == '=' || c < 0x20;
+        }
+        if (quote) {
+            appendJsonString(sb, s);
+        } else {
+            sb.append(s);
+        }
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+
+    // com.birdsenger.server.SocketServer.messages -> SocketServer.messages
+    private static String shortName(String logger) {
+        int start = 0;
+        for (int i = 0; i < logger.length(); i++) {
+            if (logger.charAt(i) == '.' && i + 1 < logger.length() && Character.isUpperCase(logger.charAt(i + 1))) {
+                start = i + 1;
+                break;
+            }
+        }
+        if (start == 0) {
+            start = logger.lastIndexOf('.') + 1;
+        }
+        return logger.substring(start);
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write out what is queued; called at JVM exit
+     */
+    void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
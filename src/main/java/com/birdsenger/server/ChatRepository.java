@@ -0,0 +1,826 @@
+package com.birdsenger.server;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * All SQL executed by the socket server.
+ *
+ * Every statement borrows a pooled connection and uses a fixed SQL string, so the
+ * driver's statement cache hands back an already prepared server-side statement.
+ */
+public class ChatRepository {
+
+    // One fixed statement for any batch size; ORDER BY ord makes ids follow input order
+    private static final String INSERT_MESSAGES =
+            "INSERT INTO messages (conversation_id, sender_id, content, message_type) " +
+            "SELECT b.conversation_id, b.sender_id, b.content, 'text' " +
+            "FROM unnest(?::int4[], ?::int4[], ?::text[]) WITH ORDINALITY AS b(conversation_id, sender_id, content, ord) " +
+            "ORDER BY b.ord RETURNING id, timestamp";
+    private static final String SELECT_MEMBERS =
+            "SELECT user_id FROM conversation_members WHERE conversation_id = ?";
+    private static final String SELECT_ALL_MEMBERSHIPS =
+            "SELECT conversation_id, user_id FROM conversation_members ORDER BY conversation_id, user_id";
+    private static final String DEDUCT_BALANCE =
+            "UPDATE users SET balance = balance - ? WHERE id = ? AND balance >= ?";
+    private static final String ADD_BALANCE =
+            "UPDATE users SET balance = balance + ? WHERE id = ?";
+    // Goes first in a transfer: a repeated transfer key stops the transfer before any money moves
+    private static final String INSERT_TRANSACTION =
+            "INSERT INTO transactions (sender_id, receiver_id, amount, conversation_id, status, transfer_key) " +
+            "VALUES (?, ?, ?, ?, 'completed', ?::uuid) ON CONFLICT (transfer_key) DO NOTHING RETURNING id";
+    private static final String SELECT_TRANSFER_BY_KEY =
+            "SELECT sender_id, amount, conversation_id FROM transactions WHERE transfer_key = ?::uuid";
+    private static final String INSERT_PAYMENT_MESSAGE =
+            "INSERT INTO messages (conversation_id, sender_id, content, message_type) VALUES (?, ?, ?, 'payment') RETURNING id, timestamp";
+    private static final String FIND_USER =
+            "SELECT id FROM users WHERE username = ? OR email = ?";
+    private static final String SELECT_ALL_LOGINS =
+            "SELECT id, username, email FROM users";
+    private static final String SELECT_LOGIN =
+            "SELECT id, username, email FROM users WHERE id = ?";
+    // Only inserts if there is no pending request and no friendship yet
+    private static final String INSERT_FRIEND_REQUEST_IF_NEW =
+            "INSERT INTO friend_requests (sender_id, receiver_id, status) " +
+            "SELECT ?, ?, 'pending' WHERE NOT EXISTS (" +
+            "SELECT 1 FROM friend_requests WHERE sender_id = ? AND receiver_id = ? AND status = 'pending') " +
+            "AND NOT EXISTS (SELECT 1 FROM friendships WHERE user_id = ? AND friend_id = ?)";
+    // Accepting is one statement: mark the pending requests accepted (only the
+    // receiver may), then add both friendship rows, the 1-on-1 conversation and
+    // its two members. Conversation ids come from the sequence up front so each
+    // request knows its conversation.
+    private static final String ACCEPT_FRIEND_REQUESTS =
+            "WITH accepted AS (" +
+            "UPDATE friend_requests SET status = 'accepted' " +
+            "WHERE id = ANY(?::int4[]) AND receiver_id = ? AND status = 'pending' " +
+            "RETURNING id, sender_id, receiver_id, " +
+            "nextval(pg_get_serial_sequence('conversations', 'id'))::int4 AS conversation_id), " +
+            "friends AS (" +
+            "INSERT INTO friendships (user_id, friend_id) " +
+            "SELECT sender_id, receiver_id FROM accepted UNION ALL SELECT receiver_id, sender_id FROM accepted " +
+            "ON CONFLICT DO NOTHING), " +
+            "convs AS (" +
+            "INSERT INTO conversations (id, is_group, created_by) " +
+            "SELECT conversation_id, false, receiver_id FROM accepted), " +
+            "members AS (" +
+            "INSERT INTO conversation_members (conversation_id, user_id) " +
+            "SELECT conversation_id, sender_id FROM accepted UNION ALL SELECT conversation_id, receiver_id FROM accepted) " +
+            "SELECT id, sender_id, receiver_id, conversation_id FROM accepted";
+    private static final String REJECT_FRIEND_REQUESTS =
+            "UPDATE friend_requests SET status = 'rejected' " +
+            "WHERE id = ANY(?::int4[]) AND receiver_id = ? AND status = 'pending' RETURNING id";
+    private static final String UPDATE_PRESENCE =
+            "UPDATE users u SET is_online = v.online, last_seen = to_timestamp(v.at_ms / 1000.0) " +
+            "FROM unnest(?::int4[], ?::bool[], ?::int8[]) AS v(id, online, at_ms) WHERE u.id = v.id";
+    private static final String RESET_ONLINE =
+            "UPDATE users SET is_online = false WHERE is_online";
+    private static final String SELECT_USER_PROFILE =
+            "SELECT id, first_name, last_name, profile_picture FROM users WHERE id = ?";
+    // Read in the inserting transaction, after the counting trigger has run
+    private static final String SELECT_MEMBER_UNREAD =
+            "SELECT conversation_id, user_id, unread_count FROM conversation_members " +
+            "WHERE conversation_id = ANY(?::int4[])";
+    // One member row; the pointer moves to the conversation's newest message
+    private static final String MARK_READ =
+            "UPDATE conversation_members SET unread_count = 0, last_read_message_id = GREATEST(last_read_message_id, " +
+            "COALESCE((SELECT id FROM messages WHERE conversation_id = ? ORDER BY timestamp DESC, id DESC LIMIT 1), 0)) " +
+            "WHERE conversation_id = ? AND user_id = ?";
+    private static final String SELECT_FRIEND_IDS =
+            "SELECT friend_id FROM friendships WHERE user_id = ?";
+    // History pages walk messages_conversation_history_idx backwards; the
+    // cursor is the oldest message the client has, looked up by id
+    private static final String SELECT_LATEST_MESSAGES =
+            "SELECT id, sender_id, content, message_type, timestamp FROM messages " +
+            "WHERE conversation_id = ? ORDER BY timestamp DESC, id DESC LIMIT ?";
+    private static final String SELECT_MESSAGES_BEFORE =
+            "SELECT m.id, m.sender_id, m.content, m.message_type, m.timestamp " +
+            "FROM messages m, (SELECT timestamp, id FROM messages WHERE id = ?) c " +
+            "WHERE m.conversation_id = ? AND (m.timestamp, m.id) < (c.timestamp, c.id) " +
+            "ORDER BY m.timestamp DESC, m.id DESC LIMIT ?";
+    private static final String SELECT_LEDGER_CHECKPOINT =
+            "SELECT seq FROM ledger_checkpoint WHERE name = 'ledger'";
+    private static final String UPSERT_LEDGER_CHECKPOINT =
+            "INSERT INTO ledger_checkpoint (name, seq) VALUES ('ledger', ?) " +
+            "ON CONFLICT (name) DO UPDATE SET seq = EXCLUDED.seq";
+    private static final String SELECT_BALANCE =
+            "SELECT balance FROM users WHERE id = ?";
+    // Deltas are per user and already summed: UPDATE ... FROM applies one row per target
+    private static final String APPLY_BALANCE_DELTAS =
+            "UPDATE users u SET balance = u.balance + d.delta_cents / 100.0 " +
+            "FROM unnest(?::int4[], ?::int8[]) AS d(id, delta_cents) WHERE u.id = d.id";
+    private static final String INSERT_TRANSACTIONS =
+            "INSERT INTO transactions (sender_id, receiver_id, amount, conversation_id, status, transfer_key) " +
+            "SELECT t.sender_id, t.receiver_id, t.cents / 100.0, t.conversation_id, 'completed', t.transfer_key::uuid " +
+            "FROM unnest(?::int4[], ?::int4[], ?::int8[], ?::int4[], ?::text[]) " +
+            "AS t(sender_id, receiver_id, cents, conversation_id, transfer_key) " +
+            "ON CONFLICT (transfer_key) DO NOTHING RETURNING transfer_key::text";
+    private static final String INSERT_LEDGER_SET_ASIDE =
+            "INSERT INTO ledger_set_aside (seq, sender_id, receiver_id, amount_cents, conversation_id, transfer_key, " +
+            "logged_at, error) VALUES (?, ?, ?, ?, ?, ?::uuid, ?, ?) ON CONFLICT (seq) DO NOTHING";
+    private static final String INSERT_PAYMENT_MESSAGES =
+            "INSERT INTO messages (conversation_id, sender_id, content, message_type) " +
+            "SELECT b.conversation_id, b.sender_id, b.content, 'payment' " +
+            "FROM unnest(?::int4[], ?::int4[], ?::text[]) WITH ORDINALITY AS b(conversation_id, sender_id, content, ord) " +
+            "ORDER BY b.ord RETURNING id, timestamp";
+
+    /**
+     * A friend request that was accepted, and the conversation created for it
+     */
+    public record AcceptedRequest(int requestId, int senderId, int receiverId, int conversationId) {}
+
+    /**
+     * A message as inserted, with each member's unread count right after it went in
+     */
+    public record StoredMessage(int id, Timestamp timestamp, Map<Integer, Integer> unreadCounts) {
+
+        StoredMessage(int id, Timestamp timestamp) {
+            this(id, timestamp, Map.of());
+        }
+    }
+
+    /**
+     * Result of transferMoney: the payment message, or duplicate if the transfer
+     * key had already been used (nothing changed then)
+     */
+    public record MoneyTransfer(boolean duplicate, StoredMessage message) {}
+
+    public record HistoryMessage(int id, int senderId, String content, String messageType, Timestamp timestamp) {}
+
+    /**
+     * One page of a conversation's history, newest first
+     */
+    public record MessagePage(List<HistoryMessage> messages, boolean hasMore) {}
+
+    public record PastTransfer(int senderId, double amount, int convId) {}
+
+    public interface MembershipConsumer {
+        void accept(int convId, int userId);
+    }
+
+    public interface LoginConsumer {
+        void accept(int userId, String username, String email);
+    }
+
+    private final ServerDatabase database;
+
+    // Time spent inside the database per repository call
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final Metrics.Timer queryTimer;
+
+    public ChatRepository(ServerDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * @param queryTimer  also gets every statement's time, may be null
+     */
+    public ChatRepository(ServerDatabase database, Metrics.Timer queryTimer) {
+        this.database = database;
+        this.queryTimer = queryTimer;
+    }
+
+    /**
+     * True if the database refused the rows themselves (a constraint or a bad value).
+     * Those errors come back on every retry; anything else (connection, timeout) may not.
+     */
+    public static boolean refused(SQLException e) {
+        String state = e.getSQLState();
+        return state != null && (state.startsWith("23") || state.startsWith("22"));
+    }
+
+    /**
+     * Insert a batch of text messages in one statement and one transaction.
+     * The result is in the same order as the input arrays.
+     */
+    public StoredMessage[] insertTextMessages(int[] convIds, int[] senderIds, String[] contents) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_MESSAGES)) {
+                stmt.setObject(1, convIds);
+                stmt.setObject(2, senderIds);
+                stmt.setObject(3, contents);
+
+                StoredMessage[] stored = new StoredMessage[convIds.length];
+                int n = 0;
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next() && n < stored.length) {
+                        stored[n++] = new StoredMessage(rs.getInt("id"), rs.getTimestamp("timestamp"));
+                    }
+                }
+                if (n != stored.length) {
+                    throw new SQLException("Inserted " + n + " of " + stored.length + " messages");
+                }
+                // RETURNING order isn't guaranteed, but ids are handed out in insert order
+                Arrays.sort(stored, Comparator.comparingInt(StoredMessage::id));
+                stored = withUnreadCounts(conn, stored, convIds);
+                conn.commit();
+                return stored;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    public int[] findConversationMemberIds(int convId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_MEMBERS)) {
+            stmt.setInt(1, convId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return readIds(rs);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Stream every (conversation, member) pair without holding the whole result in memory
+     */
+    public void forEachMembership(MembershipConsumer consumer) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            // The driver only uses a cursor (fetch size) inside a transaction
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(SELECT_ALL_MEMBERSHIPS)) {
+                stmt.setFetchSize(10_000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(rs.getInt(1), rs.getInt(2));
+                    }
+                }
+                conn.commit();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Move money between two users and record the transfer and its chat message.
+     * Returns null (changing nothing) when the sender's balance is too low. A
+     * non-null transfer key is recorded with the transfer and can only be used once.
+     */
+    public MoneyTransfer transferMoney(int senderId, int receiverId, double amount, int convId,
+                                       UUID transferKey) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement txn = conn.prepareStatement(INSERT_TRANSACTION);
+                 PreparedStatement deduct = conn.prepareStatement(DEDUCT_BALANCE);
+                 PreparedStatement add = conn.prepareStatement(ADD_BALANCE);
+                 PreparedStatement msg = conn.prepareStatement(INSERT_PAYMENT_MESSAGE)) {
+
+                txn.setInt(1, senderId);
+                txn.setInt(2, receiverId);
+                txn.setDouble(3, amount);
+                txn.setInt(4, convId);
+                txn.setString(5, transferKey != null ? transferKey.toString() : null);
+                try (ResultSet rs = txn.executeQuery()) {
+                    if (!rs.next()) {
+                        conn.rollback();
+                        return new MoneyTransfer(true, null);
+                    }
+                }
+
+                deduct.setDouble(1, amount);
+                deduct.setInt(2, senderId);
+                deduct.setDouble(3, amount);
+                if (deduct.executeUpdate() == 0) {
+                    conn.rollback();
+                    return null;
+                }
+
+                add.setDouble(1, amount);
+                add.setInt(2, receiverId);
+                add.executeUpdate();
+
+                msg.setInt(1, convId);
+                msg.setInt(2, senderId);
+                msg.setString(3, "Sent $" + amount);
+                StoredMessage stored;
+                try (ResultSet rs = msg.executeQuery()) {
+                    rs.next();
+                    stored = new StoredMessage(rs.getInt("id"), rs.getTimestamp("timestamp"));
+                }
+                stored = withUnreadCounts(conn, new StoredMessage[]{stored}, new int[]{convId})[0];
+
+                conn.commit();
+                return new MoneyTransfer(false, stored);
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * The completed transfer recorded under a transfer key, or null
+     */
+    public PastTransfer findTransferByKey(UUID transferKey) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_TRANSFER_BY_KEY)) {
+            stmt.setString(1, transferKey.toString());
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                return new PastTransfer(rs.getInt("sender_id"), rs.getDouble("amount"), rs.getInt("conversation_id"));
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Sequence number of the last ledger entry written to the tables, or 0
+     */
+    public long findLedgerCheckpoint() throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_LEDGER_CHECKPOINT);
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * A user's balance in cents, or Ledger.NO_ACCOUNT if there is no such user
+     */
+    public long findBalanceCents(int userId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_BALANCE)) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return Ledger.NO_ACCOUNT;
+                BigDecimal balance = rs.getBigDecimal(1);
+                return balance == null ? 0 : balance.movePointRight(2).setScale(0, RoundingMode.HALF_UP).longValueExact();
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Write a batch of ledger entries to users.balance, transactions and messages,
+     * and move the checkpoint past them, all in one transaction. Returns the
+     * payment messages in entry order, null for an entry whose transfer key is
+     * already in transactions; such an entry moves no money.
+     */
+    public StoredMessage[] projectLedgerEntries(LedgerWal.Entry[] entries) throws SQLException {
+        int n = entries.length;
+        int[] senderIds = new int[n];
+        int[] receiverIds = new int[n];
+        long[] cents = new long[n];
+        int[] convIds = new int[n];
+        String[] keys = new String[n];
+        long lastSeq = 0;
+        for (int i = 0; i < n; i++) {
+            LedgerWal.Entry e = entries[i];
+            senderIds[i] = e.senderId();
+            receiverIds[i] = e.receiverId();
+            cents[i] = e.amountCents();
+            convIds[i] = e.convId();
+            keys[i] = e.transferKey() != null ? e.transferKey().toString() : null;
+            lastSeq = Math.max(lastSeq, e.seq());
+        }
+
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement balances = conn.prepareStatement(APPLY_BALANCE_DELTAS);
+                 PreparedStatement txns = conn.prepareStatement(INSERT_TRANSACTIONS);
+                 PreparedStatement msgs = conn.prepareStatement(INSERT_PAYMENT_MESSAGES);
+                 PreparedStatement checkpoint = conn.prepareStatement(UPSERT_LEDGER_CHECKPOINT)) {
+
+                // Goes first: an entry whose key is already taken must not move money
+                txns.setObject(1, senderIds);
+                txns.setObject(2, receiverIds);
+                txns.setObject(3, cents);
+                txns.setObject(4, convIds);
+                txns.setObject(5, keys);
+                Set<String> inserted = new HashSet<>();
+                try (ResultSet rs = txns.executeQuery()) {
+                    while (rs.next()) {
+                        inserted.add(rs.getString(1));
+                    }
+                }
+                boolean[] duplicate = new boolean[n];
+                Set<String> seen = new HashSet<>();
+                int kept = 0;
+                for (int i = 0; i < n; i++) {
+                    duplicate[i] = keys[i] != null && (!inserted.contains(keys[i]) || !seen.add(keys[i]));
+                    if (!duplicate[i]) kept++;
+                }
+
+                Map<Integer, Long> deltas = new HashMap<>();
+                int[] msgConvIds = new int[kept];
+                int[] msgSenderIds = new int[kept];
+                String[] contents = new String[kept];
+                int k = 0;
+                for (int i = 0; i < n; i++) {
+                    if (duplicate[i]) continue;
+                    deltas.merge(senderIds[i], -cents[i], Long::sum);
+                    deltas.merge(receiverIds[i], cents[i], Long::sum);
+                    msgConvIds[k] = convIds[i];
+                    msgSenderIds[k] = senderIds[i];
+                    contents[k] = "Sent $" + (cents[i] / 100.0);
+                    k++;
+                }
+                int[] deltaIds = new int[deltas.size()];
+                long[] deltaCents = new long[deltas.size()];
+                int d = 0;
+                for (Map.Entry<Integer, Long> e : deltas.entrySet()) {
+                    deltaIds[d] = e.getKey();
+                    deltaCents[d] = e.getValue();
+                    d++;
+                }
+                balances.setObject(1, deltaIds);
+                balances.setObject(2, deltaCents);
+                balances.executeUpdate();
+
+                msgs.setObject(1, msgConvIds);
+                msgs.setObject(2, msgSenderIds);
+                msgs.setObject(3, contents);
+                StoredMessage[] messages = new StoredMessage[kept];
+                int m = 0;
+                try (ResultSet rs = msgs.executeQuery()) {
+                    while (rs.next() && m < kept) {
+                        messages[m++] = new StoredMessage(rs.getInt("id"), rs.getTimestamp("timestamp"));
+                    }
+                }
+                if (m != kept) {
+                    throw new SQLException("Inserted " + m + " of " + kept + " payment messages");
+                }
+
+                Arrays.sort(messages, Comparator.comparingInt(StoredMessage::id));
+                messages = withUnreadCounts(conn, messages, msgConvIds);
+
+                checkpoint.setLong(1, lastSeq);
+                checkpoint.executeUpdate();
+
+                conn.commit();
+                StoredMessage[] stored = new StoredMessage[n];
+                k = 0;
+                for (int i = 0; i < n; i++) {
+                    if (!duplicate[i]) stored[i] = messages[k++];
+                }
+                return stored;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Record a ledger entry the tables refused and move the checkpoint past it,
+     * in one transaction
+     */
+    public void setAsideLedgerEntry(LedgerWal.Entry entry, String error) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement aside = conn.prepareStatement(INSERT_LEDGER_SET_ASIDE);
+                 PreparedStatement checkpoint = conn.prepareStatement(UPSERT_LEDGER_CHECKPOINT)) {
+                aside.setLong(1, entry.seq());
+                aside.setInt(2, entry.senderId());
+                aside.setInt(3, entry.receiverId());
+                aside.setLong(4, entry.amountCents());
+                aside.setInt(5, entry.convId());
+                aside.setString(6, entry.transferKey() != null ? entry.transferKey().toString() : null);
+                aside.setTimestamp(7, new Timestamp(entry.atMillis()));
+                aside.setString(8, error);
+                aside.executeUpdate();
+
+                checkpoint.setLong(1, entry.seq());
+                checkpoint.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Look up a user id by username or email, or -1 if there is no such user
+     */
+    public int findUserId(String usernameOrEmail) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(FIND_USER)) {
+            stmt.setString(1, usernameOrEmail);
+            stmt.setString(2, usernameOrEmail);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Create a pending friend request unless one is already pending or the two are
+     * already friends. Returns true if the request was created.
+     */
+    public boolean insertFriendRequestIfNew(int senderId, int receiverId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(INSERT_FRIEND_REQUEST_IF_NEW)) {
+            stmt.setInt(1, senderId);
+            stmt.setInt(2, receiverId);
+            stmt.setInt(3, senderId);
+            stmt.setInt(4, receiverId);
+            stmt.setInt(5, senderId);
+            stmt.setInt(6, receiverId);
+            return stmt.executeUpdate() == 1;
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Stream every user's username and email
+     */
+    public void forEachLogin(LoginConsumer consumer) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection()) {
+            conn.setAutoCommit(false);
+            try (PreparedStatement stmt = conn.prepareStatement(SELECT_ALL_LOGINS)) {
+                stmt.setFetchSize(10_000);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        consumer.accept(rs.getInt(1), rs.getString(2), rs.getString(3));
+                    }
+                }
+                conn.commit();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Hand one user's username and email to the consumer, if the user exists
+     */
+    public void forLogin(int userId, LoginConsumer consumer) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_LOGIN)) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    consumer.accept(rs.getInt(1), rs.getString(2), rs.getString(3));
+                }
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Accept the given requests sent to receiverId, in one statement. Requests that
+     * aren't pending or aren't addressed to receiverId are left alone and missing
+     * from the result.
+     */
+    public List<AcceptedRequest> acceptFriendRequests(int receiverId, int[] requestIds) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(ACCEPT_FRIEND_REQUESTS)) {
+            stmt.setObject(1, requestIds);
+            stmt.setInt(2, receiverId);
+            List<AcceptedRequest> accepted = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    accepted.add(new AcceptedRequest(rs.getInt(1), rs.getInt(2), rs.getInt(3), rs.getInt(4)));
+                }
+            }
+            return accepted;
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Reject the given pending requests sent to receiverId. Returns the ids rejected.
+     */
+    public List<Integer> rejectFriendRequests(int receiverId, int[] requestIds) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(REJECT_FRIEND_REQUESTS)) {
+            stmt.setObject(1, requestIds);
+            stmt.setInt(2, receiverId);
+            List<Integer> rejected = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    rejected.add(rs.getInt(1));
+                }
+            }
+            return rejected;
+        } finally {
+            record(start);
+        }
+    }
+
+    public UserDirectory.UserProfile findUserProfile(int userId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_USER_PROFILE)) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                return new UserDirectory.UserProfile(rs.getInt("id"),
+                        rs.getString("first_name") + " " + rs.getString("last_name"),
+                        UserDirectory.avatarRef(rs.getString("profile_picture")));
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Up to limit messages of a conversation older than the message beforeId, or
+     * the newest ones if beforeId is 0. Costs one index range scan whatever the
+     * length of the history.
+     */
+    public MessagePage findMessagePage(int convId, int beforeId, int limit) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(beforeId == 0 ? SELECT_LATEST_MESSAGES : SELECT_MESSAGES_BEFORE)) {
+            if (beforeId == 0) {
+                stmt.setInt(1, convId);
+                stmt.setInt(2, limit + 1);
+            } else {
+                stmt.setInt(1, beforeId);
+                stmt.setInt(2, convId);
+                stmt.setInt(3, limit + 1);
+            }
+            List<HistoryMessage> messages = new ArrayList<>(limit);
+            boolean hasMore = false;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    if (messages.size() == limit) {
+                        hasMore = true;
+                        break;
+                    }
+                    messages.add(new HistoryMessage(rs.getInt(1), rs.getInt(2), rs.getString(3),
+                            rs.getString(4), rs.getTimestamp(5)));
+                }
+            }
+            return new MessagePage(messages, hasMore);
+        } finally {
+            record(start);
+        }
+    }
+
+    // stored[i] is a message in convIds[i]; adds the members' unread counts as this
+    // transaction left them. The counters are the trigger's, so every node sees the same.
+    private static StoredMessage[] withUnreadCounts(Connection conn, StoredMessage[] stored, int[] convIds)
+            throws SQLException {
+        Map<Integer, Map<Integer, Integer>> byConversation = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(SELECT_MEMBER_UNREAD)) {
+            stmt.setObject(1, convIds);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    byConversation.computeIfAbsent(rs.getInt(1), k -> new HashMap<>()).put(rs.getInt(2), rs.getInt(3));
+                }
+            }
+        }
+        StoredMessage[] counted = new StoredMessage[stored.length];
+        for (int i = 0; i < stored.length; i++) {
+            counted[i] = new StoredMessage(stored[i].id(), stored[i].timestamp(),
+                    byConversation.getOrDefault(convIds[i], Map.of()));
+        }
+        return counted;
+    }
+
+    /**
+     * Mark everything other members sent in a conversation as read by this user:
+     * zero their counter and point it at the newest message
+     */
+    public void markRead(int convId, int userId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(MARK_READ)) {
+            stmt.setInt(1, convId);
+            stmt.setInt(2, convId);
+            stmt.setInt(3, userId);
+            stmt.executeUpdate();
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Write a batch of presence changes (online flag and last_seen) in one statement
+     */
+    public void updatePresence(int[] userIds, boolean[] online, long[] atMillis) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(UPDATE_PRESENCE)) {
+            stmt.setObject(1, userIds);
+            stmt.setObject(2, online);
+            stmt.setObject(3, atMillis);
+            stmt.executeUpdate();
+        } finally {
+            record(start);
+        }
+    }
+
+    public void resetOnlineFlags() throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(RESET_ONLINE)) {
+            stmt.executeUpdate();
+        } finally {
+            record(start);
+        }
+    }
+
+    public int[] findFriendIds(int userId) throws SQLException {
+        long start = System.nanoTime();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_FRIEND_IDS)) {
+            stmt.setInt(1, userId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return readIds(rs);
+            }
+        } finally {
+            record(start);
+        }
+    }
+
+    /**
+     * Call count and average / max time spent in the database, e.g. "calls=120 avg=1.8ms max=9.4ms"
+     */
+    public String latencyStats() {
+        long n = calls.sum();
+        double avgMs = n == 0 ? 0 : totalNanos.sum() / (double) n / 1_000_000;
+        double maxMs = maxNanos.get() / 1_000_000.0;
+        return String.format("calls=%d avg=%.2fms max=%.2fms", n, avgMs, maxMs);
+    }
+
+    // First column of every row as an int array
+    private static int[] readIds(ResultSet rs) throws SQLException {
+        int[] ids = new int[8];
+        int n = 0;
+        while (rs.next()) {
+            if (n == ids.length) ids = Arrays.copyOf(ids, n * 2);
+            ids[n++] = rs.getInt(1);
+        }
+        return Arrays.copyOf(ids, n);
+    }
+
+    private void record(long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        calls.increment();
+        totalNanos.add(elapsed);
+        maxNanos.accumulateAndGet(elapsed, Math::max);
+        if (queryTimer != null) {
+            queryTimer.recordMicros(elapsed / 1000);
+        }
+    }
+}
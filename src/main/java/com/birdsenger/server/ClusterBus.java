@@ -0,0 +1,29 @@
+package com.birdsenger.server;
+
+import java.util.function.Consumer;
+
+/**
+ * Transport between socket server nodes.
+ *
+ * A node receives what is sent to its own id and everything sent to BROADCAST
+ * (including its own broadcasts). Messages are opaque strings; ClusterRouter
+ * decides what they mean. Delivery is best effort and unordered across nodes.
+ */
+public interface ClusterBus {
+    String BROADCAST = "*";
+
+    /**
+     * Join the cluster as nodeId. Incoming messages are handed to the receiver on
+     * the bus's own thread, so the receiver must not block.
+     */
+    void start(String nodeId, Consumer<String> receiver) throws Exception;
+
+    /**
+     * Send a message to one node, or to every node with BROADCAST
+     */
+    void send(String targetNode, String message);
+
+    String stats();
+
+    void close();
+}
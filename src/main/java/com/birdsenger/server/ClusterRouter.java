@@ -0,0 +1,186 @@
+package com.birdsenger.server;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.ToNumberPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Knows which other nodes hold sessions of which users, and forwards events to them.
+ *
+ * Nodes announce a user when their first local session connects and release it
+ * when the last one goes, so every node keeps a copy of the routing table. A node
+ * that starts says hello and the others answer with the users they hold; a node
+ * that stops cleanly says bye. A node that crashes leaves stale entries until it
+ * comes back and says hello again; events sent to it meanwhile are simply lost,
+ * like events for an offline user.
+ */
+public class ClusterRouter {
+    private static final Logger log = LoggerFactory.getLogger(ClusterRouter.class);
+
+    private static final String[] NONE = new String[0];
+    private static final int USERS_PER_MESSAGE = 500;
+
+    // Keep whole numbers whole, so forwarded ids and timestamps reach clients unchanged
+    private static final Gson GSON = new GsonBuilder()
+            .setObjectToNumberStrategy(ToNumberPolicy.LONG_OR_DOUBLE)
+            .create();
+
+    /**
+     * What the router hands back to its server
+     */
+    public interface Listener {
+        /** Deliver an event to the local sessions of a user */
+        void deliver(int userId, String event, Object payload);
+
+        /** Another node changed something this node may have cached */
+        void invalidate(String kind, int id);
+    }
+
+    private record Envelope(String op, String from, int userId, int[] userIds,
+                            String event, Object payload, String kind) {}
+
+    private final String nodeId;
+    private final ClusterBus bus;
+    private final SessionRegistry sessions;
+    private final Listener listener;
+
+    // userId -> other nodes holding a session of that user (copy-on-write)
+    private final ConcurrentHashMap<Integer, String[]> remoteNodes = new ConcurrentHashMap<>();
+
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+
+    public ClusterRouter(String nodeId, ClusterBus bus, SessionRegistry sessions, Listener listener) {
+        this.nodeId = nodeId;
+        this.bus = bus;
+        this.sessions = sessions;
+        this.listener = listener;
+    }
+
+    public void start() throws Exception {
+        bus.start(nodeId, this::receive);
+        broadcast(new Envelope("hello", nodeId, 0, null, null, null, null));
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    /**
+     * The user's first session on this node connected
+     */
+    public void userConnected(int userId) {
+        broadcast(new Envelope("own", nodeId, userId, null, null, null, null));
+    }
+
+    /**
+     * The user's last session on this node went away
+     */
+    public void userDisconnected(int userId) {
+        broadcast(new Envelope("release", nodeId, userId, null, null, null, null));
+    }
+
+    public boolean isOnlineElsewhere(int userId) {
+        return remoteNodes.containsKey(userId);
+    }
+
+    /**
+     * Send an event to the user's sessions on other nodes. Returns false if
+     * no other node holds the user.
+     */
+    public boolean forward(int userId, String event, Object payload) {
+        String[] nodes = remoteNodes.getOrDefault(userId, NONE);
+        for (String node : nodes) {
+            bus.send(node, GSON.toJson(new Envelope("deliver", nodeId, userId, null, event, payload, null)));
+            forwarded.increment();
+        }
+        return nodes.length > 0;
+    }
+
+    /**
+     * Tell the other nodes to drop what they cached about something (e.g. "profile", userId)
+     */
+    public void invalidate(String kind, int id) {
+        broadcast(new Envelope("invalidate", nodeId, id, null, null, null, kind));
+    }
+
+    private void receive(String message) {
+        Envelope env = GSON.fromJson(message, Envelope.class);
+        if (env == null || env.op() == null || nodeId.equals(env.from())) {
+            return;
+        }
+
+        switch (env.op()) {
+            case "hello" -> {
+                // The node (re)started: forget what it used to hold and tell it what we hold
+                dropNode(env.from());
+                int[] local = sessions.userIds();
+                for (int i = 0; i < local.length; i += USERS_PER_MESSAGE) {
+                    int[] chunk = Arrays.copyOfRange(local, i, Math.min(local.length, i + USERS_PER_MESSAGE));
+                    bus.send(env.from(), GSON.toJson(new Envelope("users", nodeId, 0, chunk, null, null, null)));
+                }
+                log.atInfo().addKeyValue("node", env.from()).log("node joined the cluster");
+            }
+            case "users" -> {
+                for (int userId : env.userIds()) addNode(userId, env.from());
+            }
+            case "own" -> addNode(env.userId(), env.from());
+            case "release" -> removeNode(env.userId(), env.from());
+            case "bye" -> {
+                dropNode(env.from());
+                log.atInfo().addKeyValue("node", env.from()).log("node left the cluster");
+            }
+            case "deliver" -> {
+                delivered.increment();
+                listener.deliver(env.userId(), env.event(), env.payload());
+            }
+            case "invalidate" -> listener.invalidate(env.kind(), env.userId());
+            default -> log.atWarn().addKeyValue("op", env.op()).log("unknown cluster message");
+        }
+    }
+
+    private void addNode(int userId, String node) {
+        remoteNodes.compute(userId, (id, nodes) -> {
+            if (nodes == null) return new String[]{node};
+            for (String n : nodes) {
+                if (n.equals(node)) return nodes;
+            }
+            String[] grown = Arrays.copyOf(nodes, nodes.length + 1);
+            grown[nodes.length] = node;
+            return grown;
+        });
+    }
+
+    private void removeNode(int userId, String node) {
+        remoteNodes.computeIfPresent(userId, (id, nodes) -> {
+            String[] kept = Arrays.stream(nodes).filter(n -> !n.equals(node)).toArray(String[]::new);
+            return kept.length == 0 ? null : kept;
+        });
+    }
+
+    private void dropNode(String node) {
+        for (Integer userId : remoteNodes.keySet()) {
+            removeNode(userId, node);
+        }
+    }
+
+    private void broadcast(Envelope env) {
+        bus.send(ClusterBus.BROADCAST, GSON.toJson(env));
+    }
+
+    public String stats() {
+        return "node=" + nodeId + " remoteUsers=" + remoteNodes.size()
+                + " forwarded=" + forwarded.sum() + " delivered=" + delivered.sum() + " " + bus.stats();
+    }
+
+    public void close() {
+        broadcast(new Envelope("bye", nodeId, 0, null, null, null, null));
+        bus.close();
+    }
+}
@@ -0,0 +1,134 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves socket event handling off netty's I/O threads.
+ *
+ * Tasks that share a key (e.g. "conv:42" or "user:7") run one at a time in the
+ * order they were submitted; tasks with different keys run in parallel on virtual
+ * threads. A key only holds a queue while it has work, so idle users cost nothing.
+ */
+public class EventDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(EventDispatcher.class);
+
+    private static final class Task {
+        final Runnable action;
+        final long enqueuedNanos;
+
+        Task(Runnable action) {
+            this.action = action;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private final ExecutorService workers;
+    private final ConcurrentHashMap<String, ArrayDeque<Task>> queues = new ConcurrentHashMap<>();
+
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger maxQueued = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public EventDispatcher() {
+        this(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("event-worker-", 0).factory()));
+    }
+
+    public EventDispatcher(ExecutorService workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Run the action after every earlier action submitted with the same key
+     */
+    public void execute(String key, Runnable action) {
+        Task task = new Task(action);
+        boolean[] startDrain = new boolean[1];
+        maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+
+        queues.compute(key, (k, queue) -> {
+            if (queue == null) {
+                // No drain running for this key, start one
+                queue = new ArrayDeque<>();
+                startDrain[0] = true;
+            }
+            queue.addLast(task);
+            return queue;
+        });
+
+        if (startDrain[0]) {
+            workers.execute(() -> drain(key));
+        }
+    }
+
+    private void drain(String key) {
+        Task task;
+        while ((task = poll(key)) != null) {
+            queued.decrementAndGet();
+            long waited = System.nanoTime() - task.enqueuedNanos;
+            totalWaitNanos.add(waited);
+            maxWaitNanos.accumulateAndGet(waited, Math::max);
+
+            try {
+                task.action.run();
+                completed.increment();
+            } catch (Throwable t) {
+                failed.increment();
+                log.atError().addKeyValue("key", key).setCause(t).log("event handler failed");
+            }
+        }
+    }
+
+    /**
+     * Take the next task for a key, dropping the key's queue once it is empty so a
+     * later execute() starts a fresh drain.
+     */
+    private Task poll(String key) {
+        Task[] next = new Task[1];
+        queues.computeIfPresent(key, (k, queue) -> {
+            next[0] = queue.pollFirst();
+            return next[0] == null ? null : queue;
+        });
+        return next[0];
+    }
+
+    public int queueDepth() {
+        return queued.get();
+    }
+
+    public int activeKeys() {
+        return queues.size();
+    }
+
+    /**
+     * e.g. "queued=0 maxQueued=12 keys=0 done=5400 failed=0 avgWait=0.04ms maxWait=3.10ms"
+     */
+    public String stats() {
+        long done = completed.sum() + failed.sum();
+        double avgWaitMs = done == 0 ? 0 : totalWaitNanos.sum() / (double) done / 1_000_000;
+        return String.format("queued=%d maxQueued=%d keys=%d done=%d failed=%d avgWait=%.2fms maxWait=%.2fms",
+                queued.get(), maxQueued.get(), queues.size(), completed.sum(), failed.sum(),
+                avgWaitMs, maxWaitNanos.get() / 1_000_000.0);
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+        try {
+            workers.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
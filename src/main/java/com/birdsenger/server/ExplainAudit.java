@@ -0,0 +1,257 @@
+package com.birdsenger.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Runs EXPLAIN on every SQL statement the application ships and fails when one
+ * reads a large table from end to end.
+ *
+ * The statements are the SQL string constants compiled into the controllers,
+ * services and socket server classes, read straight from their constant pools, so
+ * nothing has to be listed by hand. Queries assembled at run time only show up as
+ * the pieces they are built from; pieces that aren't a whole statement are listed
+ * as skipped. Plans are generic (EXPLAIN (GENERIC_PLAN), PostgreSQL 16+), so no
+ * parameter values are needed.
+ *
+ * Point it at a migrated database seeded with realistic volume (LoadGenerator --seed):
+ * with a few rows per table the planner scans them whatever the indexes. A Seq Scan
+ * on a table of at least --min-rows rows fails the audit, unless the statement has
+ * no WHERE clause and so reads the whole table by design.
+ *
+ * Usage: ExplainAudit [--min-rows 10000] [--no-migrate]
+ */
+public class ExplainAudit {
+    // Where the application's SQL lives; the tools in the server package are not part of it
+    private static final String[] PACKAGES = {
+            "com/birdsenger/controllers", "com/birdsenger/services", "com/birdsenger/utils", "com/birdsenger/server"};
+    private static final Set<String> TOOLS = Set.of(
+            "ExplainAudit", "SchemaMigrations", "LoadGenerator", "LedgerBenchmark", "LocalCluster", "TraceAnalyzer");
+
+    private static final Pattern STATEMENT = Pattern.compile("^\\s*(SELECT|INSERT|UPDATE|DELETE|WITH)\\s.*", Pattern.DOTALL);
+    private static final Pattern SEQ_SCAN = Pattern.compile("Seq Scan on (\\w+)");
+    private static final Pattern WHERE = Pattern.compile("\\bWHERE\\b", Pattern.CASE_INSENSITIVE);
+
+    private record Finding(String sql, Set<String> classes, String detail) {}
+
+    public static void main(String[] args) throws Exception {
+        long minRows = 10_000;
+        boolean migrate = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--min-rows" -> minRows = Long.parseLong(args[++i]);
+                case "--no-migrate" -> migrate = false;
+                default -> {
+                    System.err.println("Usage: ExplainAudit [--min-rows N] [--no-migrate]");
+                    System.exit(2);
+                }
+            }
+        }
+
+        Map<String, Set<String>> statements = collectStatements();
+        System.out.println("🔎 " + statements.size() + " SQL statements in the application classes");
+
+        ServerDatabase database = new ServerDatabase("explain-audit", 2);
+        List<Finding> scans = new ArrayList<>();
+        List<Finding> fullReads = new ArrayList<>();
+        List<Finding> skipped = new ArrayList<>();
+        try (Connection conn = database.getConnection();
+             Statement stmt = conn.createStatement()) {
+            if (migrate) {
+                new SchemaMigrations(database).migrate();
+            }
+            // Generic plans go by the statistics, so they have to be current
+            stmt.execute("ANALYZE");
+            Map<String, Long> rows = tableRows(stmt);
+
+            for (Map.Entry<String, Set<String>> e : statements.entrySet()) {
+                String sql = e.getKey();
+                String plan;
+                try {
+                    plan = explain(stmt, sql);
+                } catch (SQLException ex) {
+                    skipped.add(new Finding(sql, e.getValue(), firstLine(ex.getMessage())));
+                    continue;
+                }
+                Set<String> large = new TreeSet<>();
+                Matcher m = SEQ_SCAN.matcher(plan);
+                while (m.find()) {
+                    if (rows.getOrDefault(m.group(1), 0L) >= minRows) {
+                        large.add(m.group(1) + " (" + rows.get(m.group(1)) + " rows)");
+                    }
+                }
+                if (large.isEmpty()) continue;
+                Finding finding = new Finding(sql, e.getValue(), String.join(", ", large));
+                if (WHERE.matcher(sql).find()) {
+                    scans.add(finding);
+                } else {
+                    fullReads.add(finding);
+                }
+            }
+        } finally {
+            database.close();
+        }
+
+        print("ℹ️ Whole-table reads (no WHERE clause), allowed:", fullReads);
+        print("⚠️ Not a whole statement or could not be planned:", skipped);
+        print("❌ Sequential scans of large tables:", scans);
+        if (!scans.isEmpty()) {
+            System.out.println("❌ " + scans.size() + " statement(s) need an index");
+            System.exit(1);
+        }
+        System.out.println("✅ No sequential scans on tables of " + minRows + "+ rows");
+    }
+
+    private static void print(String title, List<Finding> findings) {
+        if (findings.isEmpty()) return;
+        System.out.println();
+        System.out.println(title);
+        for (Finding f : findings) {
+            System.out.println("  " + f.detail() + " in " + String.join(", ", f.classes()));
+            System.out.println("    " + abbreviate(f.sql()));
+        }
+    }
+
+    // Substitute $1, $2, ... for the JDBC placeholders; EXPLAIN can't take ? parameters
+    static String explain(Statement stmt, String sql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (ResultSet rs = stmt.executeQuery("EXPLAIN (GENERIC_PLAN) " + numberPlaceholders(sql))) {
+            while (rs.next()) {
+                plan.append(rs.getString(1)).append('\n');
+            }
+        }
+        return plan.toString();
+    }
+
+    static String numberPlaceholders(String sql) {
+        StringBuilder sb = new StringBuilder(sql.length() + 16);
+        boolean quoted = false;
+        int n = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (c == '\'') quoted = !quoted;
+            if (c == '?' && !quoted) {
+                sb.append('$').append(++n);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static Map<String, Long> tableRows(Statement stmt) throws SQLException {
+        Map<String, Long> rows = new HashMap<>();
+        try (ResultSet rs = stmt.executeQuery(
+                "SELECT relname, reltuples::bigint FROM pg_class " +
+                "WHERE relkind = 'r' AND relnamespace = 'public'::regnamespace")) {
+            while (rs.next()) {
+                rows.put(rs.getString(1), Math.max(rs.getLong(2), 0));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * SQL string constants -> simple names of the classes that contain them
+     */
+    private static Map<String, Set<String>> collectStatements() throws Exception {
+        Path location = Path.of(ExplainAudit.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        Map<String, Set<String>> statements = new LinkedHashMap<>();
+        if (Files.isDirectory(location)) {
+            collectStatements(location, statements);
+        } else {
+            try (FileSystem jar = FileSystems.newFileSystem(location)) {
+                collectStatements(jar.getPath("/"), statements);
+            }
+        }
+        return statements;
+    }
+
+    private static void collectStatements(Path root, Map<String, Set<String>> statements) throws IOException {
+        for (String pkg : PACKAGES) {
+            Path dir = root.resolve(pkg);
+            if (!Files.isDirectory(dir)) continue;
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+                    String name = file.getFileName().toString();
+                    if (!name.endsWith(".class")) continue;
+                    String outer = name.substring(0, name.length() - ".class".length()).split("\\$")[0];
+                    if (TOOLS.contains(outer)) continue;
+                    try (InputStream in = Files.newInputStream(file)) {
+                        for (String constant : stringConstants(in)) {
+                            if (STATEMENT.matcher(constant).matches()) {
+                                statements.computeIfAbsent(constant.trim(), k -> new TreeSet<>()).add(outer);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The String constants of a class file: CONSTANT_String entries, resolved to
+     * their UTF-8 text (JVMS 4.4)
+     */
+    static List<String> stringConstants(InputStream classFile) throws IOException {
+        DataInputStream in = new DataInputStream(classFile);
+        if (in.readInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+        in.readUnsignedShort();  // minor version
+        in.readUnsignedShort();  // major version
+        int count = in.readUnsignedShort();
+        String[] utf8 = new String[count];
+        List<Integer> strings = new ArrayList<>();
+        for (int i = 1; i < count; i++) {
+            int tag = in.readUnsignedByte();
+            switch (tag) {
+                case 1 -> utf8[i] = in.readUTF();
+                case 8 -> strings.add(in.readUnsignedShort());
+                case 7, 16, 19, 20 -> in.skipBytes(2);
+                case 15 -> in.skipBytes(3);
+                case 3, 4, 9, 10, 11, 12, 17, 18 -> in.skipBytes(4);
+                case 5, 6 -> {
+                    // Eight bytes, and they take up two entries
+                    in.skipBytes(8);
+                    i++;
+                }
+                default -> throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        List<String> constants = new ArrayList<>(strings.size());
+        for (int index : strings) {
+            // String concatenation recipes mark their holes with \u0001; not a statement
+            if (utf8[index] != null && utf8[index].indexOf('\u0001') < 0) constants.add(utf8[index]);
+        }
+        return constants;
+    }
+
+    private static String firstLine(String s) {
+        if (s == null) return "";
+        int nl = s.indexOf('\n');
+        return nl < 0 ? s : s.substring(0, nl);
+    }
+
+    private static String abbreviate(String sql) {
+        String oneLine = sql.replaceAll("\\s+", " ");
+        return oneLine.length() > 160 ? oneLine.substring(0, 157) + "..." : oneLine;
+    }
+}
@@ -0,0 +1,66 @@
+package com.birdsenger.server;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who is friends with whom, cached per user as a sorted int array.
+ *
+ * A user's friends are read from the database the first time they are needed.
+ * The server is the only writer of friendships (accepting a request), and
+ * records new ones here as it writes them; other nodes drop their copy when told.
+ */
+public class FriendGraph {
+
+    private final ChatRepository repository;
+    private final ConcurrentHashMap<Integer, int[]> friendsByUser = new ConcurrentHashMap<>();
+
+    public FriendGraph(ChatRepository repository) {
+        this.repository = repository;
+    }
+
+    public int[] friends(int userId) throws SQLException {
+        int[] friends = friendsByUser.get(userId);
+        if (friends == null) {
+            friends = repository.findFriendIds(userId);
+            Arrays.sort(friends);
+            friendsByUser.putIfAbsent(userId, friends);
+        }
+        return friends;
+    }
+
+    public boolean areFriends(int userId, int otherId) throws SQLException {
+        return Arrays.binarySearch(friends(userId), otherId) >= 0;
+    }
+
+    /**
+     * Record a friendship that was just written, in both directions
+     */
+    public void addFriendship(int userId, int otherId) {
+        addOneWay(userId, otherId);
+        addOneWay(otherId, userId);
+    }
+
+    // Users we haven't loaded yet will read the new row when they are
+    private void addOneWay(int userId, int friendId) {
+        friendsByUser.computeIfPresent(userId, (id, friends) -> {
+            int idx = Arrays.binarySearch(friends, friendId);
+            if (idx >= 0) return friends;
+            int insert = -idx - 1;
+            int[] grown = new int[friends.length + 1];
+            System.arraycopy(friends, 0, grown, 0, insert);
+            grown[insert] = friendId;
+            System.arraycopy(friends, insert, grown, insert + 1, friends.length - insert);
+            return grown;
+        });
+    }
+
+    public void invalidate(int userId) {
+        friendsByUser.remove(userId);
+    }
+
+    public int size() {
+        return friendsByUser.size();
+    }
+}
@@ -0,0 +1,370 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Account balances for send_money, held in memory.
+ *
+ * Accounts are spread over lock stripes; each stripe owns the balances of its
+ * accounts, so a transfer only locks the (one or two) stripes it touches, always
+ * the lower stripe first, which rules out deadlock. Under the locks a transfer
+ * checks and moves the money and appends to the write-ahead log; it is reported
+ * done once the log is fsynced, and written to the tables afterwards by the
+ * LedgerProjector.
+ *
+ * The ledger assumes it is the only writer of users.balance, so only one server
+ * node may run it. Balances are loaded on first use; at startup any logged
+ * transfers the tables haven't seen yet are projected first. A transfer the
+ * tables turn down (see LedgerProjector) is undone in memory as well.
+ *
+ * Transfer keys of logged transfers are held until the transfer is in the
+ * tables, where the unique transfer_key column takes over; a retry in between
+ * is answered as a duplicate without moving money again.
+ */
+public class Ledger {
+    private static final Logger log = LoggerFactory.getLogger(Ledger.class);
+
+    public static final long NO_ACCOUNT = Long.MIN_VALUE;
+
+    private static final int STRIPES = Integer.parseInt(System.getenv().getOrDefault("SERVER_LEDGER_STRIPES", "256"));
+
+    /**
+     * Where balances come from the first time an account is used
+     */
+    public interface BalanceLoader {
+        /** Balance in cents, or NO_ACCOUNT */
+        long load(int userId) throws SQLException;
+    }
+
+    /**
+     * Whether both users are members of the conversation the payment is posted in
+     */
+    public interface ConversationCheck {
+        boolean bothMembers(int convId, int senderId, int receiverId) throws SQLException;
+    }
+
+    /**
+     * Outcome of a transfer. On success, message completes with the payment's
+     * chat message once the transfer has been written to the tables.
+     */
+    public record Result(boolean success, String reason, long senderBalanceCents,
+                         CompletableFuture<ChatRepository.StoredMessage> message, boolean duplicate) {
+
+        static Result rejected(String reason) {
+            return new Result(false, reason, 0, null, false);
+        }
+
+        /** The transfer key belongs to a transfer that is still being written */
+        static Result alreadyLogged() {
+            return new Result(true, null, 0, null, true);
+        }
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final IntLongMap balances = new IntLongMap();
+    }
+
+    private final BalanceLoader loader;
+    private final ConversationCheck conversations;
+    private final LedgerWal wal;
+    private final LedgerProjector projector;
+    private final Stripe[] stripes;
+    private final int mask;
+
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder undone = new LongAdder();
+    // Keys of transfers that are logged but not yet in transactions
+    private final ConcurrentHashMap<UUID, Boolean> unprojectedKeys = new ConcurrentHashMap<>();
+
+    public Ledger(BalanceLoader loader, ConversationCheck conversations, LedgerWal wal, LedgerProjector projector,
+                  int stripeCount) {
+        this.loader = loader;
+        this.conversations = conversations;
+        this.wal = wal;
+        this.projector = projector;
+        int n = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        this.stripes = new Stripe[n];
+        for (int i = 0; i < n; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.mask = n - 1;
+    }
+
+    /**
+     * Recover the log in dir against the database and start the ledger.
+     * The schema must be up to date (SchemaMigrations).
+     */
+    public static Ledger open(ChatRepository repository, ConversationCheck conversations, Path dir,
+                              Metrics metrics) throws Exception {
+        long checkpoint = repository.findLedgerCheckpoint();
+
+        LedgerWal wal = new LedgerWal(dir, metrics);
+        LedgerProjector projector = new LedgerProjector(repository, metrics);
+
+        long lastSeq = checkpoint;
+        List<LedgerWal.Pending> unprojected = new ArrayList<>();
+        for (LedgerWal.Entry entry : wal.recover()) {
+            lastSeq = Math.max(lastSeq, entry.seq());
+            if (entry.seq() > checkpoint) {
+                unprojected.add(new LedgerWal.Pending(entry));
+            }
+        }
+        if (!unprojected.isEmpty()) {
+            log.atInfo().addKeyValue("entries", unprojected.size()).log("replaying ledger entries into the database");
+            projector.projectNow(unprojected);
+        }
+
+        wal.start(lastSeq + 1, projector::enqueue);
+        projector.start(wal::checkpoint);
+        log.atInfo().addKeyValue("sequence", lastSeq).addKeyValue("dir", dir.toAbsolutePath()).log("ledger ready");
+        return new Ledger(repository::findBalanceCents, conversations, wal, projector, STRIPES);
+    }
+
+    /**
+     * Move amountCents from sender to receiver. The caller has checked that the amount
+     * is positive and the two are different users (SocketServer.handleSendMoney).
+     * Completes once the transfer is durable, or right away when it is rejected. The transfer key (may be null) is stored with
+     * the transfer; a key that is already in transactions is up to the caller to
+     * catch, one still on its way there is caught here.
+     */
+    public CompletableFuture<Result> transfer(int senderId, int receiverId, long amountCents, int convId,
+                                              UUID transferKey) {
+        if (wal.isFailed()) return reject("Payments are unavailable");
+
+        try {
+            // The payment message needs the conversation; one that can't take it would stop the projector
+            if (!conversations.bothMembers(convId, senderId, receiverId)) {
+                return reject("Not a member of this conversation");
+            }
+            if (!ensureLoaded(senderId) || !ensureLoaded(receiverId)) {
+                return reject("Unknown account");
+            }
+        } catch (SQLException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        if (transferKey != null && unprojectedKeys.putIfAbsent(transferKey, Boolean.TRUE) != null) {
+            return CompletableFuture.completedFuture(Result.alreadyLogged());
+        }
+
+        Stripe from = stripeOf(senderId);
+        Stripe to = stripeOf(receiverId);
+        // Always lock the lower stripe first
+        Stripe first = index(senderId) <= index(receiverId) ? from : to;
+        Stripe second = first == from ? to : from;
+
+        LedgerWal.Pending pending;
+        long senderBalance;
+        first.lock.lock();
+        try {
+            if (second != first) second.lock.lock();
+            try {
+                senderBalance = from.balances.get(senderId);
+                if (senderBalance < amountCents) {
+                    if (transferKey != null) unprojectedKeys.remove(transferKey);
+                    return reject("Insufficient balance");
+                }
+                senderBalance -= amountCents;
+                from.balances.put(senderId, senderBalance);
+                to.balances.put(receiverId, to.balances.get(receiverId) + amountCents);
+                pending = wal.append(senderId, receiverId, amountCents, convId, transferKey);
+            } finally {
+                if (second != first) second.lock.unlock();
+            }
+        } finally {
+            first.lock.unlock();
+        }
+
+        transfers.increment();
+        pending.projected.whenComplete((stored, error) -> {
+            if (transferKey != null) unprojectedKeys.remove(transferKey);
+            if (error instanceof LedgerProjector.SetAside || error instanceof LedgerProjector.DuplicateKey) {
+                undo(pending.entry);
+            }
+        });
+        long balanceAfter = senderBalance;
+        return pending.durable.thenApply(v -> new Result(true, null, balanceAfter, pending.projected, false));
+    }
+
+    // Give the money back; the receiver may already have spent it, so this can go negative
+    private void undo(LedgerWal.Entry entry) {
+        Stripe from = stripeOf(entry.senderId());
+        Stripe to = stripeOf(entry.receiverId());
+        Stripe first = index(entry.senderId()) <= index(entry.receiverId()) ? from : to;
+        Stripe second = first == from ? to : from;
+        first.lock.lock();
+        try {
+            if (second != first) second.lock.lock();
+            try {
+                from.balances.put(entry.senderId(), from.balances.get(entry.senderId()) + entry.amountCents());
+                to.balances.put(entry.receiverId(), to.balances.get(entry.receiverId()) - entry.amountCents());
+            } finally {
+                if (second != first) second.lock.unlock();
+            }
+        } finally {
+            first.lock.unlock();
+        }
+        undone.increment();
+    }
+
+    /**
+     * Current in-memory balance in cents, or NO_ACCOUNT if the account isn't loaded
+     */
+    public long balance(int userId) {
+        Stripe stripe = stripeOf(userId);
+        stripe.lock.lock();
+        try {
+            return stripe.balances.containsKey(userId) ? stripe.balances.get(userId) : NO_ACCOUNT;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // Load outside the lock; whoever gets in first wins, and both read the same row
+    private boolean ensureLoaded(int userId) throws SQLException {
+        Stripe stripe = stripeOf(userId);
+        stripe.lock.lock();
+        try {
+            if (stripe.balances.containsKey(userId)) return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+
+        long cents = loader.load(userId);
+        if (cents == NO_ACCOUNT) return false;
+
+        stripe.lock.lock();
+        try {
+            if (!stripe.balances.containsKey(userId)) {
+                stripe.balances.put(userId, cents);
+            }
+            return true;
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Result> reject(String reason) {
+        rejected.increment();
+        return CompletableFuture.completedFuture(Result.rejected(reason));
+    }
+
+    private int index(int userId) {
+        // Spread sequential ids over the stripes
+        return (userId * 0x9E3779B9 >>> 16) & mask;
+    }
+
+    private Stripe stripeOf(int userId) {
+        return stripes[index(userId)];
+    }
+
+    /**
+     * Transfers logged but not yet written to the tables
+     */
+    public int projectorBacklog() {
+        return projector != null ? projector.backlog() : 0;
+    }
+
+    /**
+     * Transfers the tables refused, undone here and set aside
+     */
+    public long setAsideCount() {
+        return projector != null ? projector.setAsideCount() : 0;
+    }
+
+    public String stats() {
+        return "transfers=" + transfers.sum() + " rejected=" + rejected.sum() + " undone=" + undone.sum()
+                + " | wal " + wal.stats() + (projector != null ? " | projector " + projector.stats() : "");
+    }
+
+    /**
+     * Sync the log and write everything still queued to the tables
+     */
+    public void shutdown() {
+        wal.close();
+        if (projector != null) projector.shutdown();
+    }
+
+    /**
+     * Open-addressing int -> long map, so balances cost no boxing. Not thread safe:
+     * each stripe's lock guards its map.
+     */
+    static final class IntLongMap {
+        private static final int FREE = Integer.MIN_VALUE;
+
+        private int[] keys;
+        private long[] values;
+        private int size;
+
+        IntLongMap() {
+            keys = new int[64];
+            values = new long[64];
+            Arrays.fill(keys, FREE);
+        }
+
+        boolean containsKey(int key) {
+            return keys[slot(keys, key)] == key;
+        }
+
+        long get(int key) {
+            int slot = slot(keys, key);
+            return keys[slot] == key ? values[slot] : 0;
+        }
+
+        void put(int key, long value) {
+            int slot = slot(keys, key);
+            if (keys[slot] != key) {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    grow();
+                    slot = slot(keys, key);
+                }
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        // Slot holding key, or the free slot where it would go
+        private static int slot(int[] keys, int key) {
+            int mask = keys.length - 1;
+            int i = (key * 0x9E3779B9) & mask;
+            while (keys[i] != FREE && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            Arrays.fill(keys, FREE);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != FREE) {
+                    int slot = slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
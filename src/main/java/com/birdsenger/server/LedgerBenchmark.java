@@ -0,0 +1,133 @@
+package com.birdsenger.server;
+
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contention benchmark for send_money: many senders paying one hot receiver.
+ *
+ * Usage:
+ *   LedgerBenchmark [--mode memory|ledger|sql] [--threads 32] [--seconds 10]
+ *                   [--receiver 1] [--senders 2-33] [--conversation 1] [--cents 1]
+ *
+ * memory  the ledger and its log only, no database (balances start at $1M)
+ * ledger  the ledger as the server runs it, projecting into the database
+ * sql     ChatRepository.transferMoney, the SQL path
+ *
+ * Each thread sends from its own sender (senders are reused if there are fewer
+ * than threads) and waits for each transfer to be acknowledged before the next,
+ * like a client waiting for money_sent. The ledger and sql modes write real
+ * transfers, so run them against a test database.
+ */
+public class LedgerBenchmark {
+
+    private interface Transfer {
+        boolean run(int senderId) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = "memory";
+        int threads = 32;
+        int seconds = 10;
+        int receiver = 1;
+        int firstSender = 2;
+        int lastSender = 33;
+        int convId = 1;
+        long cents = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mode" -> mode = args[++i];
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--receiver" -> receiver = Integer.parseInt(args[++i]);
+                case "--senders" -> {
+                    String[] range = args[++i].split("-");
+                    firstSender = Integer.parseInt(range[0]);
+                    lastSender = Integer.parseInt(range[range.length - 1]);
+                }
+                case "--conversation" -> convId = Integer.parseInt(args[++i]);
+                case "--cents" -> cents = Long.parseLong(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        ServerDatabase database = null;
+        Ledger ledger = null;
+        Transfer transfer;
+        int to = receiver;
+        int conv = convId;
+        long amount = cents;
+        // Only read back through ledger.stats()
+        Metrics metrics = new Metrics("ledger_benchmark_");
+
+        switch (mode) {
+            case "memory" -> {
+                LedgerWal wal = new LedgerWal(Files.createTempDirectory("ledger-bench"), metrics);
+                wal.start(1, batch -> {});
+                Ledger memoryLedger = new Ledger(userId -> 100_000_000L, (c, s, r) -> true, wal, null, 256);
+                ledger = memoryLedger;
+                transfer = senderId -> memoryLedger.transfer(senderId, to, amount, conv, null).get().success();
+            }
+            case "ledger" -> {
+                database = new ServerDatabase("ledger-benchmark", threads + 2);
+                ChatRepository repository = new ChatRepository(database);
+                new SchemaMigrations(database).migrate();
+                // Every sender pays into the one --conversation, members or not
+                Ledger dbLedger = Ledger.open(repository, (c, s, r) -> true, Files.createTempDirectory("ledger-bench"), metrics);
+                ledger = dbLedger;
+                transfer = senderId -> dbLedger.transfer(senderId, to, amount, conv, null).get().success();
+            }
+            case "sql" -> {
+                database = new ServerDatabase("ledger-benchmark", threads + 2);
+                ChatRepository repository = new ChatRepository(database);
+                transfer = senderId -> repository.transferMoney(senderId, to, amount / 100.0, conv, null) != null;
+            }
+            default -> throw new IllegalArgumentException("Unknown mode: " + mode);
+        }
+
+        System.out.println("🏁 " + mode + ": " + threads + " threads -> user " + receiver + " for " + seconds + "s");
+        Histogram latencyMicros = new Histogram("µs");
+        LongAdder done = new LongAdder();
+        LongAdder failed = new LongAdder();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch finished = new CountDownLatch(threads);
+        int senderCount = lastSender - firstSender + 1;
+
+        for (int t = 0; t < threads; t++) {
+            int senderId = firstSender + t % senderCount;
+            Thread worker = new Thread(() -> {
+                try {
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        if (transfer.run(senderId)) {
+                            done.increment();
+                        } else {
+                            failed.increment();
+                        }
+                        latencyMicros.record((System.nanoTime() - start) / 1000);
+                    }
+                } catch (Exception e) {
+                    System.err.println("❌ Worker stopped: " + e.getMessage());
+                } finally {
+                    finished.countDown();
+                }
+            }, "bench-" + t);
+            worker.start();
+        }
+        finished.await();
+
+        System.out.printf("📊 %s: %.0f transfers/s (%d ok, %d rejected)%n",
+                mode, done.sum() / (double) seconds, done.sum(), failed.sum());
+        System.out.println("📊 Latency: " + latencyMicros.summary());
+        if (ledger != null) {
+            System.out.println("📊 Ledger: " + ledger.stats());
+            ledger.shutdown();
+        }
+        if (database != null) {
+            System.out.println("📊 Database: " + database.poolStats());
+            database.close();
+        }
+    }
+}
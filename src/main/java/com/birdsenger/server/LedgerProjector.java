@@ -0,0 +1,208 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+
+/**
+ * Copies durable ledger entries into users.balance, transactions and messages.
+ *
+ * Runs behind the ledger on its own thread: each round takes everything queued
+ * (up to a batch), writes it in one transaction together with the checkpoint,
+ * and completes each entry's projected future with its payment message. A
+ * failed round is retried until it succeeds; entries are already safe in the log.
+ *
+ * An entry the database refuses (a constraint or data error, e.g. its conversation
+ * was deleted) would fail every retry and hold up everything behind it. So when
+ * a batch is refused it is written again one entry at a time, and an entry that
+ * is refused on its own is set aside: recorded in ledger_set_aside for someone to
+ * look at, its projected future failed with SetAside so the ledger undoes it, and
+ * logged as an error.
+ */
+public class LedgerProjector {
+    private static final Logger log = LoggerFactory.getLogger(LedgerProjector.class);
+
+    private static final int MAX_BATCH = 512;
+
+    /**
+     * Why an entry's projected future failed: the tables refused it and it was set aside
+     */
+    public static final class SetAside extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        SetAside(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Why an entry's projected future failed: its transfer key was already in
+     * transactions, so the tables skipped it
+     */
+    public static final class DuplicateKey extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        DuplicateKey(String message) {
+            super(message);
+        }
+    }
+
+    private final ChatRepository repository;
+    private final LinkedBlockingQueue<LedgerWal.Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    // Last sequence number written or set aside; writer thread (or startup) only
+    private long projectedSeq;
+    private final LongAdder setAside = new LongAdder();
+    // Told each time the checkpoint moves, so the log can drop what it no longer needs
+    private LongConsumer checkpointed = seq -> {};
+
+    private final Metrics.Summary batchSizes;
+    private final Metrics.Timer commitTimer;
+
+    public LedgerProjector(ChatRepository repository, Metrics metrics) {
+        this.repository = repository;
+        this.batchSizes = metrics.summary("ledger_projection_batch_entries", "Ledger entries written to the database per batch");
+        this.commitTimer = metrics.timer("ledger_projection_commit_seconds", "Time to write a batch of ledger entries to the database");
+        this.writer = new Thread(this::run, "ledger-projector");
+        this.writer.setDaemon(true);
+    }
+
+    public void start(LongConsumer checkpointed) {
+        this.checkpointed = checkpointed;
+        writer.start();
+    }
+
+    /**
+     * Queue entries that just became durable, in sequence order
+     */
+    public void enqueue(List<LedgerWal.Pending> entries) {
+        queue.addAll(entries);
+    }
+
+    /**
+     * Write entries synchronously (startup replay, before the writer runs)
+     */
+    public void projectNow(List<LedgerWal.Pending> entries) throws Exception {
+        for (int i = 0; i < entries.size(); i += MAX_BATCH) {
+            projectOrSetAside(new ArrayList<>(entries.subList(i, Math.min(entries.size(), i + MAX_BATCH))));
+        }
+    }
+
+    private void run() {
+        List<LedgerWal.Pending> batch = new ArrayList<>(MAX_BATCH);
+        while (running || !queue.isEmpty()) {
+            try {
+                LedgerWal.Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+
+                while (true) {
+                    try {
+                        projectOrSetAside(batch);
+                        break;
+                    } catch (Exception e) {
+                        log.atWarn().addKeyValue("entries", batch.size()).setCause(e).log("ledger projection failed, retrying");
+                        Thread.sleep(1000);
+                    }
+                }
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void projectOrSetAside(List<LedgerWal.Pending> batch) throws Exception {
+        // A retry after a partial round skips what that round got done
+        batch.removeIf(p -> p.entry.seq() <= projectedSeq);
+        if (batch.isEmpty()) return;
+        try {
+            project(batch);
+        } catch (SQLException e) {
+            if (!ChatRepository.refused(e)) throw e;
+            for (LedgerWal.Pending p : batch) {
+                if (p.entry.seq() <= projectedSeq) continue;
+                try {
+                    project(List.of(p));
+                } catch (SQLException single) {
+                    if (!ChatRepository.refused(single)) throw single;
+                    setAside(p, single);
+                }
+            }
+        }
+    }
+
+    private void setAside(LedgerWal.Pending p, SQLException cause) throws SQLException {
+        repository.setAsideLedgerEntry(p.entry, cause.getMessage());
+        projectedSeq = p.entry.seq();
+        checkpointed.accept(projectedSeq);
+        setAside.increment();
+        log.atError().addKeyValue("seq", p.entry.seq()).addKeyValue("sender", p.entry.senderId())
+                .addKeyValue("receiver", p.entry.receiverId()).addKeyValue("cents", p.entry.amountCents())
+                .addKeyValue("conv", p.entry.convId()).setCause(cause).log("ledger entry refused by the database, set aside");
+        p.projected.completeExceptionally(new SetAside(cause.getMessage()));
+    }
+
+    private void project(List<LedgerWal.Pending> batch) throws Exception {
+        LedgerWal.Entry[] entries = new LedgerWal.Entry[batch.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = batch.get(i).entry;
+        }
+
+        long start = System.nanoTime();
+        ChatRepository.StoredMessage[] stored = repository.projectLedgerEntries(entries);
+        commitTimer.recordSince(start);
+        batchSizes.record(entries.length);
+        projectedSeq = entries[entries.length - 1].seq();
+        checkpointed.accept(projectedSeq);
+
+        for (int i = 0; i < stored.length; i++) {
+            LedgerWal.Pending p = batch.get(i);
+            if (stored[i] != null) {
+                p.projected.complete(stored[i]);
+            } else {
+                log.atWarn().addKeyValue("seq", p.entry.seq()).addKeyValue("transferKey", p.entry.transferKey())
+                        .log("ledger entry repeats a recorded transfer key, skipped");
+                p.projected.completeExceptionally(new DuplicateKey("Transfer key already recorded"));
+            }
+        }
+    }
+
+    public int backlog() {
+        return queue.size();
+    }
+
+    /**
+     * Entries refused by the database since startup
+     */
+    public long setAsideCount() {
+        return setAside.sum();
+    }
+
+    public String stats() {
+        return "batch " + batchSizes.describe() + " entries | commit " + commitTimer.describe() + " µs | backlog=" + queue.size()
+                + " set aside=" + setAside.sum();
+    }
+
+    /**
+     * Write whatever is still queued and stop
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            writer.join(10000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of ledger transfers, fsynced in groups.
+ *
+ * Appends only copy the record into a buffer. One sync thread writes whatever has
+ * accumulated and fsyncs it once, so while one fsync is in flight the next group
+ * is already forming. A transfer counts as done when its group has been fsynced;
+ * groups are then handed on (in sequence order) to whoever projects them.
+ *
+ * Records are fixed size with a CRC, so a torn tail after a crash is detected and cut off.
+ *
+ * The log is a series of segment files, ledger-<first seq>.wal. Once the current
+ * one passes SERVER_LEDGER_SEGMENT_MB the next group starts a new one, and a
+ * segment is deleted as soon as the checkpoint has moved past its last entry, so
+ * the log only holds what the tables haven't seen and a restart replays only that.
+ */
+public class LedgerWal {
+    private static final Logger log = LoggerFactory.getLogger(LedgerWal.class);
+
+    static final int RECORD_BYTES = 56;
+    private static final long SEGMENT_BYTES =
+            Long.parseLong(System.getenv().getOrDefault("SERVER_LEDGER_SEGMENT_MB", "64")) * 1024 * 1024;
+    // The single file the log used to be; read on recovery, then replaced by segments
+    private static final String LEGACY_FILE = "ledger.wal";
+
+    /**
+     * One transfer. transferKey is the client's idempotency key, or null.
+     */
+    public record Entry(long seq, int senderId, int receiverId, long amountCents, int convId, long atMillis,
+                        UUID transferKey) {}
+
+    /**
+     * An appended entry waiting to become durable and then to be projected
+     */
+    public static final class Pending {
+        public final Entry entry;
+        final CompletableFuture<Void> durable = new CompletableFuture<>();
+        public final CompletableFuture<ChatRepository.StoredMessage> projected = new CompletableFuture<>();
+
+        Pending(Entry entry) {
+            this.entry = entry;
+        }
+    }
+
+    private record Segment(Path file, long lastSeq) {}
+
+    private final Path dir;
+    // The segment being appended to; the sync thread's once started
+    private Path file;
+    private FileChannel channel;
+    private long lastWrittenSeq;
+    private Consumer<List<Pending>> onDurable;
+    private Thread syncer;
+    // Full segments whose entries may not all be in the tables yet, oldest first
+    private final Deque<Segment> full = new ArrayDeque<>();
+
+    // Guarded by this
+    private long nextSeq;
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private List<Pending> waiting = new ArrayList<>();
+    private boolean closed;
+    private IOException failure;
+
+    private final Metrics.Summary groupSizes;
+    private final Metrics.Timer fsyncTimer;
+
+    public LedgerWal(Path dir, Metrics metrics) throws IOException {
+        this.dir = dir;
+        this.groupSizes = metrics.summary("ledger_log_group_entries", "Ledger entries made durable per fsync");
+        this.fsyncTimer = metrics.timer("ledger_log_fsync_seconds", "Time to write and fsync a group of ledger entries");
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Read every intact entry of every segment, oldest first, cutting the log at the
+     * first torn or corrupt record
+     */
+    public List<Entry> recover() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        for (Path segment : segments()) {
+            try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (!recover(segment, in, entries)) break;
+            }
+        }
+        return entries;
+    }
+
+    // Existing segments in sequence order, the legacy file first
+    private List<Path> segments() throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (Files.exists(dir.resolve(LEGACY_FILE))) {
+            segments.add(dir.resolve(LEGACY_FILE));
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(f -> f.getFileName().toString().matches("ledger-\\d{20}\\.wal"))
+                    .sorted()
+                    .forEach(segments::add);
+        }
+        return segments;
+    }
+
+    // False if the segment had a torn tail; nothing after it can be trusted
+    private boolean recover(Path segment, FileChannel in, List<Entry> entries) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+        long position = 0;
+        CRC32 crc = new CRC32();
+        while (true) {
+            record.clear();
+            while (record.hasRemaining()) {
+                if (in.read(record, position + record.position()) < 0) break;
+            }
+            if (record.hasRemaining()) break;
+            record.flip();
+
+            crc.reset();
+            crc.update(record.array(), 0, RECORD_BYTES - 4);
+            if ((int) crc.getValue() != record.getInt(RECORD_BYTES - 4)) break;
+
+            long seq = record.getLong();
+            int senderId = record.getInt();
+            int receiverId = record.getInt();
+            long amountCents = record.getLong();
+            int convId = record.getInt();
+            long atMillis = record.getLong();
+            long keyHigh = record.getLong();
+            long keyLow = record.getLong();
+            UUID key = keyHigh == 0 && keyLow == 0 ? null : new UUID(keyHigh, keyLow);
+            entries.add(new Entry(seq, senderId, receiverId, amountCents, convId, atMillis, key));
+            position += RECORD_BYTES;
+        }
+        if (position < in.size()) {
+            log.atWarn().addKeyValue("file", segment).addKeyValue("position", position).log("ledger log has a torn tail, cutting it");
+            in.truncate(position);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Start a fresh log. Everything recovered must already be projected.
+     */
+    public void start(long nextSeq, Consumer<List<Pending>> onDurable) throws IOException {
+        for (Path segment : segments()) {
+            Files.delete(segment);
+        }
+        openSegment(nextSeq);
+        this.nextSeq = nextSeq;
+        this.onDurable = onDurable;
+        syncer = new Thread(this::syncLoop, "ledger-wal");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Give the transfer the next sequence number and queue it for the next fsync
+     */
+    public synchronized Pending append(int senderId, int receiverId, long amountCents, int convId, UUID transferKey) {
+        Pending pending = new Pending(new Entry(nextSeq++, senderId, receiverId, amountCents, convId,
+                System.currentTimeMillis(), transferKey));
+        if (closed || failure != null) {
+            pending.durable.completeExceptionally(failure != null ? failure : new IllegalStateException("Ledger log closed"));
+            return pending;
+        }
+        if (buffer.remaining() < RECORD_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        encode(pending.entry, buffer);
+        waiting.add(pending);
+        notifyAll();
+        return pending;
+    }
+
+    private static void encode(Entry e, ByteBuffer out) {
+        int start = out.position();
+        out.putLong(e.seq()).putInt(e.senderId()).putInt(e.receiverId())
+                .putLong(e.amountCents()).putInt(e.convId()).putLong(e.atMillis());
+        UUID key = e.transferKey();
+        out.putLong(key != null ? key.getMostSignificantBits() : 0)
+                .putLong(key != null ? key.getLeastSignificantBits() : 0);
+        CRC32 crc = new CRC32();
+        crc.update(out.array(), out.arrayOffset() + start, RECORD_BYTES - 4);
+        out.putInt((int) crc.getValue());
+    }
+
+    private void syncLoop() {
+        ByteBuffer spare = ByteBuffer.allocate(buffer.capacity());
+        while (true) {
+            ByteBuffer group;
+            List<Pending> batch;
+            synchronized (this) {
+                while (waiting.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Keep going until closed and drained
+                    }
+                }
+                if (waiting.isEmpty()) return;
+                group = buffer;
+                batch = waiting;
+                spare.clear();
+                buffer = spare.capacity() >= group.capacity() ? spare : ByteBuffer.allocate(group.capacity());
+                waiting = new ArrayList<>();
+            }
+
+            long start = System.nanoTime();
+            try {
+                group.flip();
+                while (group.hasRemaining()) {
+                    channel.write(group);
+                }
+                channel.force(false);
+                fsyncTimer.recordSince(start);
+                groupSizes.record(batch.size());
+                lastWrittenSeq = batch.get(batch.size() - 1).entry.seq();
+            } catch (IOException e) {
+                log.error("ledger log write failed, refusing further transfers", e);
+                synchronized (this) {
+                    failure = e;
+                }
+                for (Pending p : batch) {
+                    p.durable.completeExceptionally(e);
+                }
+                spare = group;
+                continue;
+            }
+
+            onDurable.accept(batch);
+            for (Pending p : batch) {
+                p.durable.complete(null);
+            }
+            spare = group;
+
+            try {
+                if (channel.size() >= SEGMENT_BYTES) {
+                    nextSegment();
+                }
+            } catch (IOException e) {
+                log.error("ledger log could not start a new segment, refusing further transfers", e);
+                synchronized (this) {
+                    failure = e;
+                }
+            }
+        }
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        file = dir.resolve(String.format("ledger-%020d.wal", firstSeq));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        // The new file's directory entry has to be durable too
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+    }
+
+    // Sync thread; the full segment waits for the checkpoint to pass it
+    private void nextSegment() throws IOException {
+        channel.close();
+        synchronized (full) {
+            full.add(new Segment(file, lastWrittenSeq));
+        }
+        openSegment(lastWrittenSeq + 1);
+    }
+
+    /**
+     * Every entry up to seq is in the tables: delete the segments holding only those
+     */
+    public void checkpoint(long seq) {
+        synchronized (full) {
+            while (!full.isEmpty() && full.peek().lastSeq() <= seq) {
+                Segment done = full.poll();
+                try {
+                    Files.deleteIfExists(done.file());
+                } catch (IOException e) {
+                    log.atWarn().addKeyValue("file", done.file()).setCause(e).log("failed to delete ledger segment");
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isFailed() {
+        return failure != null;
+    }
+
+    public String stats() {
+        int segments;
+        synchronized (full) {
+            segments = full.size() + 1;
+        }
+        return "group " + groupSizes.describe() + " entries | fsync " + fsyncTimer.describe() + " µs | segments=" + segments;
+    }
+
+    /**
+     * Stop accepting entries, sync what is buffered and close the file
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (syncer != null) syncer.join(5000);
+            if (channel != null) channel.close();
+        } catch (Exception e) {
+            log.error("failed to close ledger log", e);
+        }
+    }
+}
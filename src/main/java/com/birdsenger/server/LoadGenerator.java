@@ -0,0 +1,482 @@
+package com.birdsenger.server;
+
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.json.JSONObject;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load test for the socket server: thousands of virtual users on the
+ * same io.socket client the app uses, each driven by its own virtual thread.
+ *
+ * Usage:
+ *   LoadGenerator [--url http://localhost:9092] [--users 1000] [--seconds 60] [--ramp 10]
+ *                 [--rate 0.5] [--mix direct=70,group=15,money=10,friend=5]
+ *                 [--group-size 8] [--seed] [--server PORT]
+ *
+ * The users are load_1..load_N. --seed creates whatever is missing of them in the
+ * database named by DB_HOST/DB_NAME/...: the users (with a large balance), friends
+ * in pairs with a 1-on-1 conversation each, and groups of --group-size. Point it at
+ * a local Postgres that has the BirdSenger schema, never at production.
+ * --server also starts a SocketServer on PORT in this JVM against the same database.
+ *
+ * Each user connects, sends user_connected and then acts --rate times per second
+ * (Poisson arrivals), picking from the mix. Messages carry their send time, so
+ * receivers record end-to-end delivery latency; send acks, money_received and
+ * friend_request_response are timed too. Histograms are printed every 10 seconds.
+ * Latencies include the client's single event thread, which is shared by all users.
+ */
+public class LoadGenerator {
+    private static final String CONTENT_PREFIX = "load ";
+
+    private record Fixture(int[] userIds, String[] usernames, int[] pairConversations, int[] groupConversations) {}
+
+    private final String url;
+    private final double ratePerSecond;
+    private final String[] actions;
+    private final int[] cumulativeWeights;
+    private final Fixture fixture;
+    private final OkHttpClient http;
+
+    private final Histogram directDelivery = new Histogram("µs");
+    private final Histogram groupDelivery = new Histogram("µs");
+    private final Histogram messageAck = new Histogram("µs");
+    private final Histogram moneyAck = new Histogram("µs");
+    private final Histogram moneyReceived = new Histogram("µs");
+    private final Histogram friendResponse = new Histogram("µs");
+    private final LongAdder connected = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final ConcurrentHashMap<String, Long> transfersInFlight = new ConcurrentHashMap<>();
+
+    private LoadGenerator(String url, double ratePerSecond, String mix, Fixture fixture) {
+        this.url = url;
+        this.ratePerSecond = ratePerSecond;
+        this.fixture = fixture;
+
+        String[] parts = mix.split(",");
+        actions = new String[parts.length];
+        cumulativeWeights = new int[parts.length];
+        int total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            String[] kv = parts[i].split("=");
+            actions[i] = kv[0].trim();
+            total += Integer.parseInt(kv[1].trim());
+            cumulativeWeights[i] = total;
+        }
+
+        // One HTTP stack for every socket. OkHttp runs each websocket's reader on its
+        // dispatcher, so give it virtual threads and lift its per-host limit
+        Dispatcher dispatcher = new Dispatcher(Executors.newVirtualThreadPerTaskExecutor());
+        dispatcher.setMaxRequests(Integer.MAX_VALUE);
+        dispatcher.setMaxRequestsPerHost(Integer.MAX_VALUE);
+        http = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .readTimeout(1, TimeUnit.MINUTES)
+                .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://localhost:9092";
+        int users = 1000;
+        int seconds = 60;
+        int ramp = 10;
+        double rate = 0.5;
+        String mix = "direct=70,group=15,money=10,friend=5";
+        int groupSize = 8;
+        boolean seed = false;
+        int serverPort = -1;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url" -> url = args[++i];
+                case "--users" -> users = Integer.parseInt(args[++i]);
+                case "--seconds" -> seconds = Integer.parseInt(args[++i]);
+                case "--ramp" -> ramp = Integer.parseInt(args[++i]);
+                case "--rate" -> rate = Double.parseDouble(args[++i]);
+                case "--mix" -> mix = args[++i];
+                case "--group-size" -> groupSize = Integer.parseInt(args[++i]);
+                case "--seed" -> seed = true;
+                case "--server" -> serverPort = Integer.parseInt(args[++i]);
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        Fixture fixture;
+        ServerDatabase database = new ServerDatabase("load-generator", 4);
+        try {
+            fixture = loadFixture(database, users, groupSize, seed);
+        } finally {
+            database.close();
+        }
+
+        SocketServer server = null;
+        if (serverPort != -1) {
+            server = new SocketServer(serverPort, "load-" + serverPort, "local", "sql");
+            server.start();
+            url = "http://localhost:" + serverPort;
+        }
+
+        LoadGenerator generator = new LoadGenerator(url, rate, mix, fixture);
+        generator.run(users, seconds, ramp);
+
+        if (server != null) {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private void run(int users, int seconds, int rampSeconds) throws InterruptedException {
+        System.out.println("🚀 " + users + " virtual users against " + url + " for " + seconds + "s (ramp "
+                + rampSeconds + "s, " + ratePerSecond + " actions/s each)");
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "load-report");
+            t.setDaemon(true);
+            return t;
+        });
+        reporter.scheduleAtFixedRate(this::report, 10, 10, TimeUnit.SECONDS);
+
+        long rampNanos = TimeUnit.SECONDS.toNanos(rampSeconds);
+        long endNanos = System.nanoTime() + rampNanos + TimeUnit.SECONDS.toNanos(seconds);
+        List<VirtualUser> started = new ArrayList<>();
+        try (ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < users; i++) {
+                VirtualUser user = new VirtualUser(i, rampNanos * i / users, endNanos);
+                started.add(user);
+                threads.execute(user::run);
+            }
+        }
+        reporter.shutdownNow();
+
+        System.out.println("🏁 Done");
+        report();
+        for (VirtualUser user : started) {
+            user.close();
+        }
+    }
+
+    private void report() {
+        System.out.println("📊 connected=" + connected.sum() + " connect failures=" + connectFailures.sum()
+                + " sent=" + sent.sum() + " failed=" + failed.sum() + " rate limited=" + rateLimited.sum());
+        System.out.println("📊   direct delivery " + directDelivery.summary());
+        System.out.println("📊   group delivery  " + groupDelivery.summary());
+        System.out.println("📊   message ack     " + messageAck.summary());
+        System.out.println("📊   money ack       " + moneyAck.summary());
+        System.out.println("📊   money received  " + moneyReceived.summary());
+        System.out.println("📊   friend response " + friendResponse.summary());
+    }
+
+    private final class VirtualUser {
+        final int index;
+        final int userId;
+        final long startDelayNanos;
+        final long endNanos;
+        Socket socket;
+        volatile long friendRequestStarted;
+
+        VirtualUser(int index, long startDelayNanos, long endNanos) {
+            this.index = index;
+            this.userId = fixture.userIds()[index];
+            this.startDelayNanos = startDelayNanos;
+            this.endNanos = endNanos;
+        }
+
+        void run() {
+            try {
+                TimeUnit.NANOSECONDS.sleep(startDelayNanos);
+                if (!connect()) {
+                    connectFailures.increment();
+                    return;
+                }
+                connected.increment();
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (true) {
+                    long pauseNanos = (long) (-Math.log(1 - random.nextDouble()) / ratePerSecond * 1e9);
+                    if (System.nanoTime() + pauseNanos >= endNanos) break;
+                    TimeUnit.NANOSECONDS.sleep(pauseNanos);
+                    act(pick(random.nextInt(cumulativeWeights[cumulativeWeights.length - 1])));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                System.err.println("❌ Virtual user " + userId + " failed: " + e.getMessage());
+            }
+        }
+
+        boolean connect() throws Exception {
+            IO.Options options = new IO.Options();
+            options.forceNew = true;
+            options.transports = new String[]{"websocket"};
+            options.callFactory = http;
+            options.webSocketFactory = http;
+
+            CountDownLatch ready = new CountDownLatch(1);
+            socket = IO.socket(url, options);
+            socket.on(Socket.EVENT_CONNECT, args -> {
+                Map<String, Object> data = new HashMap<>();
+                data.put("userId", userId);
+                socket.emit("user_connected", new JSONObject(data));
+                ready.countDown();
+            });
+            socket.on("new_message", args -> onMessage((JSONObject) args[0]));
+            socket.on("money_received", args -> {
+                Long startedAt = transfersInFlight.remove(((JSONObject) args[0]).optString("transferKey"));
+                if (startedAt != null) {
+                    moneyReceived.record((System.nanoTime() - startedAt) / 1000);
+                }
+            });
+            socket.on("friend_request_response", args -> {
+                long startedAt = friendRequestStarted;
+                if (startedAt != 0) {
+                    friendResponse.record((System.nanoTime() - startedAt) / 1000);
+                    friendRequestStarted = 0;
+                }
+                // Requests to existing friends are refused; that's expected load, not a failure
+                if (((JSONObject) args[0]).optBoolean("rateLimited", false)) {
+                    rateLimited.increment();
+                }
+            });
+            socket.on("rate_limited", args -> rateLimited.increment());
+            socket.connect();
+            return ready.await(10, TimeUnit.SECONDS);
+        }
+
+        void onMessage(JSONObject msg) {
+            String content = msg.optString("content", "");
+            if (msg.optInt("senderId") == userId || !content.startsWith(CONTENT_PREFIX)) return;
+            // "load d <nanos>" or "load g <nanos>"
+            long sentAt = Long.parseLong(content.substring(CONTENT_PREFIX.length() + 2));
+            long micros = (System.nanoTime() - sentAt) / 1000;
+            (content.charAt(CONTENT_PREFIX.length()) == 'g' ? groupDelivery : directDelivery).record(micros);
+        }
+
+        String pick(int roll) {
+            for (int i = 0; i < cumulativeWeights.length; i++) {
+                if (roll < cumulativeWeights[i]) return actions[i];
+            }
+            return actions[actions.length - 1];
+        }
+
+        void act(String action) {
+            int pairConv = fixture.pairConversations()[index];
+            int groupConv = fixture.groupConversations()[index];
+            switch (action) {
+                case "group" -> {
+                    if (groupConv != -1) sendMessage(groupConv, 'g');
+                }
+                case "money" -> {
+                    if (pairConv != -1) sendMoney(fixture.userIds()[index ^ 1], pairConv);
+                }
+                case "friend" -> sendFriendRequest();
+                default -> {
+                    if (pairConv != -1) sendMessage(pairConv, 'd');
+                }
+            }
+        }
+
+        void sendMessage(int convId, char kind) {
+            long startedAt = System.nanoTime();
+            Map<String, Object> data = new HashMap<>();
+            data.put("conversationId", convId);
+            data.put("senderId", userId);
+            data.put("content", CONTENT_PREFIX + kind + " " + startedAt);
+            data.put("messageType", "text");
+            sent.increment();
+            socket.emit("send_message", new Object[]{new JSONObject(data)}, args -> {
+                messageAck.record((System.nanoTime() - startedAt) / 1000);
+                countRejection((JSONObject) args[0]);
+            });
+        }
+
+        void sendMoney(int receiverId, int convId) {
+            long startedAt = System.nanoTime();
+            String key = UUID.randomUUID().toString();
+            transfersInFlight.put(key, startedAt);
+            Map<String, Object> data = new HashMap<>();
+            data.put("senderId", userId);
+            data.put("receiverId", receiverId);
+            data.put("amount", 0.01);
+            data.put("conversationId", convId);
+            data.put("transferKey", key);
+            sent.increment();
+            socket.emit("send_money", new Object[]{new JSONObject(data)}, args -> {
+                moneyAck.record((System.nanoTime() - startedAt) / 1000);
+                if (!((JSONObject) args[0]).optBoolean("success", false)) {
+                    transfersInFlight.remove(key);
+                }
+                countRejection((JSONObject) args[0]);
+            });
+        }
+
+        void sendFriendRequest() {
+            int target = ThreadLocalRandom.current().nextInt(fixture.usernames().length);
+            Map<String, Object> data = new HashMap<>();
+            data.put("senderId", userId);
+            data.put("receiverUsername", fixture.usernames()[target]);
+            friendRequestStarted = System.nanoTime();
+            sent.increment();
+            socket.emit("send_friend_request", new JSONObject(data));
+        }
+
+        void countRejection(JSONObject result) {
+            if (result.optBoolean("rateLimited", false)) {
+                rateLimited.increment();
+            } else if (!result.optBoolean("success", true)) {
+                failed.increment();
+            }
+        }
+
+        void close() {
+            if (socket != null) {
+                socket.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Users load_1..load_N, paired up as friends (1 with 2, 3 with 4, ...) with a
+     * 1-on-1 conversation per pair, and in groups of groupSize. Conversations are
+     * found again by name (load-pair-P, load-group-G). With seed, missing rows are
+     * created first.
+     */
+    private static Fixture loadFixture(ServerDatabase database, int users, int groupSize, boolean seed)
+            throws SQLException {
+        String[] usernames = new String[users];
+        for (int i = 0; i < users; i++) {
+            usernames[i] = "load_" + (i + 1);
+        }
+
+        try (Connection conn = database.getConnection()) {
+            if (seed) {
+                seedUsers(conn, users);
+            }
+
+            int[] userIds = new int[users];
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT id, username FROM users WHERE username = ANY(?::text[])")) {
+                stmt.setObject(1, usernames);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        userIds[Integer.parseInt(rs.getString(2).substring("load_".length())) - 1] = rs.getInt(1);
+                    }
+                }
+            }
+            for (int i = 0; i < users; i++) {
+                if (userIds[i] == 0) {
+                    throw new IllegalStateException("User " + usernames[i] + " doesn't exist; run with --seed");
+                }
+            }
+
+            Map<String, Integer> conversations = new HashMap<>();
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "SELECT id, name FROM conversations WHERE name LIKE 'load-%'");
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    conversations.put(rs.getString(2), rs.getInt(1));
+                }
+            }
+
+            int[] pairConversations = new int[users];
+            int[] groupConversations = new int[users];
+            conn.setAutoCommit(false);
+            try {
+                for (int i = 0; i < users; i++) {
+                    int partner = i ^ 1;
+                    pairConversations[i] = partner < users
+                            ? conversation(conn, conversations, "load-pair-" + (i / 2), false, seed, userIds[i], userIds[partner])
+                            : -1;
+
+                    int first = i / groupSize * groupSize;
+                    int last = Math.min(first + groupSize, users);
+                    int[] members = new int[last - first];
+                    System.arraycopy(userIds, first, members, 0, members.length);
+                    groupConversations[i] = members.length > 2
+                            ? conversation(conn, conversations, "load-group-" + (i / groupSize), true, seed, members)
+                            : -1;
+                }
+                conn.commit();
+            } finally {
+                conn.setAutoCommit(true);
+            }
+
+            System.out.println("👥 Load fixture: " + users + " users, " + conversations.size() + " conversations");
+            return new Fixture(userIds, usernames, pairConversations, groupConversations);
+        }
+    }
+
+    private static void seedUsers(Connection conn, int users) throws SQLException {
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO users (first_name, last_name, email, username, password_hash, " +
+                "security_question, security_answer, balance) " +
+                "SELECT 'Load', 'User ' || g, 'load_' || g || '@load.test', 'load_' || g, '-', 'load', 'load', 1000000 " +
+                "FROM generate_series(1, ?) g " +
+                "WHERE NOT EXISTS (SELECT 1 FROM users u WHERE u.username = 'load_' || g)");
+             PreparedStatement topUp = conn.prepareStatement(
+                     "UPDATE users SET balance = 1000000 WHERE username LIKE 'load\\_%'")) {
+            insert.setInt(1, users);
+            int created = insert.executeUpdate();
+            topUp.executeUpdate();
+            System.out.println("🌱 Seeded " + created + " new load users");
+        }
+    }
+
+    // Id of the named conversation, creating it (and the friendship, for pairs) if seeding
+    private static int conversation(Connection conn, Map<String, Integer> conversations, String name,
+                                    boolean group, boolean seed, int... members) throws SQLException {
+        Integer existing = conversations.get(name);
+        if (existing != null) return existing;
+        if (!seed) return -1;
+
+        int convId;
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO conversations (name, is_group, created_by) VALUES (?, ?, ?) RETURNING id")) {
+            stmt.setString(1, name);
+            stmt.setBoolean(2, group);
+            stmt.setInt(3, members[0]);
+            try (ResultSet rs = stmt.executeQuery()) {
+                rs.next();
+                convId = rs.getInt(1);
+            }
+        }
+        try (PreparedStatement stmt = conn.prepareStatement(
+                "INSERT INTO conversation_members (conversation_id, user_id) SELECT ?, unnest(?::int4[])")) {
+            stmt.setInt(1, convId);
+            stmt.setObject(2, members);
+            stmt.executeUpdate();
+        }
+        if (!group) {
+            try (PreparedStatement stmt = conn.prepareStatement(
+                    "INSERT INTO friendships (user_id, friend_id) VALUES (?, ?), (?, ?) ON CONFLICT DO NOTHING")) {
+                stmt.setInt(1, members[0]);
+                stmt.setInt(2, members[1]);
+                stmt.setInt(3, members[1]);
+                stmt.setInt(4, members[0]);
+                stmt.executeUpdate();
+            }
+        }
+        conversations.put(name, convId);
+        return convId;
+    }
+}
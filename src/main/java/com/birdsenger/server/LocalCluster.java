@@ -0,0 +1,115 @@
+package com.birdsenger.server;
+
+import io.socket.client.IO;
+import io.socket.client.Socket;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs several socket server nodes on consecutive ports in one JVM.
+ *
+ * Usage:
+ *   LocalCluster [--nodes 3] [--base-port 9092] [--bus local|postgres]
+ *                [--check SENDER_ID RECEIVER_ID CONVERSATION_ID]
+ *
+ * Transfers always go through SQL here: the in-memory ledger needs a single node.
+ *
+ * Without --check the nodes run until the process is stopped. With --check the
+ * sender connects to the first node and the receiver to the last one, the sender
+ * sends a message, and the run passes if the receiver gets it through the other
+ * node. The check writes one real message into the given conversation, so point it
+ * at a test database. Exit code 0 means the message crossed nodes.
+ */
+public class LocalCluster {
+
+    public static void main(String[] args) throws Exception {
+        int nodes = 3;
+        int basePort = 9092;
+        String bus = "local";
+        int[] check = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--nodes" -> nodes = Integer.parseInt(args[++i]);
+                case "--base-port" -> basePort = Integer.parseInt(args[++i]);
+                case "--bus" -> bus = args[++i];
+                case "--check" -> check = new int[]{
+                        Integer.parseInt(args[++i]), Integer.parseInt(args[++i]), Integer.parseInt(args[++i])};
+                default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        List<SocketServer> servers = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            int port = basePort + i;
+            SocketServer server = new SocketServer(port, "node-" + port, bus, "sql");
+            server.start();
+            servers.add(server);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> servers.forEach(SocketServer::stop)));
+        System.out.println("🚀 Local cluster running: " + nodes + " nodes on ports " + basePort + "-" + (basePort + nodes - 1));
+
+        if (check == null) {
+            Thread.currentThread().join();
+            return;
+        }
+
+        boolean passed = runCheck(basePort, basePort + nodes - 1, check[0], check[1], check[2]);
+        System.out.println(passed ? "✅ Message crossed nodes" : "❌ Message did not arrive on the other node");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static boolean runCheck(int senderPort, int receiverPort, int senderId, int receiverId, int convId)
+            throws Exception {
+        String content = "cluster check " + System.currentTimeMillis();
+        CountDownLatch connected = new CountDownLatch(2);
+        CountDownLatch received = new CountDownLatch(1);
+
+        Socket receiver = connect(receiverPort, receiverId, connected);
+        receiver.on("new_message", args -> {
+            JSONObject msg = (JSONObject) args[0];
+            if (content.equals(msg.optString("content"))) {
+                received.countDown();
+            }
+        });
+        Socket sender = connect(senderPort, senderId, connected);
+
+        try {
+            if (!connected.await(10, TimeUnit.SECONDS)) {
+                System.err.println("❌ Clients could not connect");
+                return false;
+            }
+            // Let the ownership announcements reach every node
+            Thread.sleep(1000);
+
+            Map<String, Object> data = new HashMap<>();
+            data.put("conversationId", convId);
+            data.put("senderId", senderId);
+            data.put("content", content);
+            sender.emit("send_message", new JSONObject(data));
+
+            return received.await(10, TimeUnit.SECONDS);
+        } finally {
+            sender.disconnect();
+            receiver.disconnect();
+        }
+    }
+
+    private static Socket connect(int port, int userId, CountDownLatch connected) throws Exception {
+        Socket socket = IO.socket("http://localhost:" + port);
+        socket.on(Socket.EVENT_CONNECT, args -> {
+            Map<String, Object> data = new HashMap<>();
+            data.put("userId", userId);
+            socket.emit("user_connected", new JSONObject(data));
+            connected.countDown();
+        });
+        socket.connect();
+        return socket;
+    }
+}
@@ -0,0 +1,77 @@
+package com.birdsenger.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Cluster bus between nodes running in the same JVM.
+ *
+ * This is what a single standalone server uses (a cluster of one), and what
+ * LocalCluster uses to run several nodes in one process without a database
+ * round trip per event. Each node receives on its own thread, like it would
+ * from a real network.
+ */
+public class LocalClusterBus implements ClusterBus {
+
+    private record Node(Consumer<String> receiver, ExecutorService inbox) {}
+
+    private static final Map<String, Node> NODES = new ConcurrentHashMap<>();
+
+    private String nodeId;
+    private final LongAdder sent = new LongAdder();
+
+    @Override
+    public void start(String nodeId, Consumer<String> receiver) {
+        this.nodeId = nodeId;
+        ExecutorService inbox = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "cluster-inbox-" + nodeId);
+            t.setDaemon(true);
+            return t;
+        });
+        if (NODES.putIfAbsent(nodeId, new Node(receiver, inbox)) != null) {
+            inbox.shutdown();
+            throw new IllegalStateException("Node " + nodeId + " is already running in this JVM");
+        }
+    }
+
+    @Override
+    public void send(String targetNode, String message) {
+        if (BROADCAST.equals(targetNode)) {
+            for (Node node : NODES.values()) {
+                deliver(node, message);
+            }
+        } else {
+            Node node = NODES.get(targetNode);
+            if (node != null) {
+                deliver(node, message);
+            }
+        }
+    }
+
+    private void deliver(Node node, String message) {
+        sent.increment();
+        try {
+            node.inbox().execute(() -> node.receiver().accept(message));
+        } catch (Exception e) {
+            // Node is shutting down
+        }
+    }
+
+    @Override
+    public String stats() {
+        return "bus=local nodes=" + NODES.size() + " sent=" + sent.sum();
+    }
+
+    @Override
+    public void close() {
+        if (nodeId == null) return;
+        Node node = NODES.remove(nodeId);
+        if (node != null) {
+            node.inbox().shutdown();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.birdsenger.server;
+
+import java.util.Locale;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Case-insensitive username / email -> user id.
+ *
+ * One open-addressing table of parallel arrays (hash, id, lower-cased name)
+ * instead of a map entry and a boxed id per name. Reads are optimistic and don't
+ * lock; writes (startup load and signups) take the write lock.
+ *
+ * Two accounts whose names only differ in case share a key; such a key is marked
+ * ambiguous and callers fall back to an exact database lookup.
+ */
+public class LoginIndex {
+    public static final int MISSING = -1;
+    public static final int AMBIGUOUS = -2;
+
+    private final StampedLock lock = new StampedLock();
+    private int[] hashes;
+    private int[] ids;
+    private String[] names;
+    private int size;
+
+    public LoginIndex() {
+        allocate(1024);
+    }
+
+    /**
+     * Id for a username or email, MISSING, or AMBIGUOUS
+     */
+    public int get(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        int hash = key.hashCode();
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int id = find(hashes, ids, names, key, hash);
+                if (lock.validate(stamp)) {
+                    return id;
+                }
+            } catch (RuntimeException e) {
+                // The table grew while we read it; retry under the lock
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(hashes, ids, names, key, hash);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    public void put(String name, int id) {
+        if (name == null || name.isEmpty()) return;
+        String key = name.toLowerCase(Locale.ROOT);
+        int hash = key.hashCode();
+
+        long stamp = lock.writeLock();
+        try {
+            int slot = slot(hashes, names, key, hash);
+            if (names[slot] != null) {
+                if (ids[slot] != id) ids[slot] = AMBIGUOUS;
+                return;
+            }
+            if ((size + 1) * 2 > names.length) {
+                grow();
+                slot = slot(hashes, names, key, hash);
+            }
+            hashes[slot] = hash;
+            ids[slot] = id;
+            names[slot] = key;
+            size++;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // May run against a table that is being changed; the caller validates the stamp
+    private static int find(int[] hashes, int[] ids, String[] names, String key, int hash) {
+        int mask = names.length - 1;
+        for (int i = spread(hash) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            String name = names[i];
+            if (name == null) return MISSING;
+            if (hashes[i] == hash && name.equals(key)) return ids[i];
+        }
+        return MISSING;
+    }
+
+    private static int slot(int[] hashes, String[] names, String key, int hash) {
+        int mask = names.length - 1;
+        int i = spread(hash) & mask;
+        while (names[i] != null && !(hashes[i] == hash && names[i].equals(key))) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        ids = new int[capacity];
+        names = new String[capacity];
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        int[] oldIds = ids;
+        String[] oldNames = names;
+        allocate(oldNames.length * 2);
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = slot(hashes, names, oldNames[i], oldHashes[i]);
+                hashes[slot] = oldHashes[i];
+                ids[slot] = oldIds[i];
+                names[slot] = oldNames[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-resident copy of conversation_members so message fan-out needs no query.
+ *
+ * Both directions are kept as sorted int arrays that are replaced (never mutated)
+ * on change, so readers never lock. Writes are rare (new chats, new groups) and are
+ * serialized on the index.
+ *
+ * Memory: a 1-on-1 conversation costs roughly 72 bytes on the conversation side
+ * (map node + boxed key + int[2]) plus 8 bytes spread over its two members' arrays,
+ * so 1M conversations is in the order of 90 MB. estimatedBytes() gives the live figure.
+ */
+public class MembershipIndex {
+    private static final Logger log = LoggerFactory.getLogger(MembershipIndex.class);
+
+    private static final int[] EMPTY = new int[0];
+
+    // Rough HotSpot sizes (compressed oops) used for memory accounting
+    private static final int ENTRY_OVERHEAD = 32 + 16 + 8; // map node + Integer key + table slot
+    private static final int ARRAY_HEADER = 16;
+
+    private final ChatRepository repository;
+    private final ConcurrentHashMap<Integer, int[]> membersByConversation = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, int[]> conversationsByUser = new ConcurrentHashMap<>();
+
+    public MembershipIndex(ChatRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Replace the whole index with the current contents of conversation_members
+     */
+    public synchronized void loadAll() throws SQLException {
+        Map<Integer, IntList> byConversation = new HashMap<>();
+        Map<Integer, IntList> byUser = new HashMap<>();
+
+        // Rows come ordered by (conversation_id, user_id), so both sides fill in sorted order
+        repository.forEachMembership((convId, userId) -> {
+            byConversation.computeIfAbsent(convId, k -> new IntList()).add(userId);
+            byUser.computeIfAbsent(userId, k -> new IntList()).add(convId);
+        });
+
+        membersByConversation.clear();
+        conversationsByUser.clear();
+        byConversation.forEach((convId, members) -> membersByConversation.put(convId, members.toArray()));
+        byUser.forEach((userId, convs) -> conversationsByUser.put(userId, convs.toArray()));
+        log.info("membership index loaded: {}", stats());
+    }
+
+    /**
+     * Members of a conversation. Unknown conversations (created out of band) are
+     * loaded from the database once and cached.
+     */
+    public int[] members(int convId) throws SQLException {
+        int[] members = membersByConversation.get(convId);
+        if (members != null) {
+            return members;
+        }
+        return reload(convId);
+    }
+
+    public int[] conversations(int userId) {
+        return conversationsByUser.getOrDefault(userId, EMPTY);
+    }
+
+    public boolean isMember(int convId, int userId) throws SQLException {
+        return Arrays.binarySearch(members(convId), userId) >= 0;
+    }
+
+    /**
+     * Record a conversation created by the server (friend request accepted, group created)
+     */
+    public synchronized void addConversation(int convId, int... userIds) {
+        int[] sorted = userIds.clone();
+        Arrays.sort(sorted);
+        setMembers(convId, sorted);
+    }
+
+    public synchronized void addMember(int convId, int userId) {
+        int[] current = membersByConversation.getOrDefault(convId, EMPTY);
+        setMembers(convId, union(current, new int[]{userId}));
+    }
+
+    public synchronized void removeMember(int convId, int userId) {
+        int[] current = membersByConversation.getOrDefault(convId, EMPTY);
+        setMembers(convId, remove(current, userId));
+    }
+
+    /**
+     * Drop what we know about a conversation and re-read it from the database.
+     * Used when membership changed outside the server (e.g. a client created a group).
+     */
+    public synchronized int[] reload(int convId) throws SQLException {
+        int[] fresh = repository.findConversationMemberIds(convId);
+        Arrays.sort(fresh);
+        setMembers(convId, fresh);
+        return fresh;
+    }
+
+    // Caller holds the lock
+    private void setMembers(int convId, int[] newMembers) {
+        int[] old = membersByConversation.getOrDefault(convId, EMPTY);
+
+        for (int userId : old) {
+            if (Arrays.binarySearch(newMembers, userId) < 0) {
+                int[] remaining = remove(conversationsByUser.getOrDefault(userId, EMPTY), convId);
+                if (remaining.length == 0) conversationsByUser.remove(userId);
+                else conversationsByUser.put(userId, remaining);
+            }
+        }
+        for (int userId : newMembers) {
+            if (Arrays.binarySearch(old, userId) < 0) {
+                conversationsByUser.put(userId, union(conversationsByUser.getOrDefault(userId, EMPTY), new int[]{convId}));
+            }
+        }
+
+        if (newMembers.length == 0) membersByConversation.remove(convId);
+        else membersByConversation.put(convId, newMembers);
+    }
+
+    /**
+     * Approximate heap used by the index
+     */
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (int[] members : membersByConversation.values()) {
+            bytes += ENTRY_OVERHEAD + arrayBytes(members.length);
+        }
+        for (int[] convs : conversationsByUser.values()) {
+            bytes += ENTRY_OVERHEAD + arrayBytes(convs.length);
+        }
+        return bytes;
+    }
+
+    public String stats() {
+        return String.format("conversations=%d users=%d ~%.1fMB",
+                membersByConversation.size(), conversationsByUser.size(), estimatedBytes() / (1024.0 * 1024.0));
+    }
+
+    // An int array filled by appending while loading, trimmed once at the end
+    private static final class IntList {
+        int[] values = new int[2];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return size == values.length ? values : Arrays.copyOf(values, size);
+        }
+    }
+
+    private static long arrayBytes(int length) {
+        // int[] payload rounded up to 8-byte alignment
+        return ARRAY_HEADER + ((length * 4L + 7) & ~7L);
+    }
+
+    // Sorted-set union of two sorted arrays
+    private static int[] union(int[] a, int[] b) {
+        int[] out = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j >= b.length || (i < a.length && a[i] < b[j])) next = a[i++];
+            else if (i >= a.length || b[j] < a[i]) next = b[j++];
+            else { next = a[i++]; j++; }
+            out[n++] = next;
+        }
+        return n == out.length ? out : Arrays.copyOf(out, n);
+    }
+
+    private static int[] remove(int[] sorted, int value) {
+        int idx = Arrays.binarySearch(sorted, value);
+        if (idx < 0) return sorted;
+        int[] out = new int[sorted.length - 1];
+        System.arraycopy(sorted, 0, out, 0, idx);
+        System.arraycopy(sorted, idx + 1, out, idx, sorted.length - idx - 1);
+        return out;
+    }
+}
@@ -0,0 +1,355 @@
+package com.birdsenger.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Messages of partitions that were detached from the database, in compressed files.
+ *
+ * Each archived partition is two files in the archive directory: <partition>.gz
+ * holds each conversation's rows in (timestamp, id) order, split into gzip members
+ * of BLOCK_ROWS rows, and <partition>.idx says where each block starts, how long it
+ * is, its first row and the range of ids in it. A history page decompresses only
+ * the blocks it reads from, newest first, skipping those entirely after the cursor.
+ * The message_archives table lists the archived partitions; in a cluster the
+ * directory must be storage every node can read.
+ */
+public class MessageArchive {
+    // The archive list changes about once a month; other nodes pick up a new entry within this
+    private static final long LIST_TTL_NANOS = TimeUnit.SECONDS.toNanos(60);
+    // A few history pages per block, so a page inflates one or two of them
+    private static final int BLOCK_ROWS = 256;
+
+    private static final String SELECT_ARCHIVES =
+            "SELECT partition_name, file FROM message_archives ORDER BY range_to DESC";
+    private static final String SELECT_TIMESTAMP =
+            "SELECT timestamp FROM messages WHERE id = ?";
+    // %s is a partition name from pg_class, see MessagePartitions
+    private static final String SELECT_PARTITION_ROWS =
+            "SELECT conversation_id, id, sender_id, timestamp, message_type, content FROM %s " +
+            "ORDER BY conversation_id, timestamp, id";
+
+    private record Archive(String partition, Path file) {}
+
+    // A gzip member of one conversation's rows within an archive file
+    private record Block(long offset, int length, int rows, long firstMicros, int firstId, int minId, int maxId) {}
+
+    // The block being written
+    private static final class OpenBlock {
+        final long offset;
+        final DataOutputStream out;
+        long firstMicros;
+        int firstId;
+        int rows;
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+
+        OpenBlock(long offset, OutputStream raw) throws IOException {
+            this.offset = offset;
+            this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(unclosable(raw)), 64 * 1024));
+        }
+    }
+
+    private final ServerDatabase database;
+    private final Path dir;
+    private volatile List<Archive> archives;
+    private volatile long listedAt;
+    private final ConcurrentHashMap<String, Map<Integer, List<Block>>> indexes = new ConcurrentHashMap<>();
+
+    public MessageArchive(ServerDatabase database, Path dir) {
+        this.database = database;
+        this.dir = dir;
+    }
+
+    /**
+     * Write a partition's rows to <partition>.gz and .idx and return how many there
+     * were. Runs on the caller's connection, which must not be in auto-commit so the
+     * rows are streamed with a cursor. Both files and the directory are synced before
+     * this returns, so the caller can drop the partition.
+     */
+    public long write(Connection conn, String partition) throws SQLException, IOException {
+        Files.createDirectories(dir);
+        Path file = dir.resolve(partition + ".gz");
+        Map<Integer, List<Block>> index = new LinkedHashMap<>();
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             PreparedStatement stmt = conn.prepareStatement(String.format(SELECT_PARTITION_ROWS, partition))) {
+            OutputStream raw = Channels.newOutputStream(channel);
+            stmt.setFetchSize(10_000);
+            try (ResultSet rs = stmt.executeQuery()) {
+                int convId = -1;
+                OpenBlock block = null;
+                while (rs.next()) {
+                    if (rs.getInt(1) != convId || block.rows == BLOCK_ROWS) {
+                        if (block != null) {
+                            index.computeIfAbsent(convId, k -> new ArrayList<>()).add(close(block, channel));
+                        }
+                        convId = rs.getInt(1);
+                        block = new OpenBlock(channel.position(), raw);
+                    }
+                    int id = rs.getInt(2);
+                    long micros = micros(rs.getTimestamp(4));
+                    if (block.rows == 0) {
+                        block.firstMicros = micros;
+                        block.firstId = id;
+                    }
+                    block.minId = Math.min(block.minId, id);
+                    block.maxId = Math.max(block.maxId, id);
+                    block.out.writeInt(id);
+                    block.out.writeInt(rs.getInt(3));
+                    block.out.writeLong(micros);
+                    block.out.writeUTF(rs.getString(5));
+                    byte[] content = rs.getString(6).getBytes(StandardCharsets.UTF_8);
+                    block.out.writeInt(content.length);
+                    block.out.write(content);
+                    block.rows++;
+                    total++;
+                }
+                if (block != null) {
+                    index.computeIfAbsent(convId, k -> new ArrayList<>()).add(close(block, channel));
+                }
+            }
+            channel.force(true);
+        }
+
+        try (FileChannel channel = FileChannel.open(dir.resolve(partition + ".idx"), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(index.values().stream().mapToInt(List::size).sum());
+            for (Map.Entry<Integer, List<Block>> e : index.entrySet()) {
+                for (Block b : e.getValue()) {
+                    out.writeInt(e.getKey());
+                    out.writeLong(b.offset());
+                    out.writeInt(b.length());
+                    out.writeInt(b.rows());
+                    out.writeLong(b.firstMicros());
+                    out.writeInt(b.firstId());
+                    out.writeInt(b.minId());
+                    out.writeInt(b.maxId());
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        // The new directory entries have to be durable too
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)) {
+            d.force(true);
+        }
+        return total;
+    }
+
+    /**
+     * Fill up a history page from the archive once the database has nothing older.
+     * hot is what the database returned for the same request; the archive carries on
+     * after its oldest message, or after beforeId if it was empty.
+     */
+    public ChatRepository.MessagePage continuePage(int convId, int beforeId, ChatRepository.MessagePage hot,
+                                                   int limit) throws SQLException, IOException {
+        List<Archive> archives = archives();
+        if (archives.isEmpty()) return hot;
+
+        List<ChatRepository.HistoryMessage> messages = new ArrayList<>(hot.messages());
+        Timestamp beforeTime = null;
+        int cursorId = beforeId;
+        if (!messages.isEmpty()) {
+            ChatRepository.HistoryMessage oldest = messages.get(messages.size() - 1);
+            beforeTime = oldest.timestamp();
+            cursorId = oldest.id();
+        } else if (beforeId != 0) {
+            beforeTime = findTimestamp(beforeId);
+            if (beforeTime == null) beforeTime = findArchivedTimestamp(archives, convId, beforeId);
+            // Not a message of this conversation
+            if (beforeTime == null) return hot;
+        }
+        long beforeMicros = beforeTime == null ? 0 : micros(beforeTime);
+
+        for (int a = 0; a < archives.size(); a++) {
+            List<Block> blocks = index(archives.get(a)).get(convId);
+            if (blocks == null) continue;
+            for (int b = blocks.size() - 1; b >= 0; b--) {
+                Block block = blocks.get(b);
+                // Every row of the block is at or after the cursor
+                if (beforeTime != null && (block.firstMicros() > beforeMicros
+                        || (block.firstMicros() == beforeMicros && block.firstId() >= cursorId))) continue;
+                List<ChatRepository.HistoryMessage> rows = read(archives.get(a), block);
+                for (int i = rows.size() - 1; i >= 0; i--) {
+                    ChatRepository.HistoryMessage m = rows.get(i);
+                    if (beforeTime != null && !olderThan(m, beforeTime, cursorId)) continue;
+                    messages.add(m);
+                    if (messages.size() == limit) {
+                        // Rows and blocks before this one are older still
+                        boolean more = i > 0 || b > 0 || inLaterArchive(archives, a + 1, convId);
+                        return new ChatRepository.MessagePage(messages, more);
+                    }
+                }
+            }
+        }
+        return new ChatRepository.MessagePage(messages, false);
+    }
+
+    /**
+     * Drop the cached archive list, e.g. after archiving a partition
+     */
+    public void refresh() {
+        archives = null;
+    }
+
+    private List<Archive> archives() throws SQLException {
+        List<Archive> list = archives;
+        if (list != null && System.nanoTime() - listedAt < LIST_TTL_NANOS) return list;
+        list = new ArrayList<>();
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_ARCHIVES);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                list.add(new Archive(rs.getString(1), dir.resolve(rs.getString(2))));
+            }
+        }
+        archives = list;
+        listedAt = System.nanoTime();
+        return list;
+    }
+
+    private Timestamp findTimestamp(int messageId) throws SQLException {
+        try (Connection conn = database.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(SELECT_TIMESTAMP)) {
+            stmt.setInt(1, messageId);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getTimestamp(1) : null;
+            }
+        }
+    }
+
+    // An archived message's timestamp, looked up in the blocks whose id range covers it
+    private Timestamp findArchivedTimestamp(List<Archive> archives, int convId, int messageId) throws IOException {
+        for (Archive archive : archives) {
+            for (Block block : index(archive).getOrDefault(convId, List.of())) {
+                if (messageId < block.minId() || messageId > block.maxId()) continue;
+                for (ChatRepository.HistoryMessage m : read(archive, block)) {
+                    if (m.id() == messageId) return m.timestamp();
+                }
+            }
+        }
+        return null;
+    }
+
+    private boolean inLaterArchive(List<Archive> archives, int from, int convId) throws IOException {
+        for (int a = from; a < archives.size(); a++) {
+            if (index(archives.get(a)).containsKey(convId)) return true;
+        }
+        return false;
+    }
+
+    // One block's rows, oldest first
+    private List<ChatRepository.HistoryMessage> read(Archive archive, Block block) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(block.length());
+        try (FileChannel channel = FileChannel.open(archive.file(), StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, block.offset() + bytes.position()) < 0) {
+                    throw new IOException(archive.file() + " is truncated");
+                }
+            }
+        }
+        List<ChatRepository.HistoryMessage> rows = new ArrayList<>(block.rows());
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(bytes.array()))))) {
+            for (int i = 0; i < block.rows(); i++) {
+                int id = in.readInt();
+                int senderId = in.readInt();
+                Timestamp timestamp = timestamp(in.readLong());
+                String type = in.readUTF();
+                byte[] content = new byte[in.readInt()];
+                in.readFully(content);
+                rows.add(new ChatRepository.HistoryMessage(id, senderId,
+                        new String(content, StandardCharsets.UTF_8), type, timestamp));
+            }
+        }
+        return rows;
+    }
+
+    // Each conversation's blocks, oldest first
+    private Map<Integer, List<Block>> index(Archive archive) throws IOException {
+        Map<Integer, List<Block>> index = indexes.get(archive.partition());
+        if (index != null) return index;
+        Path file = archive.file().resolveSibling(archive.partition() + ".idx");
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            int n = in.readInt();
+            index = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                int convId = in.readInt();
+                index.computeIfAbsent(convId, k -> new ArrayList<>()).add(new Block(in.readLong(), in.readInt(),
+                        in.readInt(), in.readLong(), in.readInt(), in.readInt(), in.readInt()));
+            }
+        }
+        indexes.put(archive.partition(), index);
+        return index;
+    }
+
+    private static Block close(OpenBlock block, FileChannel channel) throws IOException {
+        block.out.close();
+        return new Block(block.offset, (int) (channel.position() - block.offset), block.rows,
+                block.firstMicros, block.firstId, block.minId, block.maxId);
+    }
+
+    private static boolean olderThan(ChatRepository.HistoryMessage m, Timestamp time, int id) {
+        int c = m.timestamp().compareTo(time);
+        return c < 0 || (c == 0 && m.id() < id);
+    }
+
+    // Timestamps keep their microseconds, so archived cursors compare like the database's
+    private static long micros(Timestamp t) {
+        return Math.floorDiv(t.getTime(), 1000) * 1_000_000 + t.getNanos() / 1000;
+    }
+
+    private static Timestamp timestamp(long micros) {
+        Timestamp t = new Timestamp(Math.floorDiv(micros, 1_000_000) * 1000);
+        t.setNanos(Math.floorMod(micros, 1_000_000) * 1000);
+        return t;
+    }
+
+    // Closing a member's gzip stream must not close the file
+    private static OutputStream unclosable(OutputStream out) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+}
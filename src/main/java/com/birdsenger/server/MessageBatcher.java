@@ -0,0 +1,181 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind batching for chat messages (group commit).
+ *
+ * send_message hands its row to submit() and gets a future back. A single writer
+ * thread collects rows for up to the batch window (or until the batch is full),
+ * inserts them all with one statement in one transaction, then completes every
+ * future in submission order so acks and fan-out keep per-conversation order.
+ * If the database refuses the batch (a constraint or a bad value), its rows are
+ * stored one at a time so only the row at fault fails.
+ */
+public class MessageBatcher {
+    private static final Logger log = LoggerFactory.getLogger(MessageBatcher.class);
+
+    private static final long WINDOW_MS = Long.parseLong(System.getenv().getOrDefault("SERVER_MESSAGE_BATCH_WINDOW_MS", "5"));
+    private static final int MAX_BATCH = Integer.parseInt(System.getenv().getOrDefault("SERVER_MESSAGE_BATCH_SIZE", "256"));
+
+    private static final class Pending {
+        final int convId;
+        final int senderId;
+        final String content;
+        final CompletableFuture<ChatRepository.StoredMessage> future = new CompletableFuture<>();
+
+        Pending(int convId, int senderId, String content) {
+            this.convId = convId;
+            this.senderId = senderId;
+            this.content = content;
+        }
+    }
+
+    private final ChatRepository repository;
+    private final long windowNanos;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final Metrics.Summary batchSizes;
+    private final Metrics.Timer commitTimer;
+
+    public MessageBatcher(ChatRepository repository, Metrics metrics) {
+        this(repository, metrics, WINDOW_MS, MAX_BATCH);
+    }
+
+    public MessageBatcher(ChatRepository repository, Metrics metrics, long windowMs, int maxBatch) {
+        this.repository = repository;
+        this.batchSizes = metrics.summary("message_batch_rows", "Messages stored per batch");
+        this.commitTimer = metrics.timer("message_batch_commit_seconds", "Time to store a message batch");
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::run, "message-batcher");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a text message; the future completes with its id and timestamp once committed
+     */
+    public CompletableFuture<ChatRepository.StoredMessage> submit(int convId, int senderId, String content) {
+        Pending pending = new Pending(convId, senderId, content);
+        if (!running) {
+            pending.future.completeExceptionally(new IllegalStateException("Message batcher stopped"));
+            return pending.future;
+        }
+        queue.add(pending);
+        return pending.future;
+    }
+
+    private void run() {
+        List<Pending> batch = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+
+                // Keep collecting until the window closes or the batch is full
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxBatch) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        queue.drainTo(batch, maxBatch - batch.size());
+                        break;
+                    }
+                    Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+
+                flush(batch);
+            } catch (InterruptedException e) {
+                if (!running) break;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<Pending> batch) {
+        try {
+            store(batch);
+        } catch (SQLException e) {
+            if (!ChatRepository.refused(e)) {
+                fail(batch, e);
+                return;
+            }
+            // One row the database won't take must not fail everyone else's: store them one at a time
+            log.atWarn().addKeyValue("messages", batch.size()).setCause(e).log("message batch refused, storing rows one by one");
+            for (Pending p : batch) {
+                try {
+                    store(List.of(p));
+                } catch (Exception single) {
+                    log.atWarn().addKeyValue("conv", p.convId).addKeyValue("sender", p.senderId).setCause(single)
+                            .log("message refused by the database");
+                    p.future.completeExceptionally(single);
+                }
+            }
+        } catch (Exception e) {
+            fail(batch, e);
+        }
+    }
+
+    private void store(List<Pending> batch) throws SQLException {
+        int n = batch.size();
+        int[] convIds = new int[n];
+        int[] senderIds = new int[n];
+        String[] contents = new String[n];
+        for (int i = 0; i < n; i++) {
+            Pending p = batch.get(i);
+            convIds[i] = p.convId;
+            senderIds[i] = p.senderId;
+            contents[i] = p.content;
+        }
+
+        long start = System.nanoTime();
+        ChatRepository.StoredMessage[] stored = repository.insertTextMessages(convIds, senderIds, contents);
+        commitTimer.recordSince(start);
+        batchSizes.record(n);
+        for (int i = 0; i < n; i++) {
+            batch.get(i).future.complete(stored[i]);
+        }
+    }
+
+    private void fail(List<Pending> batch, Exception e) {
+        log.atError().addKeyValue("messages", batch.size()).setCause(e).log("failed to store message batch");
+        for (Pending p : batch) {
+            p.future.completeExceptionally(e);
+        }
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public String stats() {
+        return "batch " + batchSizes.describe() + " rows | commit " + commitTimer.describe() + " µs | queued=" + queue.size();
+    }
+
+    /**
+     * Stop accepting messages and flush whatever is still queued
+     */
+    public void shutdown() {
+        running = false;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the monthly partitions of messages ahead of the clock and moves old ones out.
+ *
+ * Each run makes sure there is a partition for this month and the next
+ * SERVER_MESSAGE_PARTITIONS_AHEAD, so inserts never land in messages_default. A
+ * partition whose whole range is older than SERVER_MESSAGE_HOT_MONTHS months is
+ * written to the archive (MessageArchive), detached and dropped, keeping the table
+ * and its indexes the size of recent history. Every month is its own partition,
+ * including the history from before partitioning (V6), so each one is archived
+ * in its own transaction. Runs in the background from startup and then daily;
+ * with several nodes only one does the work.
+ */
+public class MessagePartitions {
+    private static final Logger log = LoggerFactory.getLogger(MessagePartitions.class);
+
+    private static final int AHEAD = Integer.parseInt(System.getenv().getOrDefault("SERVER_MESSAGE_PARTITIONS_AHEAD", "2"));
+    // 0 keeps every partition in the database
+    private static final int HOT_MONTHS = Integer.parseInt(System.getenv().getOrDefault("SERVER_MESSAGE_HOT_MONTHS", "12"));
+    // Any fixed number; only this class takes it
+    private static final long LOCK_KEY = 0x62697265L;
+
+    private static final String SELECT_PARTITIONS =
+            "SELECT c.relname, pg_get_expr(c.relpartbound, c.oid) FROM pg_inherits i " +
+            "JOIN pg_class c ON c.oid = i.inhrelid WHERE i.inhparent = 'messages'::regclass";
+    // FOR VALUES FROM ('2026-01-01 00:00:00') TO ('2026-02-01 00:00:00')
+    private static final Pattern UPPER_BOUND = Pattern.compile("TO \\('([^']+)'\\)");
+    private static final String MOVE_FROM_DEFAULT =
+            "WITH moved AS (DELETE FROM messages_default WHERE timestamp >= ? AND timestamp < ? RETURNING *) " +
+            "INSERT INTO %s SELECT * FROM moved";
+    private static final String INSERT_ARCHIVE =
+            "INSERT INTO message_archives (partition_name, range_to, file, row_count) VALUES (?, ?, ?, ?)";
+
+    private record Partition(String name, LocalDateTime to) {}
+
+    private final ServerDatabase database;
+    private final MessageArchive archive;
+
+    public MessagePartitions(ServerDatabase database, MessageArchive archive) {
+        this.database = database;
+        this.archive = archive;
+    }
+
+    /**
+     * Create upcoming partitions and archive expired ones. Never throws: a failed run
+     * is logged and the next one tries again.
+     */
+    public void maintain() {
+        try (Connection conn = database.getConnection()) {
+            if (!tryLock(conn)) return;
+            try {
+                createAhead(conn);
+                if (HOT_MONTHS > 0) {
+                    archiveOld(conn);
+                }
+            } finally {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+                }
+            }
+        } catch (Exception e) {
+            log.atError().setCause(e).log("message partition maintenance failed");
+        }
+    }
+
+    private boolean tryLock(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT pg_try_advisory_lock(" + LOCK_KEY + ")")) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    private void createAhead(Connection conn) throws SQLException {
+        LocalDate thisMonth = LocalDate.now().withDayOfMonth(1);
+        LocalDateTime until = thisMonth.plusMonths(AHEAD + 1).atStartOfDay();
+        LocalDateTime from = thisMonth.atStartOfDay();
+        for (Partition p : partitions(conn)) {
+            if (p.to().isAfter(from)) from = p.to();
+        }
+        while (from.isBefore(until)) {
+            LocalDateTime to = from.toLocalDate().withDayOfMonth(1).plusMonths(1).atStartOfDay();
+            create(conn, String.format("messages_p%d_%02d", from.getYear(), from.getMonthValue()), from, to);
+            from = to;
+        }
+    }
+
+    // Rows that went to the default partition for this range have to move before it can attach
+    private void create(Connection conn, String name, LocalDateTime from, LocalDateTime to) throws SQLException {
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement();
+             PreparedStatement move = conn.prepareStatement(String.format(MOVE_FROM_DEFAULT, name))) {
+            stmt.execute("CREATE TABLE " + name + " (LIKE messages INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+            move.setTimestamp(1, Timestamp.valueOf(from));
+            move.setTimestamp(2, Timestamp.valueOf(to));
+            int moved = move.executeUpdate();
+            stmt.execute("ALTER TABLE messages ATTACH PARTITION " + name +
+                    " FOR VALUES FROM ('" + Timestamp.valueOf(from) + "') TO ('" + Timestamp.valueOf(to) + "')");
+            conn.commit();
+            log.atInfo().addKeyValue("partition", name).addKeyValue("movedFromDefault", moved)
+                    .log("message partition created");
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private void archiveOld(Connection conn) throws Exception {
+        LocalDateTime cutoff = LocalDate.now().withDayOfMonth(1).minusMonths(HOT_MONTHS).atStartOfDay();
+        for (Partition p : partitions(conn)) {
+            if (p.to().isAfter(cutoff)) continue;
+            long start = System.nanoTime();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement();
+                 PreparedStatement record = conn.prepareStatement(INSERT_ARCHIVE)) {
+                // The file is complete before the rows go; if anything fails, they stay
+                long rows = archive.write(conn, p.name());
+                record.setString(1, p.name());
+                record.setTimestamp(2, Timestamp.valueOf(p.to()));
+                record.setString(3, p.name() + ".gz");
+                record.setLong(4, rows);
+                record.executeUpdate();
+                stmt.execute("ALTER TABLE messages DETACH PARTITION " + p.name());
+                stmt.execute("DROP TABLE " + p.name());
+                conn.commit();
+                log.atInfo().addKeyValue("partition", p.name()).addKeyValue("rows", rows)
+                        .addKeyValue("ms", (System.nanoTime() - start) / 1_000_000).log("message partition archived");
+            } catch (Exception e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            archive.refresh();
+        }
+    }
+
+    // The range partitions and their upper bounds; the default partition has none
+    private List<Partition> partitions(Connection conn) throws SQLException {
+        List<Partition> partitions = new ArrayList<>();
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery(SELECT_PARTITIONS)) {
+            while (rs.next()) {
+                Matcher m = UPPER_BOUND.matcher(rs.getString(2));
+                if (m.find()) {
+                    partitions.add(new Partition(rs.getString(1), Timestamp.valueOf(m.group(1)).toLocalDateTime()));
+                }
+            }
+        }
+        return partitions;
+    }
+}
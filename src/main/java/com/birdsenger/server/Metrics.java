@@ -0,0 +1,369 @@
+package com.birdsenger.server;
+
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Counters, gauges, latency timers and value summaries for one server node.
+ *
+ * Recording is cheap enough to leave on: a counter is a LongAdder, a timer or
+ * summary is an HdrHistogram Recorder (wait-free, no allocation) plus two LongAdders. Callers
+ * look their metrics up once and keep the reference; nothing is looked up by name
+ * on the hot path. Gauges are read only when someone scrapes.
+ *
+ * Everything is exposed in Prometheus text format over a small HTTP endpoint
+ * (GET /metrics) and as attributes of one MBean, e.g. for jconsole.
+ */
+public class Metrics {
+    private static final Logger log = LoggerFactory.getLogger(Metrics.class);
+
+    // Timers keep quantiles over the last one to two windows
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(
+            Long.parseLong(System.getenv().getOrDefault("SERVER_METRICS_WINDOW_S", "60")));
+    // A minute in microseconds; far above any batch size too
+    private static final long MAX_VALUE = TimeUnit.SECONDS.toMicros(60);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String prefix;
+    // name -> family, in registration order; registration happens before the server starts
+    private final Map<String, Family> families = new LinkedHashMap<>();
+    private HttpServer http;
+    private ObjectName mbeanName;
+
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Plain values such as batch sizes, reported as recorded
+     */
+    public static class Summary {
+        private final Recorder recorder = new Recorder(MAX_VALUE, 2);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        // Guarded by this; only touched when scraping
+        private org.HdrHistogram.Histogram interval;
+        private org.HdrHistogram.Histogram current = new org.HdrHistogram.Histogram(MAX_VALUE, 2);
+        private org.HdrHistogram.Histogram previous = new org.HdrHistogram.Histogram(MAX_VALUE, 2);
+        private long windowStart = System.nanoTime();
+
+        public void record(long value) {
+            recorder.recordValue(Math.min(Math.max(value, 0), MAX_VALUE));
+            count.increment();
+            sum.add(value);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        /**
+         * e.g. "n=1200 mean=3.1 p50=3 p99=15 max=22" over the recent windows, for the stats log
+         */
+        public String describe() {
+            org.HdrHistogram.Histogram recent = recent();
+            return String.format("n=%d mean=%.1f p50=%d p99=%d max=%d", count(), recent.getMean(),
+                    recent.getValueAtPercentile(50), recent.getValueAtPercentile(99), recent.getMaxValue());
+        }
+
+        /**
+         * What was recorded since the start of the previous window
+         */
+        synchronized org.HdrHistogram.Histogram recent() {
+            interval = recorder.getIntervalHistogram(interval);
+            long now = System.nanoTime();
+            if (now - windowStart > WINDOW_NANOS) {
+                org.HdrHistogram.Histogram oldest = previous;
+                previous = current;
+                current = oldest;
+                current.reset();
+                windowStart = now;
+            }
+            current.add(interval);
+            org.HdrHistogram.Histogram recent = previous.copy();
+            recent.add(current);
+            return recent;
+        }
+    }
+
+    /**
+     * Latency in microseconds, reported in seconds
+     */
+    public static final class Timer extends Summary {
+        public void recordSince(long startNanos) {
+            recordMicros((System.nanoTime() - startNanos) / 1000);
+        }
+
+        public void recordMicros(long micros) {
+            record(micros);
+        }
+    }
+
+    private enum Type { COUNTER, GAUGE, SUMMARY }
+
+    private record Child(String labels, Object metric) {}
+
+    private static final class Family {
+        final String name;
+        final String help;
+        final Type type;
+        final List<Child> children = new ArrayList<>();
+
+        Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        Counter counter = new Counter();
+        register(name, help, Type.COUNTER, labels, counter);
+        return counter;
+    }
+
+    /**
+     * A counter kept elsewhere (e.g. a LongAdder in OutboundQueues)
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, Type.COUNTER, labels, value);
+    }
+
+    public void gauge(String name, String help, LongSupplier value, String... labels) {
+        register(name, help, Type.GAUGE, labels, value);
+    }
+
+    public Summary summary(String name, String help, String... labels) {
+        Summary summary = new Summary();
+        register(name, help, Type.SUMMARY, labels, summary);
+        return summary;
+    }
+
+    public Timer timer(String name, String help, String... labels) {
+        Timer timer = new Timer();
+        register(name, help, Type.SUMMARY, labels, timer);
+        return timer;
+    }
+
+    private synchronized void register(String name, String help, Type type, String[] labels, Object metric) {
+        Family family = families.computeIfAbsent(prefix + name, n -> new Family(n, help, type));
+        if (family.type != type) {
+            throw new IllegalArgumentException(family.name + " is already a " + family.type);
+        }
+        family.children.add(new Child(labelString(labels), metric));
+    }
+
+    // "event", "send_message" -> event="send_message"
+    private static String labelString(String[] labels) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Every metric in Prometheus text format (version 0.0.4)
+     */
+    public synchronized String scrape() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family family : families.values()) {
+            sb.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+            for (Child child : family.children) {
+                if (child.metric() instanceof Summary) {
+                    Summary summary = (Summary) child.metric();
+                    org.HdrHistogram.Histogram recent = summary.recent();
+                    for (double q : QUANTILES) {
+                        String labels = child.labels().isEmpty()
+                                ? "quantile=\"" + q + "\""
+                                : child.labels() + ",quantile=\"" + q + "\"";
+                        sample(sb, family.name, labels, scaled(summary, recent.getValueAtPercentile(q * 100)));
+                    }
+                    sample(sb, family.name + "_sum", child.labels(), scaled(summary, summary.sum.sum()));
+                    sample(sb, family.name + "_count", child.labels(), summary.count());
+                } else {
+                    sample(sb, family.name, child.labels(), value(child.metric()));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, Number value) {
+        sb.append(name);
+        if (!labels.isEmpty()) sb.append('{').append(labels).append('}');
+        sb.append(' ').append(value).append('\n');
+    }
+
+    private static long value(Object metric) {
+        if (metric instanceof Counter) return ((Counter) metric).value();
+        return ((LongSupplier) metric).getAsLong();
+    }
+
+    // Timers record microseconds and report seconds
+    private static Number scaled(Summary summary, long value) {
+        if (summary instanceof Timer) return value / 1_000_000.0;
+        return value;
+    }
+
+    /**
+     * Flat name -> value view for JMX; summaries become _p50/_p99/_max/_count, in milliseconds for timers
+     */
+    synchronized Map<String, Object> snapshot() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        for (Family family : families.values()) {
+            for (Child child : family.children) {
+                String name = child.labels().isEmpty() ? family.name : family.name + "{" + child.labels() + "}";
+                if (child.metric() instanceof Timer) {
+                    Timer timer = (Timer) child.metric();
+                    org.HdrHistogram.Histogram recent = timer.recent();
+                    values.put(name + "_p50_ms", recent.getValueAtPercentile(50) / 1000.0);
+                    values.put(name + "_p99_ms", recent.getValueAtPercentile(99) / 1000.0);
+                    values.put(name + "_max_ms", recent.getMaxValue() / 1000.0);
+                    values.put(name + "_count", timer.count());
+                } else if (child.metric() instanceof Summary) {
+                    Summary summary = (Summary) child.metric();
+                    org.HdrHistogram.Histogram recent = summary.recent();
+                    values.put(name + "_p50", recent.getValueAtPercentile(50));
+                    values.put(name + "_p99", recent.getValueAtPercentile(99));
+                    values.put(name + "_max", recent.getMaxValue());
+                    values.put(name + "_count", summary.count());
+                } else {
+                    values.put(name, value(child.metric()));
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Serve GET /metrics; bind to 127.0.0.1 unless the scraper lives elsewhere
+     */
+    public void startHttp(String host, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(host, port), 0);
+        http.createContext("/metrics", exchange -> {
+            try (exchange) {
+                if (!"GET".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        });
+        http.start();
+        log.atInfo().addKeyValue("url", "http://" + host + ":" + port + "/metrics").log("serving metrics");
+    }
+
+    public void registerMBean(String nodeId) throws Exception {
+        mbeanName = new ObjectName("com.birdsenger:type=Metrics,node=" + nodeId);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), mbeanName);
+    }
+
+    public void close() {
+        if (http != null) {
+            http.stop(0);
+        }
+        if (mbeanName != null) {
+            try {
+                MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+                if (mbeans.isRegistered(mbeanName)) mbeans.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                log.atWarn().addKeyValue("mbean", mbeanName).setCause(e).log("failed to unregister");
+            }
+        }
+    }
+
+    // Read-only attributes, one per sample
+    private final class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = snapshot().get(attribute);
+            if (value == null) throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Object> values = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) list.add(new Attribute(attribute, values.get(attribute)));
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (Map.Entry<String, Object> e : snapshot().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(),
+                        e.getKey(), true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "BirdSenger server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) {
+            throw new UnsupportedOperationException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException(actionName);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.birdsenger.server;
+
+import com.corundumstudio.socketio.SocketIOClient;
+import com.corundumstudio.socketio.SocketIOServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One bounded outbound queue per socket session.
+ *
+ * Events go straight to the socket while its channel is writable and nothing is
+ * queued. Once a client falls behind (bad mobile link) its events wait here, and
+ * a drainer thread sends them as the channel becomes writable again. Per session:
+ *
+ * - refresh events (presence) are collapsed: a newer one replaces the queued one;
+ * - past the message or byte cap the oldest non-critical events are dropped, and
+ *   the client is told to resync once it has caught up;
+ * - a queue that makes no progress for SERVER_OUTBOX_STALL_MS, or that is over
+ *   the cap with critical events only, gets its client disconnected.
+ *
+ * Payment events are critical and never dropped from a live queue: if their session
+ * goes away they are kept for the user for SERVER_OUTBOX_PARK_MS and sent to their
+ * next session. Past that they are dropped, counted and logged; the payments
+ * themselves are in the database, and a client that connects later reads its
+ * balance and the payment messages from there.
+ */
+public class OutboundQueues {
+    private static final Logger log = LoggerFactory.getLogger(OutboundQueues.class);
+
+    private static final int MAX_MESSAGES = Integer.parseInt(System.getenv().getOrDefault("SERVER_OUTBOX_MESSAGES", "1000"));
+    private static final long MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("SERVER_OUTBOX_BYTES", "1048576"));
+    private static final long STALL_MS = Long.parseLong(System.getenv().getOrDefault("SERVER_OUTBOX_STALL_MS", "30000"));
+    private static final long PARK_MS = Long.parseLong(System.getenv().getOrDefault("SERVER_OUTBOX_PARK_MS", "120000"));
+    private static final boolean COLLAPSE = Boolean.parseBoolean(System.getenv().getOrDefault("SERVER_OUTBOX_COLLAPSE", "true"));
+    private static final long DRAIN_MS = 20;
+
+    private static final Set<String> CRITICAL_EVENTS = Set.of("money_received", "money_sent");
+
+    private final SocketIOServer server;
+    private final ConcurrentHashMap<UUID, Outbox> outboxes = new ConcurrentHashMap<>();
+    private final Set<Outbox> backlogged = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Integer, Parked> parked = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "outbox-drainer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final LongAdder direct = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder parkedEvents = new LongAdder();
+    private final LongAdder parkedExpired = new LongAdder();
+    private final Metrics.Summary depth;
+
+    private record Parked(List<Queued> events, long untilMillis) {}
+
+    private static final class Queued {
+        final String event;
+        final boolean critical;
+        final String collapseKey;
+        Object payload;
+        long bytes;
+
+        Queued(String event, Object payload, boolean critical, String collapseKey) {
+            this.event = event;
+            this.payload = payload;
+            this.critical = critical;
+            this.collapseKey = collapseKey;
+            this.bytes = estimateBytes(payload);
+        }
+    }
+
+    public OutboundQueues(SocketIOServer server, Metrics metrics) {
+        this.server = server;
+        this.depth = metrics.summary("outbox_queue_events", "Events queued for a slow socket, sampled as each one is queued");
+    }
+
+    public void start() {
+        drainer.scheduleWithFixedDelay(this::drainAll, DRAIN_MS, DRAIN_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Send an event to one session, or queue it if the session is behind.
+     * Returns false if there is no such session.
+     */
+    public boolean send(UUID sessionId, String event, Object payload) {
+        Outbox outbox = outboxes.get(sessionId);
+        if (outbox == null) {
+            SocketIOClient client = server.getClient(sessionId);
+            if (client == null) return false;
+            outbox = outboxes.computeIfAbsent(sessionId, id -> new Outbox(client));
+        }
+        outbox.send(event, payload);
+        return true;
+    }
+
+    /**
+     * A session went away: drop its queue, keeping its critical events for the user
+     */
+    public void closed(UUID sessionId, int userId) {
+        Outbox outbox = outboxes.remove(sessionId);
+        if (outbox == null) return;
+        backlogged.remove(outbox);
+        List<Queued> critical = outbox.close();
+        if (critical.isEmpty() || userId == -1) return;
+
+        parkedEvents.add(critical.size());
+        parked.merge(userId, new Parked(critical, System.currentTimeMillis() + PARK_MS), (old, added) -> {
+            List<Queued> events = new ArrayList<>(old.events());
+            events.addAll(added.events());
+            return new Parked(events, added.untilMillis());
+        });
+        log.atInfo().addKeyValue("userId", userId).addKeyValue("events", critical.size()).log("kept payment events until reconnect");
+    }
+
+    /**
+     * Send events kept for a user whose session went away to their new session
+     */
+    public void sendParked(int userId, UUID sessionId) {
+        Parked kept = parked.remove(userId);
+        if (kept == null) return;
+        for (Queued q : kept.events()) {
+            send(sessionId, q.event, q.payload);
+        }
+        log.atInfo().addKeyValue("userId", userId).addKeyValue("events", kept.events().size()).log("sent kept payment events");
+    }
+
+    private void drainAll() {
+        long now = System.currentTimeMillis();
+        for (Outbox outbox : backlogged) {
+            try {
+                outbox.drain(now);
+            } catch (Exception e) {
+                log.atError().addKeyValue("session", outbox.client.getSessionId()).setCause(e).log("failed to drain outbox");
+            }
+        }
+        parked.entrySet().removeIf(e -> {
+            if (e.getValue().untilMillis() >= now) return false;
+            int events = e.getValue().events().size();
+            dropped.add(events);
+            parkedExpired.add(events);
+            log.atWarn().addKeyValue("userId", e.getKey()).addKeyValue("events", events)
+                    .log("kept payment events expired before reconnect, dropped");
+            return true;
+        });
+    }
+
+    /**
+     * Critical events are payments; everything else may be dropped
+     */
+    private static boolean isCritical(String event, Object payload) {
+        if (CRITICAL_EVENTS.contains(event)) return true;
+        return "new_message".equals(event) && payload instanceof Map
+                && "payment".equals(((Map<?, ?>) payload).get("messageType"));
+    }
+
+    // Events that only refresh state: a newer one makes the queued one redundant
+    private static String collapseKey(String event, Object payload) {
+        if (!COLLAPSE) return null;
+        switch (event) {
+            case "presence_snapshot":
+                return event;
+            case "presence_changed":
+                return payload instanceof Map ? event + ":" + ((Map<?, ?>) payload).get("userId") : null;
+            default:
+                return null;
+        }
+    }
+
+    // Rough size of a payload once serialized, without serializing it
+    static long estimateBytes(Object value) {
+        if (value == null) return 4;
+        if (value instanceof CharSequence) return ((CharSequence) value).length() + 2;
+        if (value instanceof Number || value instanceof Boolean) return 8;
+        if (value instanceof Map) {
+            long bytes = 2;
+            for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                bytes += String.valueOf(e.getKey()).length() + 4 + estimateBytes(e.getValue());
+            }
+            return bytes;
+        }
+        if (value instanceof Collection) {
+            long bytes = 2;
+            for (Object item : (Collection<?>) value) {
+                bytes += estimateBytes(item) + 1;
+            }
+            return bytes;
+        }
+        if (value instanceof int[]) return ((int[]) value).length * 8L + 2;
+        return 16;
+    }
+
+    public int backloggedSessions() {
+        return backlogged.size();
+    }
+
+    /**
+     * Events waiting in all outboxes
+     */
+    public long queuedEvents() {
+        long events = 0;
+        for (Outbox outbox : backlogged) {
+            synchronized (outbox) {
+                events += outbox.queue.size();
+            }
+        }
+        return events;
+    }
+
+    public long droppedEvents() {
+        return dropped.sum();
+    }
+
+    /**
+     * Payment events kept for a user who didn't reconnect in time; also in droppedEvents()
+     */
+    public long expiredParkedEvents() {
+        return parkedExpired.sum();
+    }
+
+    public long slowClientDisconnects() {
+        return disconnects.sum();
+    }
+
+    public String stats() {
+        int sessions = 0;
+        long events = 0;
+        long bytes = 0;
+        for (Outbox outbox : backlogged) {
+            synchronized (outbox) {
+                sessions++;
+                events += outbox.queue.size();
+                bytes += outbox.bytes;
+            }
+        }
+        return "backlogged=" + sessions + " queued=" + events + " (" + bytes + "B) | direct=" + direct.sum()
+                + " queued=" + queued.sum() + " collapsed=" + collapsed.sum() + " dropped=" + dropped.sum()
+                + " disconnects=" + disconnects.sum() + " parked=" + parkedEvents.sum() + " expired=" + parkedExpired.sum()
+                + " | depth " + depth.describe() + " events";
+    }
+
+    public void shutdown() {
+        drainer.shutdownNow();
+    }
+
+    private final class Outbox {
+        final SocketIOClient client;
+        // Guarded by this
+        final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        final Map<String, Queued> byCollapseKey = new HashMap<>();
+        long bytes;
+        int droppedSinceResync;
+        long lastProgressMillis;
+        boolean closed;
+
+        Outbox(SocketIOClient client) {
+            this.client = client;
+        }
+
+        synchronized void send(String event, Object payload) {
+            if (closed) return;
+            if (queue.isEmpty() && client.isWritable()) {
+                client.sendEvent(event, payload);
+                direct.increment();
+                return;
+            }
+
+            String key = collapseKey(event, payload);
+            Queued existing = key != null ? byCollapseKey.get(key) : null;
+            if (existing != null) {
+                long size = estimateBytes(payload);
+                bytes += size - existing.bytes;
+                existing.payload = payload;
+                existing.bytes = size;
+                collapsed.increment();
+                return;
+            }
+
+            Queued q = new Queued(event, payload, isCritical(event, payload), key);
+            if (queue.isEmpty()) {
+                lastProgressMillis = System.currentTimeMillis();
+                backlogged.add(this);
+            }
+            queue.addLast(q);
+            if (key != null) byCollapseKey.put(key, q);
+            bytes += q.bytes;
+            queued.increment();
+            depth.record(queue.size());
+
+            if (queue.size() > MAX_MESSAGES || bytes > MAX_BYTES) {
+                dropOldestNonCritical();
+            }
+        }
+
+        private void dropOldestNonCritical() {
+            Iterator<Queued> it = queue.iterator();
+            while ((queue.size() > MAX_MESSAGES || bytes > MAX_BYTES) && it.hasNext()) {
+                Queued q = it.next();
+                if (q.critical) continue;
+                it.remove();
+                forget(q);
+                droppedSinceResync++;
+                dropped.increment();
+            }
+        }
+
+        private void forget(Queued q) {
+            bytes -= q.bytes;
+            if (q.collapseKey != null) byCollapseKey.remove(q.collapseKey);
+        }
+
+        synchronized void drain(long now) {
+            if (closed) return;
+            boolean progressed = false;
+            while (!queue.isEmpty() && client.isWritable()) {
+                Queued q = queue.pollFirst();
+                forget(q);
+                client.sendEvent(q.event, q.payload);
+                progressed = true;
+            }
+            if (progressed) {
+                lastProgressMillis = now;
+            }
+
+            if (queue.isEmpty()) {
+                backlogged.remove(this);
+                if (droppedSinceResync > 0) {
+                    // The client missed events: have it reload what it shows
+                    Map<String, Object> resync = new HashMap<>();
+                    resync.put("dropped", droppedSinceResync);
+                    client.sendEvent("resync", resync);
+                    droppedSinceResync = 0;
+                }
+                return;
+            }
+
+            // Stalled, or over the cap with nothing left that may be dropped
+            boolean overCap = queue.size() > MAX_MESSAGES || bytes > MAX_BYTES;
+            if (overCap || now - lastProgressMillis > STALL_MS) {
+                log.atWarn().addKeyValue("session", client.getSessionId()).addKeyValue("queued", queue.size())
+                        .addKeyValue("bytes", bytes).addKeyValue("stalledMs", now - lastProgressMillis)
+                        .log("disconnecting slow client");
+                disconnects.increment();
+                backlogged.remove(this);
+                // The disconnect listener calls closed(), which keeps the critical events
+                client.disconnect();
+            }
+        }
+
+        /**
+         * Stop sending; returns the critical events that were never sent
+         */
+        synchronized List<Queued> close() {
+            closed = true;
+            List<Queued> critical = new ArrayList<>();
+            for (Queued q : queue) {
+                if (q.critical) {
+                    critical.add(q);
+                } else {
+                    dropped.increment();
+                }
+            }
+            queue.clear();
+            byCollapseKey.clear();
+            bytes = 0;
+            return critical;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.birdsenger.server;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Listens on Postgres NOTIFY channels over one connection kept outside the pool,
+ * reconnecting (and re-listening) if the connection drops. Notifications sent
+ * while reconnecting are lost, so users of this need another way to catch up.
+ */
+public class PgListener {
+    private static final Logger log = LoggerFactory.getLogger(PgListener.class);
+
+    private static final int POLL_MS = 500;
+
+    /**
+     * Called on the listener thread for each notification; must not block
+     */
+    public interface Handler {
+        void onNotification(String channel, String payload);
+    }
+
+    private final ServerDatabase database;
+    private final String name;
+    private final String[] channels;
+    private final Handler handler;
+    private volatile boolean running;
+    private Thread thread;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    public PgListener(ServerDatabase database, String name, Handler handler, String... channels) {
+        this.database = database;
+        this.name = name;
+        this.handler = handler;
+        this.channels = channels;
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::listen, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void listen() {
+        while (running) {
+            try (Connection conn = database.openDirectConnection()) {
+                try (Statement st = conn.createStatement()) {
+                    for (String channel : channels) {
+                        st.execute("LISTEN \"" + channel + "\"");
+                    }
+                }
+                log.atInfo().addKeyValue("listener", name).addKeyValue("channels", String.join(",", channels)).log("listening");
+
+                PGConnection pg = conn.unwrap(PGConnection.class);
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_MS);
+                    if (notifications == null) continue;
+                    for (PGNotification n : notifications) {
+                        received.increment();
+                        try {
+                            handler.onNotification(n.getName(), n.getParameter());
+                        } catch (Exception e) {
+                            log.atError().addKeyValue("listener", name).setCause(e).log("failed to handle a notification");
+                        }
+                    }
+                }
+            } catch (SQLException e) {
+                if (!running) break;
+                reconnects.increment();
+                log.atWarn().addKeyValue("listener", name).addKeyValue("error", e.getMessage()).log("lost connection, reconnecting");
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    public long received() {
+        return received.sum();
+    }
+
+    public long reconnects() {
+        return reconnects.sum();
+    }
+
+    public void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+}
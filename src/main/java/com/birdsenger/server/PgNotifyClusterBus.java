@@ -0,0 +1,89 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Cluster bus over Postgres LISTEN/NOTIFY, so nodes on different machines only
+ * need the database they already share.
+ *
+ * Every node listens on its own channel and on a broadcast channel through a
+ * PgListener. Sending borrows a pooled connection for a pg_notify() call. NOTIFY
+ * payloads are limited to 8000 bytes; bigger messages are dropped and counted.
+ * Notifications sent while a listener is reconnecting are lost, which is
+ * acceptable for a stand-in until we run a real broker.
+ */
+public class PgNotifyClusterBus implements ClusterBus {
+    private static final Logger log = LoggerFactory.getLogger(PgNotifyClusterBus.class);
+
+    private static final String CHANNEL_PREFIX = "birdsenger_node_";
+    private static final String BROADCAST_CHANNEL = "birdsenger_cluster";
+    private static final int MAX_PAYLOAD_BYTES = 7999;
+
+    private static final String NOTIFY = "SELECT pg_notify(?, ?)";
+
+    private final ServerDatabase database;
+    private PgListener listener;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder oversized = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    public PgNotifyClusterBus(ServerDatabase database) {
+        this.database = database;
+    }
+
+    @Override
+    public void start(String nodeId, Consumer<String> receiver) {
+        listener = new PgListener(database, "cluster-listen",
+                (channel, payload) -> receiver.accept(payload), channelFor(nodeId), BROADCAST_CHANNEL);
+        listener.start();
+    }
+
+    @Override
+    public void send(String targetNode, String message) {
+        if (message.getBytes(StandardCharsets.UTF_8).length > MAX_PAYLOAD_BYTES) {
+            oversized.increment();
+            log.atError().addKeyValue("chars", message.length()).log("cluster message too large for NOTIFY, dropped");
+            return;
+        }
+        String channel = BROADCAST.equals(targetNode) ? BROADCAST_CHANNEL : channelFor(targetNode);
+        try (Connection conn = database.getConnection();
+             PreparedStatement ps = conn.prepareStatement(NOTIFY)) {
+            ps.setString(1, channel);
+            ps.setString(2, message);
+            ps.execute();
+            sent.increment();
+        } catch (SQLException e) {
+            failed.increment();
+            log.atError().addKeyValue("node", targetNode).setCause(e).log("cluster send failed");
+        }
+    }
+
+    // Channel names are identifiers: keep them short and plain
+    private static String channelFor(String nodeId) {
+        String name = CHANNEL_PREFIX + nodeId.toLowerCase().replaceAll("[^a-z0-9_]", "_");
+        return name.length() > 63 ? name.substring(0, 63) : name;
+    }
+
+    @Override
+    public String stats() {
+        return "bus=postgres sent=" + sent.sum() + " received=" + (listener != null ? listener.received() : 0)
+                + " oversized=" + oversized.sum() + " failed=" + failed.sum()
+                + " reconnects=" + (listener != null ? listener.reconnects() : 0);
+    }
+
+    @Override
+    public void close() {
+        if (listener != null) {
+            listener.close();
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+/**
+ * Who is online, kept in memory and written to users.is_online / last_seen in batches.
+ *
+ * A user goes offline only after their last session has been gone for the grace
+ * period, so a network blip (disconnect + reconnect) changes nothing at all. Real
+ * changes are pushed to the user's friends as presence_changed and queued for the
+ * next flush, which writes every pending change with a single UPDATE.
+ *
+ * In a cluster each node tracks its own users. A user who is also connected to
+ * another node stays online when they leave this one; the node they leave last
+ * announces them offline.
+ */
+public class PresenceEngine {
+    private static final Logger log = LoggerFactory.getLogger(PresenceEngine.class);
+
+    private static final long GRACE_MS = Long.parseLong(System.getenv().getOrDefault("SERVER_PRESENCE_GRACE_MS", "5000"));
+    private static final long FLUSH_MS = Long.parseLong(System.getenv().getOrDefault("SERVER_PRESENCE_FLUSH_MS", "1000"));
+
+    /**
+     * Delivers an event to every device of a user
+     */
+    public interface Notifier {
+        boolean send(int userId, String event, Object payload);
+    }
+
+    private record Change(boolean online, long atMillis) {}
+
+    private final ChatRepository repository;
+    private final FriendGraph friendGraph;
+    private final SessionRegistry sessions;
+    private final EventDispatcher dispatcher;
+    private final Notifier notifier;
+    private final IntPredicate onlineElsewhere;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "presence");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final ConcurrentHashMap<Integer, Boolean> online = new ConcurrentHashMap<>();
+    // userId -> token of the offline timer that is allowed to fire
+    private final ConcurrentHashMap<Integer, Long> pendingOffline = new ConcurrentHashMap<>();
+    private final AtomicLong timerTokens = new AtomicLong();
+    private final ConcurrentHashMap<Integer, Change> dirty = new ConcurrentHashMap<>();
+
+    private final LongAdder debounced = new LongAdder();
+    private final LongAdder flushedRows = new LongAdder();
+
+    public PresenceEngine(ChatRepository repository, FriendGraph friendGraph, SessionRegistry sessions,
+                          EventDispatcher dispatcher, Notifier notifier, IntPredicate onlineElsewhere) {
+        this.repository = repository;
+        this.friendGraph = friendGraph;
+        this.sessions = sessions;
+        this.dispatcher = dispatcher;
+        this.notifier = notifier;
+        this.onlineElsewhere = onlineElsewhere;
+    }
+
+    /**
+     * @param standalone true if this is the only node, so nobody can be connected yet
+     */
+    public void start(boolean standalone) {
+        if (standalone) {
+            try {
+                repository.resetOnlineFlags();
+            } catch (Exception e) {
+                log.error("failed to reset online flags", e);
+            }
+        }
+        scheduler.scheduleWithFixedDelay(this::flush, FLUSH_MS, FLUSH_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // connected(), disconnected() and expire() all run on the user's dispatcher queue,
+    // so they never race each other for the same user.
+
+    /**
+     * A user's first session connected
+     */
+    public void connected(int userId) {
+        if (pendingOffline.remove(userId) != null) {
+            // Came back within the grace period: nobody needs to hear about it
+            debounced.increment();
+            return;
+        }
+        if (online.put(userId, Boolean.TRUE) == null && !onlineElsewhere.test(userId)) {
+            changed(userId, true);
+        }
+    }
+
+    /**
+     * A user's last session disconnected
+     */
+    public void disconnected(int userId) {
+        long token = timerTokens.incrementAndGet();
+        pendingOffline.put(userId, token);
+        scheduler.schedule(() -> dispatcher.execute("user:" + userId, () -> expire(userId, token)),
+                GRACE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire(int userId, long token) {
+        // A reconnect (or a newer disconnect) since this timer was set wins
+        if (!pendingOffline.remove(userId, token) || sessions.isOnline(userId)) {
+            return;
+        }
+        if (online.remove(userId) != null && !onlineElsewhere.test(userId)) {
+            changed(userId, false);
+        }
+    }
+
+    private void changed(int userId, boolean isOnline) {
+        dirty.put(userId, new Change(isOnline, System.currentTimeMillis()));
+
+        Map<String, Object> event = new HashMap<>();
+        event.put("userId", userId);
+        event.put("online", isOnline);
+        try {
+            for (int friendId : friendGraph.friends(userId)) {
+                if (isOnline(friendId)) {
+                    notifier.send(friendId, "presence_changed", event);
+                }
+            }
+        } catch (Exception e) {
+            log.atError().addKeyValue("userId", userId).setCause(e).log("failed to notify friends");
+        }
+    }
+
+    public boolean isOnline(int userId) {
+        return online.containsKey(userId) || onlineElsewhere.test(userId);
+    }
+
+    /**
+     * The subset of a user's friends that are online right now
+     */
+    public int[] onlineFriends(int userId) throws Exception {
+        int[] friends = friendGraph.friends(userId);
+        // The graph's array is shared; collect into a new one
+        int[] result = new int[friends.length];
+        int n = 0;
+        for (int friendId : friends) {
+            if (isOnline(friendId)) result[n++] = friendId;
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    private void flush() {
+        if (dirty.isEmpty()) return;
+
+        Map<Integer, Change> batch = new HashMap<>();
+        for (Integer userId : dirty.keySet()) {
+            Change change = dirty.remove(userId);
+            if (change != null) batch.put(userId, change);
+        }
+
+        int n = batch.size();
+        int[] ids = new int[n];
+        boolean[] states = new boolean[n];
+        long[] times = new long[n];
+        int i = 0;
+        for (Map.Entry<Integer, Change> e : batch.entrySet()) {
+            ids[i] = e.getKey();
+            states[i] = e.getValue().online();
+            times[i] = e.getValue().atMillis();
+            i++;
+        }
+
+        try {
+            repository.updatePresence(ids, states, times);
+            flushedRows.add(n);
+        } catch (Exception e) {
+            log.warn("presence flush failed, retrying next round", e);
+            // Put the changes back unless something newer arrived meanwhile
+            batch.forEach(dirty::putIfAbsent);
+        }
+    }
+
+    public String stats() {
+        return "online=" + online.size() + " pendingOffline=" + pendingOffline.size()
+                + " debounced=" + debounced.sum() + " flushedRows=" + flushedRows.sum();
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        flush();
+    }
+}
@@ -0,0 +1,108 @@
+package com.birdsenger.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets per user and event type, so one runaway client can't flood the database.
+ *
+ * Each bucket is a single AtomicLong holding the time at which it will be full
+ * again (GCRA): taking a token is one read and one CAS, no lock and no timer.
+ * A bucket that is full again holds no information and is swept away.
+ *
+ * Limits are "event=perSecond:burst" pairs, e.g. SERVER_RATE_LIMITS=send_message=5:20;
+ * they override the defaults below event by event. A rate of 0 turns a limit off.
+ */
+public class RateLimiter {
+    private static final String DEFAULT_LIMITS =
+            "send_message=10:30,send_money=1:5,send_friend_request=0.5:5," +
+            "respond_friend_request=5:20,respond_friend_requests=1:5,mark_read=10:30,load_history=5:20," +
+            "profile_changed=1:5,conversation_changed=1:10";
+
+    private static final class EventLimit {
+        final String event;
+        final long intervalNanos;
+        final long toleranceNanos;
+        final ConcurrentHashMap<Integer, AtomicLong> fullAt = new ConcurrentHashMap<>();
+        final LongAdder allowed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+
+        EventLimit(String event, double perSecond, int burst) {
+            this.event = event;
+            this.intervalNanos = (long) (1_000_000_000L / perSecond);
+            this.toleranceNanos = intervalNanos * (Math.max(burst, 1) - 1);
+        }
+    }
+
+    // Read-only after construction
+    private final Map<String, EventLimit> limits = new HashMap<>();
+
+    public RateLimiter() {
+        this(DEFAULT_LIMITS + "," + System.getenv().getOrDefault("SERVER_RATE_LIMITS", ""));
+    }
+
+    public RateLimiter(String spec) {
+        for (String entry : spec.split(",")) {
+            String[] parts = entry.trim().split("[=:]");
+            if (parts.length != 3) continue;
+            double perSecond = Double.parseDouble(parts[1]);
+            if (perSecond <= 0) {
+                limits.remove(parts[0]);
+            } else {
+                limits.put(parts[0], new EventLimit(parts[0], perSecond, Integer.parseInt(parts[2])));
+            }
+        }
+    }
+
+    /**
+     * Take a token for the user's event. Returns 0 if allowed, otherwise how many
+     * nanoseconds until a token is available.
+     */
+    public long tryAcquire(String event, int userId) {
+        EventLimit limit = limits.get(event);
+        if (limit == null) return 0;
+
+        AtomicLong fullAt = limit.fullAt.get(userId);
+        if (fullAt == null) {
+            fullAt = limit.fullAt.computeIfAbsent(userId, id -> new AtomicLong(System.nanoTime()));
+        }
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long base = current - now > 0 ? current : now;
+            long debt = base - now;
+            if (debt > limit.toleranceNanos) {
+                limit.rejected.increment();
+                return debt - limit.toleranceNanos;
+            }
+            if (fullAt.compareAndSet(current, base + limit.intervalNanos)) {
+                limit.allowed.increment();
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Forget buckets that have refilled
+     */
+    public void sweep() {
+        long now = System.nanoTime();
+        for (EventLimit limit : limits.values()) {
+            limit.fullAt.values().removeIf(fullAt -> fullAt.get() - now <= 0);
+        }
+    }
+
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (EventLimit limit : limits.values()) {
+            long rejected = limit.rejected.sum();
+            if (limit.allowed.sum() == 0 && rejected == 0) continue;
+            if (sb.length() > 0) sb.append(" ");
+            sb.append(limit.event).append("=").append(limit.allowed.sum()).append("/").append(rejected);
+        }
+        return sb.length() == 0 ? "idle" : "allowed/rejected " + sb;
+    }
+}
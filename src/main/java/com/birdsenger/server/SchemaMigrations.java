@@ -0,0 +1,159 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Brings the database schema up to the version this build expects.
+ *
+ * Migrations are SQL scripts in src/main/resources/db/migration, named
+ * V<version>__<description>.sql and listed in MIGRATIONS below. Each pending one
+ * runs in its own transaction and is recorded in schema_migrations with a checksum;
+ * a script that changed after it was applied stops the server rather than leaving
+ * databases that differ depending on when they were migrated. Add a new script for
+ * every change, never edit an applied one.
+ *
+ * Several nodes may start at once: they take turns on an advisory lock, and the
+ * later ones find nothing left to do.
+ */
+public class SchemaMigrations {
+    private static final Logger log = LoggerFactory.getLogger(SchemaMigrations.class);
+
+    // In order; the version is the number after the V
+    static final String[] MIGRATIONS = {
+            "V1__baseline.sql",
+            "V2__transfer_keys.sql",
+            "V3__unread_counters.sql",
+            "V4__conversation_summaries.sql",
+            "V5__query_indexes.sql",
+            "V6__partition_messages.sql",
+            "V7__ledger_set_aside.sql",
+    };
+    private static final String LOCATION = "/db/migration/";
+    // Any fixed number; only this class takes it
+    private static final long LOCK_KEY = 0x62697264L;
+
+    private static final String CREATE_HISTORY =
+            "CREATE TABLE IF NOT EXISTS schema_migrations (version INT PRIMARY KEY, name TEXT NOT NULL, " +
+            "checksum TEXT NOT NULL, applied_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, duration_ms BIGINT NOT NULL)";
+    private static final String SELECT_APPLIED =
+            "SELECT version, checksum FROM schema_migrations";
+    private static final String INSERT_APPLIED =
+            "INSERT INTO schema_migrations (version, name, checksum, duration_ms) VALUES (?, ?, ?, ?)";
+
+    private final ServerDatabase database;
+
+    public SchemaMigrations(ServerDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Apply every migration this database hasn't had yet. Returns how many ran.
+     */
+    public int migrate() throws SQLException, IOException {
+        try (Connection conn = database.getConnection()) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("SELECT pg_advisory_lock(" + LOCK_KEY + ")");
+            }
+            try {
+                return migrate(conn);
+            } finally {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SELECT pg_advisory_unlock(" + LOCK_KEY + ")");
+                }
+            }
+        }
+    }
+
+    private int migrate(Connection conn) throws SQLException, IOException {
+        Map<Integer, String> applied = new HashMap<>();
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(CREATE_HISTORY);
+            try (ResultSet rs = stmt.executeQuery(SELECT_APPLIED)) {
+                while (rs.next()) {
+                    applied.put(rs.getInt(1), rs.getString(2));
+                }
+            }
+        }
+
+        int ran = 0;
+        for (String name : MIGRATIONS) {
+            int version = version(name);
+            String script = load(name);
+            String checksum = checksum(script);
+
+            String appliedChecksum = applied.get(version);
+            if (appliedChecksum != null) {
+                if (!appliedChecksum.equals(checksum)) {
+                    throw new IllegalStateException(name + " was changed after it was applied; " +
+                            "add a new migration instead");
+                }
+                continue;
+            }
+
+            long start = System.nanoTime();
+            conn.setAutoCommit(false);
+            try (Statement stmt = conn.createStatement();
+                 PreparedStatement record = conn.prepareStatement(INSERT_APPLIED)) {
+                stmt.execute(script);
+                long millis = (System.nanoTime() - start) / 1_000_000;
+                record.setInt(1, version);
+                record.setString(2, name);
+                record.setString(3, checksum);
+                record.setLong(4, millis);
+                record.executeUpdate();
+                conn.commit();
+                log.atInfo().addKeyValue("migration", name).addKeyValue("ms", millis).log("schema migrated");
+                ran++;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Migration " + name + " failed: " + e.getMessage(), e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+        if (ran == 0) {
+            log.atInfo().addKeyValue("version", version(MIGRATIONS[MIGRATIONS.length - 1])).log("schema up to date");
+        }
+        return ran;
+    }
+
+    // V12__add_things.sql -> 12
+    static int version(String name) {
+        return Integer.parseInt(name.substring(1, name.indexOf("__")));
+    }
+
+    static String load(String name) throws IOException {
+        try (InputStream in = SchemaMigrations.class.getResourceAsStream(LOCATION + name)) {
+            if (in == null) {
+                throw new IOException("Migration " + name + " is not on the classpath");
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String checksum(String script) {
+        try {
+            // Line endings differ between checkouts; the SQL doesn't
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                    .digest(script.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
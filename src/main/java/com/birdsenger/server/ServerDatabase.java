@@ -0,0 +1,106 @@
+package com.birdsenger.server;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Connection pool owned by the socket server.
+ *
+ * Kept separate from the client's DatabaseManager so the server can size its
+ * pool for event throughput and so several server instances can live in one JVM.
+ */
+public class ServerDatabase {
+    private static final Logger log = LoggerFactory.getLogger(ServerDatabase.class);
+
+    private static final String DB_HOST = System.getenv().getOrDefault("DB_HOST", "13.229.69.180");
+    private static final String DB_PORT = System.getenv().getOrDefault("DB_PORT", "5432");
+    private static final String DB_NAME = System.getenv().getOrDefault("DB_NAME", "birdsenger");
+    private static final String DB_USER = System.getenv().getOrDefault("DB_USER", "birduser");
+    private static final String DB_PASSWORD = System.getenv().getOrDefault("DB_PASSWORD", "BirdSecure2024!");
+
+    private static final int POOL_SIZE = Integer.parseInt(System.getenv().getOrDefault("SERVER_DB_POOL_SIZE", "20"));
+    private static final int MIN_IDLE = Integer.parseInt(System.getenv().getOrDefault("SERVER_DB_MIN_IDLE", "5"));
+
+    private static final String DB_URL = String.format("jdbc:postgresql://%s:%s/%s",
+            DB_HOST, DB_PORT, DB_NAME);
+
+    private final HikariDataSource dataSource;
+
+    public ServerDatabase() {
+        this("birdsenger-server");
+    }
+
+    public ServerDatabase(String poolName) {
+        this(poolName, POOL_SIZE);
+    }
+
+    /**
+     * @param poolName must be unique per JVM, it names the pool's MBean
+     */
+    public ServerDatabase(String poolName, int poolSize) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(poolName);
+        config.setJdbcUrl(DB_URL);
+        config.setUsername(DB_USER);
+        config.setPassword(DB_PASSWORD);
+        config.setMaximumPoolSize(poolSize);
+        config.setMinimumIdle(Math.min(MIN_IDLE, poolSize));
+        config.setConnectionTimeout(5000);
+        config.setIdleTimeout(600000);
+        config.setMaxLifetime(1800000);
+        config.setRegisterMbeans(true);
+
+        // Prepare every statement on the server the first time it is used and keep it
+        // in the driver's per-connection cache, so repeated events skip parse/plan.
+        config.addDataSourceProperty("prepareThreshold", "1");
+        config.addDataSourceProperty("preparedStatementCacheQueries", "256");
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", "5");
+        config.addDataSourceProperty("tcpKeepAlive", "true");
+
+        dataSource = new HikariDataSource(config);
+        log.atInfo().addKeyValue("url", DB_URL).addKeyValue("maxPoolSize", poolSize).log("server connection pool initialized");
+    }
+
+    public Connection getConnection() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    /**
+     * A connection outside the pool, for sessions that stay open for the life of
+     * the server (LISTEN). The caller closes it.
+     */
+    public Connection openDirectConnection() throws SQLException {
+        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+    }
+
+    /**
+     * Snapshot of pool usage, e.g. "active=3 idle=17 total=20 waiting=0"
+     */
+    public String poolStats() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        if (pool == null) {
+            return "pool not started";
+        }
+        return "active=" + pool.getActiveConnections()
+                + " idle=" + pool.getIdleConnections()
+                + " total=" + pool.getTotalConnections()
+                + " waiting=" + pool.getThreadsAwaitingConnection();
+    }
+
+    public HikariPoolMXBean getPoolMXBean() {
+        return dataSource.getHikariPoolMXBean();
+    }
+
+    public void close() {
+        if (!dataSource.isClosed()) {
+            dataSource.close();
+        }
+    }
+}
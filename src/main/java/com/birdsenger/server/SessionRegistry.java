@@ -0,0 +1,121 @@
+package com.birdsenger.server;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Which socket sessions belong to which user, in both directions.
+ *
+ * A user can be connected from several devices at once; each device gets every
+ * event. Lookups are O(1) either way and a user's sessions are an immutable array,
+ * so fan-out iterates without locking or copying.
+ */
+public class SessionRegistry {
+    private static final UUID[] NONE = new UUID[0];
+
+    /**
+     * Result of removing a session: whose it was and whether it was their last one
+     */
+    public record Removal(int userId, boolean lastSession) {}
+
+    private final ConcurrentHashMap<UUID, Integer> userBySession = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, UUID[]> sessionsByUser = new ConcurrentHashMap<>();
+
+    /**
+     * Bind a session to a user. Returns true if this is the user's first session,
+     * i.e. the user just came online.
+     */
+    public boolean register(int userId, UUID sessionId) {
+        Integer previous = userBySession.put(sessionId, userId);
+        if (previous != null && previous != userId) {
+            // Same socket re-identified as someone else (logout/login without reconnecting)
+            detach(previous, sessionId);
+        }
+
+        boolean[] first = new boolean[1];
+        sessionsByUser.compute(userId, (id, sessions) -> {
+            if (sessions == null) {
+                first[0] = true;
+                return new UUID[]{sessionId};
+            }
+            for (UUID s : sessions) {
+                if (s.equals(sessionId)) return sessions;
+            }
+            UUID[] grown = Arrays.copyOf(sessions, sessions.length + 1);
+            grown[sessions.length] = sessionId;
+            return grown;
+        });
+        return first[0];
+    }
+
+    /**
+     * Forget a session, or return null if it was never registered
+     */
+    public Removal unregister(UUID sessionId) {
+        Integer userId = userBySession.remove(sessionId);
+        if (userId == null) {
+            return null;
+        }
+        return new Removal(userId, detach(userId, sessionId));
+    }
+
+    // Returns true if the user has no sessions left
+    private boolean detach(int userId, UUID sessionId) {
+        boolean[] last = new boolean[1];
+        sessionsByUser.computeIfPresent(userId, (id, sessions) -> {
+            int idx = -1;
+            for (int i = 0; i < sessions.length; i++) {
+                if (sessions[i].equals(sessionId)) {
+                    idx = i;
+                    break;
+                }
+            }
+            if (idx < 0) return sessions;
+            if (sessions.length == 1) {
+                last[0] = true;
+                return null;
+            }
+            UUID[] shrunk = new UUID[sessions.length - 1];
+            System.arraycopy(sessions, 0, shrunk, 0, idx);
+            System.arraycopy(sessions, idx + 1, shrunk, idx, sessions.length - idx - 1);
+            return shrunk;
+        });
+        return last[0];
+    }
+
+    public UUID[] sessions(int userId) {
+        return sessionsByUser.getOrDefault(userId, NONE);
+    }
+
+    /**
+     * User bound to a session, or -1
+     */
+    public int userOf(UUID sessionId) {
+        Integer userId = userBySession.get(sessionId);
+        return userId != null ? userId : -1;
+    }
+
+    /**
+     * Every user with at least one session
+     */
+    public int[] userIds() {
+        return sessionsByUser.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public boolean isOnline(int userId) {
+        return sessionsByUser.containsKey(userId);
+    }
+
+    public int sessionCount() {
+        return userBySession.size();
+    }
+
+    public int userCount() {
+        return sessionsByUser.size();
+    }
+
+    public String stats() {
+        return "sessions=" + sessionCount() + " users=" + userCount();
+    }
+}
@@ -1,363 +1,947 @@
 package com.birdsenger.server;
 
 import com.corundumstudio.socketio.*;
+import com.birdsenger.utils.MessageTrace;
+import com.corundumstudio.socketio.listener.DataListener;
 import com.google.gson.Gson;
-import java.sql.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import java.nio.file.Path;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 
 public class SocketServer {
+    private static final Logger log = LoggerFactory.getLogger(SocketServer.class);
+    // One line per chat message: sampled by default, see LogConfig
+    private static final Logger messageLog = LoggerFactory.getLogger(SocketServer.class.getName() + ".messages");
+    private static final Logger statsLog = LoggerFactory.getLogger(SocketServer.class.getName() + ".stats");
+    private static final int PORT = Integer.parseInt(System.getenv().getOrDefault("SERVER_PORT", "9092"));
+    private static final String NODE_ID = System.getenv().getOrDefault("SERVER_NODE_ID", "node-" + PORT);
+    // "local" (single server, or several in one JVM) or "postgres" (LISTEN/NOTIFY between machines)
+    private static final String CLUSTER_BUS = System.getenv().getOrDefault("SERVER_CLUSTER_BUS", "local");
+    // "sql" (transfer in the database) or "memory" (Ledger; single node only)
+    private static final String LEDGER_MODE = System.getenv().getOrDefault("SERVER_LEDGER", "sql");
+    private static final String LEDGER_DIR = System.getenv().getOrDefault("SERVER_LEDGER_DIR", "ledger");
+    // Archived message partitions; every node must see the same directory
+    private static final String ARCHIVE_DIR = System.getenv().getOrDefault("SERVER_ARCHIVE_DIR", "archive");
+    // GET /metrics listens on the socket port plus this offset (0 turns it off), so nodes sharing a host don't collide
+    private static final int METRICS_PORT_OFFSET = Integer.parseInt(System.getenv().getOrDefault("SERVER_METRICS_PORT_OFFSET", "1000"));
+    private static final String METRICS_HOST = System.getenv().getOrDefault("SERVER_METRICS_HOST", "127.0.0.1");
+    private static final int HISTORY_PAGE_SIZE = Integer.parseInt(System.getenv().getOrDefault("SERVER_HISTORY_PAGE_SIZE", "50"));
+    // Where a rate-limited event's rejection goes when the client didn't ask for an ack
+    private static final Map<String, String> RATE_LIMIT_REPLIES = Map.of(
+            "send_money", "money_sent",
+            "send_friend_request", "friend_request_response");
+
     private SocketIOServer server;
-    private Map<Integer, UUID> userSessions = new ConcurrentHashMap<>();
+    private final int port;
+    private final boolean clustered;
+    private final boolean useLedger;
+    private Ledger ledger;
+    private final SessionRegistry sessions = new SessionRegistry();
+
+    private final ServerDatabase database;
+    private final ChatRepository repository;
+    private final MessageArchive archive;
+    private final MessagePartitions partitions;
+    private final EventDispatcher dispatcher = new EventDispatcher();
+    private final MessageBatcher messageBatcher;
+    private final MembershipIndex membershipIndex;
+    private final PresenceEngine presence;
+    private final UserDirectory userDirectory;
+    private final ClusterRouter router;
+    private final TransferKeys transferKeys = new TransferKeys();
+    private final OutboundQueues outboxes;
+    private final RateLimiter rateLimiter = new RateLimiter();
+    private final FriendGraph friendGraph;
+    private PgListener signupListener;
+    private final Metrics metrics = new Metrics("birdsenger_");
+    // Filled while the listeners are registered, read-only afterwards
+    private final Map<String, EventMetrics> eventMetrics = new HashMap<>();
+    private final Metrics.Timer fanOutTimer = metrics.timer("message_fanout_seconds",
+            "Time to push a stored message to every online member");
+    private final Metrics.Counter deliveries = metrics.counter("message_deliveries_total",
+            "Messages pushed to an online member");
+
+    private record EventMetrics(Metrics.Counter received, Metrics.Counter rateLimited,
+                                Metrics.Timer queued, Metrics.Timer handled) {}
+    private final ScheduledExecutorService statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "server-stats");
+        t.setDaemon(true);
+        return t;
+    });
 
     public SocketServer() {
+        this(PORT, NODE_ID, CLUSTER_BUS, LEDGER_MODE);
+    }
+
+    /**
+     * @param nodeId      unique within the cluster
+     * @param busType     "local" or "postgres", see ClusterBus
+     * @param ledgerMode  "sql" or "memory", see Ledger
+     */
+    public SocketServer(int port, String nodeId, String busType, String ledgerMode) {
+        this.port = port;
         Configuration config = new Configuration();
         config.setHostname("0.0.0.0");
-        config.setPort(9092);
+        config.setPort(port);
         server = new SocketIOServer(config);
+        outboxes = new OutboundQueues(server, metrics);
+        database = new ServerDatabase("birdsenger-server-" + nodeId);
+        repository = new ChatRepository(database, metrics.timer("db_query_seconds",
+                "Time spent in the database per repository call"));
+        archive = new MessageArchive(database, Path.of(ARCHIVE_DIR));
+        partitions = new MessagePartitions(database, archive);
+        messageBatcher = new MessageBatcher(repository, metrics);
+        membershipIndex = new MembershipIndex(repository);
+        userDirectory = new UserDirectory(repository);
+        friendGraph = new FriendGraph(repository);
+
+        clustered = "postgres".equals(busType);
+        useLedger = "memory".equals(ledgerMode) && !clustered;
+        if ("memory".equals(ledgerMode) && clustered) {
+            log.warn("the in-memory ledger needs a single node, using SQL transfers instead");
+        }
+        ClusterBus bus = clustered ? new PgNotifyClusterBus(database) : new LocalClusterBus();
+        router = new ClusterRouter(nodeId, bus, sessions, new ClusterRouter.Listener() {
+            @Override
+            public void deliver(int userId, String event, Object payload) {
+                sendToLocalSessions(userId, event, payload);
+            }
+
+            @Override
+            public void invalidate(String kind, int id) {
+                invalidateLocally(kind, id);
+            }
+        });
+        presence = new PresenceEngine(repository, friendGraph, sessions, dispatcher, this::sendToUser, router::isOnlineElsewhere);
         setupEvents();
+        registerGauges();
+    }
+
+    /**
+     * Listen for a client event, counting every one received
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void on(String event, DataListener<Map> listener) {
+        EventMetrics m = new EventMetrics(
+                metrics.counter("events_received_total", "Socket events received", "event", event),
+                metrics.counter("events_rate_limited_total", "Socket events rejected by the rate limiter", "event", event),
+                metrics.timer("event_queue_seconds", "Time from receiving an event to starting its handler", "event", event),
+                metrics.timer("event_handler_seconds", "Time spent in an event's handler", "event", event));
+        eventMetrics.put(event, m);
+        server.addEventListener(event, Map.class, (client, data, ack) -> {
+            m.received().increment();
+            listener.onData(client, data, ack);
+        });
+    }
+
+    /**
+     * Hand an event's work to the dispatcher, timing how long it waited and how long it ran
+     */
+    private void dispatch(String event, String key, Runnable handler) {
+        EventMetrics m = eventMetrics.get(event);
+        long received = System.nanoTime();
+        dispatcher.execute(key, () -> {
+            long start = System.nanoTime();
+            m.queued().recordMicros((start - received) / 1000);
+            try {
+                handler.run();
+            } finally {
+                m.handled().recordSince(start);
+            }
+        });
+    }
+
+    private void registerGauges() {
+        metrics.gauge("sessions", "Connected sockets on this node", sessions::sessionCount);
+        metrics.gauge("users_online", "Users with at least one socket on this node", sessions::userCount);
+        metrics.gauge("db_pool_connections", "Pooled database connections", () -> pool(HikariPoolMXBean::getActiveConnections), "state", "active");
+        metrics.gauge("db_pool_connections", "Pooled database connections", () -> pool(HikariPoolMXBean::getIdleConnections), "state", "idle");
+        metrics.gauge("db_pool_waiting_threads", "Threads waiting for a database connection", () -> pool(HikariPoolMXBean::getThreadsAwaitingConnection));
+        metrics.gauge("queue_depth", "Work waiting to be processed", dispatcher::queueDepth, "queue", "dispatcher");
+        metrics.gauge("queue_depth", "Work waiting to be processed", messageBatcher::queueDepth, "queue", "message_batcher");
+        metrics.gauge("queue_depth", "Work waiting to be processed", outboxes::queuedEvents, "queue", "outbox");
+        metrics.gauge("queue_depth", "Work waiting to be processed", () -> ledger != null ? ledger.projectorBacklog() : 0, "queue", "ledger_projector");
+        metrics.gauge("dispatcher_active_keys", "Ordering keys with queued or running events", dispatcher::activeKeys);
+        metrics.gauge("outbox_backlogged_sessions", "Sockets whose events are queued because they fell behind", outboxes::backloggedSessions);
+        metrics.counter("outbox_dropped_total", "Queued events dropped for slow or disconnected clients", outboxes::droppedEvents);
+        metrics.counter("outbox_parked_expired_total", "Payment events dropped because their user didn't reconnect in time",
+                outboxes::expiredParkedEvents);
+        metrics.counter("outbox_disconnects_total", "Slow clients disconnected", outboxes::slowClientDisconnects);
+        metrics.counter("ledger_set_aside_total", "Ledger entries the database refused; see ledger_set_aside",
+                () -> ledger != null ? ledger.setAsideCount() : 0);
+    }
+
+    private long pool(ToIntFunction<HikariPoolMXBean> stat) {
+        HikariPoolMXBean pool = database.getPoolMXBean();
+        return pool == null ? 0 : stat.applyAsInt(pool);
     }
 
     private void setupEvents() {
+        // Listeners run on netty's I/O threads: they only decode the ordering key and hand
+        // the blocking work to the dispatcher. Same key => handled in arrival order.
+
         // User connection
-        server.addEventListener("user_connected", Map.class, (client, data, ack) -> {
+        on("user_connected", (client, data, ack) -> {
             int userId = ((Number) data.get("userId")).intValue();
-            userSessions.put(userId, client.getSessionId());
-            updateOnline(userId, true);
-            System.out.println("✅ User " + userId + " connected");
+            // Only the first device flips the user online
+            boolean firstSession = sessions.register(userId, client.getSessionId());
+            dispatch("user_connected", "user:" + userId, () -> {
+                if (firstSession) {
+                    router.userConnected(userId);
+                    presence.connected(userId);
+                    log.atInfo().addKeyValue("userId", userId).log("user connected");
+                }
+                sendPresenceSnapshot(client, userId);
+                outboxes.sendParked(userId, client.getSessionId());
+            });
         });
 
         // User disconnection
         server.addDisconnectListener(client -> {
-            for (Map.Entry<Integer, UUID> e : userSessions.entrySet()) {
-                if (e.getValue().equals(client.getSessionId())) {
-                    updateOnline(e.getKey(), false);
-                    userSessions.remove(e.getKey());
-                    System.out.println("👋 User " + e.getKey() + " disconnected");
-                    break;
+            SessionRegistry.Removal removal = sessions.unregister(client.getSessionId());
+            outboxes.closed(client.getSessionId(), removal != null ? removal.userId() : -1);
+            if (removal != null && removal.lastSession()) {
+                int userId = removal.userId();
+                dispatcher.execute("user:" + userId, () -> {
+                    router.userDisconnected(userId);
+                    presence.disconnected(userId);
+                    log.atInfo().addKeyValue("userId", userId).log("user disconnected");
+                });
+            } else if (removal != null) {
+                // Still connected elsewhere: payments queued for this session go there
+                UUID[] others = sessions.sessions(removal.userId());
+                if (others.length > 0) {
+                    outboxes.sendParked(removal.userId(), others[0]);
                 }
             }
         });
 
-        // Send message
-        server.addEventListener("send_message", Map.class, (client, data, ack) -> {
-            int convId = ((Number) data.get("conversationId")).intValue();
-            int senderId = ((Number) data.get("senderId")).intValue();
-            String content = (String) data.get("content");
+        // Events that write to the database are rate limited per user before they are queued
+        on("send_message", (client, data, ack) -> {
+            if (rateLimited(client, ack, "send_message", intValue(data, "senderId"))) return;
+            int convId = intValue(data, "conversationId");
+            // Clients that don't trace get an id here, so the server and recipient stages still line up
+            String traceId = data.get("traceId") instanceof String ? (String) data.get("traceId") : MessageTrace.newTraceId();
+            MessageTrace queued = MessageTrace.begin(traceId, MessageTrace.SERVER_QUEUE, convId, intValue(data, "senderId"));
+            dispatch("send_message", "conv:" + convId, () -> {
+                queued.end(0);
+                handleSendMessage(data, traceId, ack);
+            });
+        });
 
-            try (Connection conn = DriverManager.getConnection(
-                    "jdbc:postgresql://13.229.69.180:5432/birdsenger", "birduser", "BirdSecure2024!")) {
+        // Money moves for the user bound to the socket, whatever senderId the payload claims
+        on("send_money", (client, data, ack) -> {
+            int senderId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, senderId) || rateLimited(client, ack, "send_money", senderId)) return;
+            dispatch("send_money", "user:" + senderId, () -> handleSendMoney(client, senderId, data, ack));
+        });
 
-                PreparedStatement stmt = conn.prepareStatement(
-                        "INSERT INTO messages (conversation_id, sender_id, content, message_type) VALUES (?, ?, ?, 'text') RETURNING id");
-                stmt.setInt(1, convId);
-                stmt.setInt(2, senderId);
-                stmt.setString(3, content);
-                ResultSet rs = stmt.executeQuery();
+        on("send_friend_request", (client, data, ack) -> {
+            if (rateLimited(client, ack, "send_friend_request", intValue(data, "senderId"))) return;
+            dispatch("send_friend_request", "user:" + intValue(data, "senderId"), () -> handleSendFriendRequest(client, data));
+        });
 
-                if (rs.next()) {
-                    Map<String, Object> msg = new HashMap<>();
-                    msg.put("conversationId", convId);
-                    msg.put("senderId", senderId);
-                    msg.put("content", content);
-
-                    PreparedStatement mem = conn.prepareStatement(
-                            "SELECT user_id FROM conversation_members WHERE conversation_id = ?");
-                    mem.setInt(1, convId);
-                    ResultSet mems = mem.executeQuery();
-
-                    while (mems.next()) {
-                        int userId = mems.getInt(1);
-                        UUID sid = userSessions.get(userId);
-                        if (sid != null) {
-                            server.getClient(sid).sendEvent("new_message", msg);
-                        }
-                    }
-                    System.out.println("💬 Message sent in conversation " + convId);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        // One request, or many at once ("Accept all"); the outcome comes back in the ack.
+        // The answer is for the user bound to the socket, and only requests sent to them change
+        on("respond_friend_request", (client, data, ack) -> {
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "respond_friend_request", userId)) return;
+            int[] requestIds = {intValue(data, "requestId")};
+            boolean accept = Boolean.TRUE.equals(data.get("accept"));
+            dispatch("respond_friend_request", "user:" + userId, () -> handleRespondFriendRequests(userId, requestIds, accept, ack));
         });
 
-        // Send money
-        server.addEventListener("send_money", Map.class, (client, data, ack) -> {
-            int senderId = ((Number) data.get("senderId")).intValue();
-            int receiverId = ((Number) data.get("receiverId")).intValue();
-            double amount = ((Number) data.get("amount")).doubleValue();
-            int convId = ((Number) data.get("conversationId")).intValue();
-
-            try (Connection conn = DriverManager.getConnection(
-                    "jdbc:postgresql://13.229.69.180:5432/birdsenger", "birduser", "BirdSecure2024!")) {
-
-                conn.setAutoCommit(false);
-
-                PreparedStatement deduct = conn.prepareStatement(
-                        "UPDATE users SET balance = balance - ? WHERE id = ? AND balance >= ?");
-                deduct.setDouble(1, amount);
-                deduct.setInt(2, senderId);
-                deduct.setDouble(3, amount);
-
-                if (deduct.executeUpdate() > 0) {
-                    PreparedStatement add = conn.prepareStatement(
-                            "UPDATE users SET balance = balance + ? WHERE id = ?");
-                    add.setDouble(1, amount);
-                    add.setInt(2, receiverId);
-                    add.executeUpdate();
-
-                    PreparedStatement txn = conn.prepareStatement(
-                            "INSERT INTO transactions (sender_id, receiver_id, amount, conversation_id, status) VALUES (?, ?, ?, ?, 'completed')");
-                    txn.setInt(1, senderId);
-                    txn.setInt(2, receiverId);
-                    txn.setDouble(3, amount);
-                    txn.setInt(4, convId);
-                    txn.executeUpdate();
-
-                    // Insert payment message
-                    PreparedStatement msgStmt = conn.prepareStatement(
-                            "INSERT INTO messages (conversation_id, sender_id, content, message_type) VALUES (?, ?, ?, 'payment')");
-                    msgStmt.setInt(1, convId);
-                    msgStmt.setInt(2, senderId);
-                    msgStmt.setString(3, "Sent $" + amount);
-                    msgStmt.executeUpdate();
-
-                    conn.commit();
-
-                    Map<String, Object> resp = new HashMap<>();
-                    resp.put("success", true);
-                    resp.put("amount", amount);
-
-                    client.sendEvent("money_sent", resp);
-                    UUID rid = userSessions.get(receiverId);
-                    if (rid != null) {
-                        server.getClient(rid).sendEvent("money_received", resp);
-
-                        // Notify to reload messages
-                        Map<String, Object> msgNotif = new HashMap<>();
-                        msgNotif.put("conversationId", convId);
-                        server.getClient(rid).sendEvent("new_message", msgNotif);
-                    }
+        on("respond_friend_requests", (client, data, ack) -> {
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "respond_friend_requests", userId)) return;
+            int[] requestIds = intValues(data, "requestIds");
+            boolean accept = Boolean.TRUE.equals(data.get("accept"));
+            dispatch("respond_friend_requests", "user:" + userId, () -> handleRespondFriendRequests(userId, requestIds, accept, ack));
+        });
 
-                    System.out.println("💰 Money sent: $" + amount + " from " + senderId + " to " + receiverId);
-                } else {
-                    conn.rollback();
-                    Map<String, Object> resp = new HashMap<>();
-                    resp.put("success", false);
-                    resp.put("message", "Insufficient balance");
-                    client.sendEvent("money_sent", resp);
-                    System.out.println("❌ Money transfer failed: insufficient balance");
+        // A user opened a conversation: everything in it is now read
+        on("mark_read", (client, data, ack) -> {
+            int convId = intValue(data, "conversationId");
+            // Only the user bound to the socket can mark their own chats read
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "mark_read", userId)) return;
+            dispatch("mark_read", "conv:" + convId, () -> {
+                try {
+                    repository.markRead(convId, userId);
+                } catch (Exception e) {
+                    log.atError().addKeyValue("conv", convId).addKeyValue("userId", userId).setCause(e)
+                            .log("mark_read failed");
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+            });
         });
 
-        // Send friend request
-        server.addEventListener("send_friend_request", Map.class, (client, data, ack) -> {
-            int senderId = ((Number) data.get("senderId")).intValue();
-            String receiverUsername = (String) data.get("receiverUsername");
-
-            System.out.println("📨 Friend request from user " + senderId + " to " + receiverUsername);
-
-            try (Connection conn = DriverManager.getConnection(
-                    "jdbc:postgresql://13.229.69.180:5432/birdsenger", "birduser", "BirdSecure2024!")) {
-
-                // Find receiver by username or email
-                PreparedStatement findUser = conn.prepareStatement(
-                        "SELECT id FROM users WHERE username = ? OR email = ?");
-                findUser.setString(1, receiverUsername);
-                findUser.setString(2, receiverUsername);
-                ResultSet userRs = findUser.executeQuery();
-
-                if (userRs.next()) {
-                    int receiverId = userRs.getInt("id");
-
-                    // Check if they're the same user
-                    if (senderId == receiverId) {
-                        Map<String, Object> response = new HashMap<>();
-                        response.put("success", false);
-                        response.put("message", "You cannot send a friend request to yourself");
-                        client.sendEvent("friend_request_response", response);
-                        System.out.println("❌ Cannot send request to self");
-                        return;
-                    }
+        // A page of a conversation's history, older than the message the client has
+        on("load_history", (client, data, ack) -> {
+            int convId = intValue(data, "conversationId");
+            // Membership is checked for the user bound to the socket, not the id in the payload
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "load_history", userId)) return;
+            int beforeId = data.get("beforeId") instanceof Number ? intValue(data, "beforeId") : 0;
+            // Keyed by user: a read needs no ordering against the conversation's writes
+            dispatch("load_history", "user:" + userId, () -> handleLoadHistory(convId, userId, beforeId, ack));
+        });
 
-                    // Check if already friends
-                    PreparedStatement checkFriends = conn.prepareStatement(
-                            "SELECT COUNT(*) FROM friendships WHERE user_id = ? AND friend_id = ?");
-                    checkFriends.setInt(1, senderId);
-                    checkFriends.setInt(2, receiverId);
-                    ResultSet friendRs = checkFriends.executeQuery();
-
-                    if (friendRs.next() && friendRs.getInt(1) > 0) {
-                        Map<String, Object> response = new HashMap<>();
-                        response.put("success", false);
-                        response.put("message", "You are already friends with this user");
-                        client.sendEvent("friend_request_response", response);
-                        System.out.println("❌ Already friends");
-                        return;
-                    }
+        // A user changed their name or profile picture; only their own socket can say so
+        on("profile_changed", (client, data, ack) -> {
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "profile_changed", userId)) return;
+            invalidateLocally("profile", userId);
+            dispatch("profile_changed", "user:" + userId, () -> router.invalidate("profile", userId));
+        });
 
-                    // Check if request already exists
-                    PreparedStatement checkStmt = conn.prepareStatement(
-                            "SELECT COUNT(*) FROM friend_requests WHERE sender_id = ? AND receiver_id = ? AND status = 'pending'");
-                    checkStmt.setInt(1, senderId);
-                    checkStmt.setInt(2, receiverId);
-                    ResultSet checkRs = checkStmt.executeQuery();
-
-                    if (checkRs.next() && checkRs.getInt(1) == 0) {
-                        // Insert friend request
-                        PreparedStatement insertStmt = conn.prepareStatement(
-                                "INSERT INTO friend_requests (sender_id, receiver_id, status) VALUES (?, ?, 'pending')");
-                        insertStmt.setInt(1, senderId);
-                        insertStmt.setInt(2, receiverId);
-                        insertStmt.executeUpdate();
-
-                        Map<String, Object> response = new HashMap<>();
-                        response.put("success", true);
-                        response.put("message", "Friend request sent successfully!");
-                        client.sendEvent("friend_request_response", response);
-
-                        // Notify receiver
-                        UUID receiverSession = userSessions.get(receiverId);
-                        if (receiverSession != null) {
-                            Map<String, Object> notification = new HashMap<>();
-                            notification.put("type", "friend_request");
-                            notification.put("senderId", senderId);
-                            server.getClient(receiverSession).sendEvent("new_notification", notification);
-                            System.out.println("🔔 Notified receiver " + receiverId);
-                        }
-
-                        System.out.println("✅ Friend request created: " + senderId + " -> " + receiverId);
+        // A client created or changed a conversation directly in the database
+        on("conversation_changed", (client, data, ack) -> {
+            int convId = intValue(data, "conversationId");
+            int userId = sessions.userOf(client.getSessionId());
+            if (unbound(ack, userId) || rateLimited(client, ack, "conversation_changed", userId)) return;
+            dispatch("conversation_changed", "conv:" + convId, () -> {
+                try {
+                    // Fresh from the database; only a member gets the other nodes to reload too
+                    if (Arrays.binarySearch(membershipIndex.reload(convId), userId) >= 0) {
+                        router.invalidate("conversation", convId);
                     } else {
-                        Map<String, Object> response = new HashMap<>();
-                        response.put("success", false);
-                        response.put("message", "Friend request already sent");
-                        client.sendEvent("friend_request_response", response);
-                        System.out.println("❌ Friend request already exists");
+                        log.atWarn().addKeyValue("conv", convId).addKeyValue("userId", userId)
+                                .log("conversation_changed from a non-member ignored");
                     }
-                } else {
-                    Map<String, Object> response = new HashMap<>();
-                    response.put("success", false);
-                    response.put("message", "User not found");
-                    client.sendEvent("friend_request_response", response);
-                    System.out.println("❌ User not found: " + receiverUsername);
+                } catch (Exception e) {
+                    log.atError().addKeyValue("conv", convId).setCause(e).log("failed to reload members");
                 }
+            });
+        });
+    }
 
-            } catch (Exception e) {
-                System.err.println("❌ Error sending friend request:");
-                e.printStackTrace();
+    // Drop cached state that a client (here or on another node) told us is stale
+    private void invalidateLocally(String kind, int id) {
+        switch (kind) {
+            case "profile" -> userDirectory.invalidate(id);
+            case "friends" -> friendGraph.invalidate(id);
+            case "conversation" -> dispatcher.execute("conv:" + id, () -> {
+                try {
+                    membershipIndex.reload(id);
+                } catch (Exception e) {
+                    log.atError().addKeyValue("conv", id).setCause(e).log("failed to reload members");
+                }
+            });
+            default -> log.atWarn().addKeyValue("kind", kind).log("unknown invalidation");
+        }
+    }
+
+    // Send message
+    private void handleSendMessage(Map<?, ?> data, String traceId, AckRequest ack) {
+        int convId = ((Number) data.get("conversationId")).intValue();
+        int senderId = ((Number) data.get("senderId")).intValue();
+        String content = data.get("content") instanceof String ? (String) data.get("content") : null;
+
+        // Rows that can't be stored are turned away here, before they share a batch with others
+        try {
+            if (content == null) {
+                messageRejected(ack, "Empty message");
+                return;
             }
+            if (!membershipIndex.isMember(convId, senderId)) {
+                messageRejected(ack, "Not a member of this conversation");
+                return;
+            }
+        } catch (Exception e) {
+            log.atError().addKeyValue("conv", convId).addKeyValue("sender", senderId).setCause(e)
+                    .log("membership check failed");
+            messageRejected(ack, "Could not store the message");
+            return;
+        }
+
+        // The insert is group-committed by the batcher; fan-out goes back through the
+        // conversation's queue so members still see messages in order
+        MessageTrace store = MessageTrace.begin(traceId, MessageTrace.SERVER_STORE, convId, senderId);
+        messageBatcher.submit(convId, senderId, content).whenComplete((stored, error) -> {
+            if (error != null) {
+                messageRejected(ack, "Could not store the message");
+                return;
+            }
+
+            store.end(stored.id());
+            if (ack.isAckRequested()) {
+                Map<String, Object> result = new HashMap<>();
+                result.put("success", true);
+                result.put("id", stored.id());
+                result.put("timestamp", stored.timestamp().getTime());
+                ack.sendAckData(result);
+            }
+            dispatcher.execute("conv:" + convId, () -> deliverMessage(convId, senderId, content, "text", stored, traceId));
         });
+    }
 
-        // Respond to friend request
-        server.addEventListener("respond_friend_request", Map.class, (client, data, ack) -> {
-            int requestId = ((Number) data.get("requestId")).intValue();
-            boolean accept = (boolean) data.get("accept");
-
-            System.out.println("📬 Responding to friend request " + requestId + ": " + (accept ? "ACCEPT" : "REJECT"));
-
-            try (Connection conn = DriverManager.getConnection(
-                    "jdbc:postgresql://13.229.69.180:5432/birdsenger", "birduser", "BirdSecure2024!")) {
-
-                if (accept) {
-                    // Get sender and receiver IDs
-                    PreparedStatement getIds = conn.prepareStatement(
-                            "SELECT sender_id, receiver_id FROM friend_requests WHERE id = ?");
-                    getIds.setInt(1, requestId);
-                    ResultSet rs = getIds.executeQuery();
-
-                    if (rs.next()) {
-                        int senderId = rs.getInt("sender_id");
-                        int receiverId = rs.getInt("receiver_id");
-
-                        // Create friendships (both directions)
-                        PreparedStatement addFriend = conn.prepareStatement(
-                                "INSERT INTO friendships (user_id, friend_id) VALUES (?, ?), (?, ?) ON CONFLICT DO NOTHING");
-                        addFriend.setInt(1, senderId);
-                        addFriend.setInt(2, receiverId);
-                        addFriend.setInt(3, receiverId);
-                        addFriend.setInt(4, senderId);
-                        addFriend.executeUpdate();
-
-                        // Create a 1-on-1 conversation between them
-                        PreparedStatement createConv = conn.prepareStatement(
-                                "INSERT INTO conversations (is_group, created_by) VALUES (false, ?) RETURNING id");
-                        createConv.setInt(1, receiverId);
-                        ResultSet convRs = createConv.executeQuery();
-
-                        if (convRs.next()) {
-                            int convId = convRs.getInt("id");
-
-                            // Add both users to the conversation
-                            PreparedStatement addMembers = conn.prepareStatement(
-                                    "INSERT INTO conversation_members (conversation_id, user_id) VALUES (?, ?), (?, ?)");
-                            addMembers.setInt(1, convId);
-                            addMembers.setInt(2, senderId);
-                            addMembers.setInt(3, convId);
-                            addMembers.setInt(4, receiverId);
-                            addMembers.executeUpdate();
-
-                            System.out.println("💬 Created conversation " + convId + " for users " + senderId + " and " + receiverId);
-                        }
-
-                        // Update request status
-                        PreparedStatement updateReq = conn.prepareStatement(
-                                "UPDATE friend_requests SET status = 'accepted' WHERE id = ?");
-                        updateReq.setInt(1, requestId);
-                        updateReq.executeUpdate();
-
-                        // Notify both users to refresh their chat lists
-                        Map<String, Object> notification = new HashMap<>();
-                        notification.put("type", "friend_accepted");
-
-                        UUID senderSession = userSessions.get(senderId);
-                        UUID receiverSession = userSessions.get(receiverId);
-
-                        if (senderSession != null) {
-                            server.getClient(senderSession).sendEvent("friend_status_changed", notification);
-                        }
-                        if (receiverSession != null) {
-                            server.getClient(receiverSession).sendEvent("friend_status_changed", notification);
-                        }
-
-                        System.out.println("✅ Friend request accepted: " + senderId + " <-> " + receiverId);
+    private static void messageRejected(AckRequest ack, String message) {
+        if (ack.isAckRequested()) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("success", false);
+            result.put("message", message);
+            ack.sendAckData(result);
+        }
+    }
+
+    /**
+     * Push a stored message to every member as a complete record, so clients can
+     * render it and update their chat list without querying anything.
+     */
+    private void deliverMessage(int convId, int senderId, String content, String type,
+                                ChatRepository.StoredMessage stored, String traceId) {
+        try {
+            int[] members = membershipIndex.members(convId);
+            UserDirectory.UserProfile sender = userDirectory.profile(senderId);
+
+            Map<String, Object> msg = new HashMap<>();
+            msg.put("id", stored.id());
+            msg.put("conversationId", convId);
+            msg.put("senderId", senderId);
+            msg.put("content", content);
+            msg.put("messageType", type);
+            msg.put("timestamp", stored.timestamp().getTime());
+            msg.put("senderName", sender != null ? sender.displayName() : "Unknown");
+            msg.put("senderAvatarRef", sender != null ? sender.avatarRef() : null);
+            if (traceId != null) {
+                msg.put("traceId", traceId);
+            }
+
+            MessageTrace fanOut = traceId != null
+                    ? MessageTrace.begin(traceId, MessageTrace.SERVER_FANOUT, convId, senderId) : null;
+            long fanOutStart = System.nanoTime();
+            int delivered = 0;
+            for (int userId : members) {
+                if (sessions.isOnline(userId) || router.isOnlineElsewhere(userId)) {
+                    // Each recipient gets their own badge count
+                    Map<String, Object> personal = new HashMap<>(msg);
+                    personal.put("unreadCount", stored.unreadCounts().getOrDefault(userId, 0));
+                    sendToUser(userId, "new_message", personal);
+                    delivered++;
+                }
+            }
+            fanOutTimer.recordSince(fanOutStart);
+            if (fanOut != null) {
+                fanOut.end(stored.id());
+            }
+            deliveries.add(delivered);
+            messageLog.atInfo().addKeyValue("conv", convId).addKeyValue("messageId", stored.id())
+                    .addKeyValue("type", type).addKeyValue("recipients", delivered).log("message delivered");
+        } catch (Exception e) {
+            log.atError().addKeyValue("conv", convId).addKeyValue("messageId", stored.id()).setCause(e)
+                    .log("message delivery failed");
+        }
+    }
+
+    // Load history
+    private void handleLoadHistory(int convId, int userId, int beforeId, AckRequest ack) {
+        Map<String, Object> result = new HashMap<>();
+        try {
+            if (!membershipIndex.isMember(convId, userId)) {
+                result.put("success", false);
+                result.put("message", "Not a member of this conversation");
+            } else {
+                ChatRepository.MessagePage page = repository.findMessagePage(convId, beforeId, HISTORY_PAGE_SIZE);
+                if (!page.hasMore()) {
+                    // Older messages may have been moved out of the database
+                    page = archive.continuePage(convId, beforeId, page, HISTORY_PAGE_SIZE);
+                }
+                List<Map<String, Object>> messages = new ArrayList<>(page.messages().size());
+                for (ChatRepository.HistoryMessage m : page.messages()) {
+                    UserDirectory.UserProfile sender = userDirectory.profile(m.senderId());
+                    Map<String, Object> msg = new HashMap<>();
+                    msg.put("id", m.id());
+                    msg.put("conversationId", convId);
+                    msg.put("senderId", m.senderId());
+                    msg.put("content", m.content());
+                    msg.put("messageType", m.messageType());
+                    msg.put("timestamp", m.timestamp().getTime());
+                    msg.put("senderName", sender != null ? sender.displayName() : "Unknown");
+                    msg.put("senderAvatarRef", sender != null ? sender.avatarRef() : null);
+                    messages.add(msg);
+                }
+                result.put("success", true);
+                result.put("messages", messages);
+                result.put("hasMore", page.hasMore());
+            }
+        } catch (Exception e) {
+            log.atError().addKeyValue("conv", convId).addKeyValue("userId", userId).setCause(e)
+                    .log("load_history failed");
+            result.put("success", false);
+            result.put("message", "Could not load messages");
+        }
+        if (ack.isAckRequested()) {
+            ack.sendAckData(result);
+        }
+    }
+
+    // Send money
+    private void handleSendMoney(SocketIOClient client, int senderId, Map<?, ?> data, AckRequest ack) {
+        int receiverId = ((Number) data.get("receiverId")).intValue();
+        double amount = ((Number) data.get("amount")).doubleValue();
+        int convId = ((Number) data.get("conversationId")).intValue();
+
+        // Checked here for both paths; NaN, negative and sub-cent amounts all round to 0 or less
+        if (Math.round(amount * 100) <= 0) {
+            replyToTransfer(client, ack, transferRejected("Invalid amount"));
+            return;
+        }
+        if (senderId == receiverId) {
+            replyToTransfer(client, ack, transferRejected("Cannot send money to yourself"));
+            return;
+        }
+
+        UUID key;
+        try {
+            key = data.get("transferKey") != null ? UUID.fromString((String) data.get("transferKey")) : null;
+        } catch (IllegalArgumentException e) {
+            replyToTransfer(client, ack, transferRejected("Invalid transfer key"));
+            return;
+        }
+
+        CompletableFuture<Map<String, Object>> response = new CompletableFuture<>();
+        if (key != null) {
+            CompletableFuture<Map<String, Object>> first = transferKeys.claim(key, response);
+            if (first != null) {
+                // A retry of a transfer we've seen: answer with what the first attempt got
+                first.thenAccept(resp -> replyToTransfer(client, ack, resp));
+                return;
+            }
+        }
+        response.thenAccept(resp -> replyToTransfer(client, ack, resp));
+
+        try {
+            if (ledger != null) {
+                if (key != null) {
+                    // The ledger dedupes only keys it hasn't projected yet; a retry of an
+                    // older transfer (after the key left the cache) is found in transactions
+                    ChatRepository.PastTransfer past = repository.findTransferByKey(key);
+                    if (past != null) {
+                        response.complete(transferDone(past.amount(), past.convId(), key));
+                        return;
                     }
-                } else {
-                    // Reject - just update status
-                    PreparedStatement updateReq = conn.prepareStatement(
-                            "UPDATE friend_requests SET status = 'rejected' WHERE id = ?");
-                    updateReq.setInt(1, requestId);
-                    updateReq.executeUpdate();
-
-                    System.out.println("❌ Friend request rejected: " + requestId);
                 }
+                ledgerTransfer(senderId, receiverId, amount, convId, key, response);
+                return;
+            }
 
-            } catch (Exception e) {
-                System.err.println("❌ Error responding to friend request:");
-                e.printStackTrace();
+            // A retried key conflicts in the insert and comes back as a duplicate
+            ChatRepository.MoneyTransfer transfer = repository.transferMoney(senderId, receiverId, amount, convId, key);
+            if (transfer == null) {
+                response.complete(transferRejected("Insufficient balance"));
+            } else if (transfer.duplicate()) {
+                // Recorded before: by an earlier attempt, or by another node that got the key first
+                ChatRepository.PastTransfer past = repository.findTransferByKey(key);
+                response.complete(transferDone(past.amount(), past.convId(), key));
+            } else {
+                moneySent(senderId, receiverId, amount, convId, key, response);
+
+                // The payment shows up in the chat like any other message
+                String content = "Sent $" + amount;
+                ChatRepository.StoredMessage payment = transfer.message();
+                dispatcher.execute("conv:" + convId, () -> deliverMessage(convId, senderId, content, "payment", payment, null));
+            }
+        } catch (Exception e) {
+            log.atError().addKeyValue("sender", senderId).addKeyValue("receiver", receiverId).setCause(e)
+                    .log("money transfer failed");
+            transferFailed(key, response);
+        }
+    }
+
+    // Send money through the in-memory ledger: acked once the transfer is in the log,
+    // the chat message follows when the projector has written it
+    private void ledgerTransfer(int senderId, int receiverId, double amount, int convId, UUID key,
+                                CompletableFuture<Map<String, Object>> response) {
+        long cents = Math.round(amount * 100);
+        ledger.transfer(senderId, receiverId, cents, convId, key).whenComplete((result, error) -> {
+            if (error != null) {
+                log.atError().addKeyValue("sender", senderId).addKeyValue("receiver", receiverId).setCause(error)
+                        .log("money transfer failed");
+                transferFailed(key, response);
+                return;
             }
+            if (!result.success()) {
+                response.complete(transferRejected(result.reason()));
+                return;
+            }
+            if (result.duplicate()) {
+                // A retry of a transfer that is logged but not in the tables yet
+                response.complete(transferDone(cents / 100.0, convId, key));
+                return;
+            }
+
+            moneySent(senderId, receiverId, cents / 100.0, convId, key, response);
+            String content = "Sent $" + (cents / 100.0);
+            result.message().thenAccept(payment ->
+                    dispatcher.execute("conv:" + convId, () -> deliverMessage(convId, senderId, content, "payment", payment, null)));
         });
     }
 
-    private void updateOnline(int userId, boolean online) {
-        try (Connection conn = DriverManager.getConnection(
-                "jdbc:postgresql://13.229.69.180:5432/birdsenger", "birduser", "BirdSecure2024!")) {
-            PreparedStatement stmt = conn.prepareStatement("UPDATE users SET is_online = ? WHERE id = ?");
-            stmt.setBoolean(1, online);
-            stmt.setInt(2, userId);
-            stmt.executeUpdate();
+    private void moneySent(int senderId, int receiverId, double amount, int convId, UUID key,
+                           CompletableFuture<Map<String, Object>> response) {
+        Map<String, Object> resp = transferDone(amount, convId, key);
+        sendToUser(receiverId, "money_received", resp);
+        response.complete(resp);
+        log.atInfo().addKeyValue("sender", senderId).addKeyValue("receiver", receiverId)
+                .addKeyValue("amount", amount).addKeyValue("conv", convId).log("money sent");
+    }
+
+    // No decision was reached: let a retry with the same key try again
+    private void transferFailed(UUID key, CompletableFuture<Map<String, Object>> response) {
+        if (key != null) {
+            transferKeys.release(key);
+        }
+        response.complete(transferRejected("Payment failed, please try again"));
+    }
+
+    private static Map<String, Object> transferDone(double amount, int convId, UUID key) {
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("success", true);
+        resp.put("amount", amount);
+        resp.put("conversationId", convId);
+        if (key != null) {
+            resp.put("transferKey", key.toString());
+        }
+        return resp;
+    }
+
+    private static Map<String, Object> transferRejected(String message) {
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("success", false);
+        resp.put("message", message);
+        return resp;
+    }
+
+    // Clients that ask for an ack get the result there, older ones as money_sent
+    private void replyToTransfer(SocketIOClient client, AckRequest ack, Map<String, Object> resp) {
+        if (!Boolean.TRUE.equals(resp.get("success"))) {
+            log.atInfo().addKeyValue("reason", resp.get("message")).log("money transfer rejected");
+        }
+        if (ack.isAckRequested()) {
+            ack.sendAckData(resp);
+        } else {
+            outboxes.send(client.getSessionId(), "money_sent", resp);
+        }
+    }
+
+    // Send friend request: the lookup and friendship check come from memory,
+    // the duplicate check and the insert are one statement
+    private void handleSendFriendRequest(SocketIOClient client, Map<?, ?> data) {
+        int senderId = ((Number) data.get("senderId")).intValue();
+        String receiverUsername = (String) data.get("receiverUsername");
+
+        try {
+            // Find receiver by username or email
+            int receiverId = userDirectory.findUserId(receiverUsername);
+
+            if (receiverId == -1) {
+                friendRequestResponse(client, false, "User not found");
+                logFriendRequest(senderId, receiverUsername, "unknown_user");
+            } else if (senderId == receiverId) {
+                friendRequestResponse(client, false, "You cannot send a friend request to yourself");
+                logFriendRequest(senderId, receiverUsername, "self");
+            } else if (friendGraph.areFriends(senderId, receiverId)) {
+                friendRequestResponse(client, false, "You are already friends with this user");
+                logFriendRequest(senderId, receiverUsername, "already_friends");
+            } else if (!repository.insertFriendRequestIfNew(senderId, receiverId)) {
+                friendRequestResponse(client, false, "Friend request already sent");
+                logFriendRequest(senderId, receiverUsername, "duplicate");
+            } else {
+                friendRequestResponse(client, true, "Friend request sent successfully!");
+
+                // Notify receiver
+                Map<String, Object> notification = new HashMap<>();
+                notification.put("type", "friend_request");
+                notification.put("senderId", senderId);
+                boolean notified = sendToUser(receiverId, "new_notification", notification);
+                log.atInfo().addKeyValue("sender", senderId).addKeyValue("receiver", receiverId)
+                        .addKeyValue("notified", notified).log("friend request sent");
+            }
+
+        } catch (Exception e) {
+            log.atError().addKeyValue("sender", senderId).setCause(e).log("friend request failed");
+        }
+    }
+
+    private static void logFriendRequest(int senderId, String receiver, String reason) {
+        log.atInfo().addKeyValue("sender", senderId).addKeyValue("receiver", receiver)
+                .addKeyValue("reason", reason).log("friend request refused");
+    }
+
+    private void friendRequestResponse(SocketIOClient client, boolean success, String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", success);
+        response.put("message", message);
+        outboxes.send(client.getSessionId(), "friend_request_response", response);
+    }
+
+    /**
+     * Accept or reject friend requests sent to userId. Accepting is a single
+     * statement for the whole batch; each new conversation is pushed to both
+     * users as a conversation_created descriptor, and the ack lists what happened:
+     * {success, accepted: [descriptor + requestId], rejected: [id], skipped: [id]}.
+     */
+    private void handleRespondFriendRequests(int userId, int[] requestIds, boolean accept, AckRequest ack) {
+        Map<String, Object> resp = new HashMap<>();
+        List<Integer> skipped = new ArrayList<>();
+        for (int id : requestIds) skipped.add(id);
+
+        try {
+            if (accept) {
+                List<Map<String, Object>> accepted = new ArrayList<>();
+                for (ChatRepository.AcceptedRequest req : repository.acceptFriendRequests(userId, requestIds)) {
+                    int senderId = req.senderId();
+                    int convId = req.conversationId();
+                    membershipIndex.addConversation(convId, senderId, userId);
+                    friendGraph.addFriendship(senderId, userId);
+                    router.invalidate("friends", senderId);
+
+                    Map<String, Object> forReceiver = conversationDescriptor(convId, senderId);
+                    forReceiver.put("requestId", req.requestId());
+                    accepted.add(forReceiver);
+                    sendToUser(userId, "conversation_created", forReceiver);
+                    sendToUser(senderId, "conversation_created", conversationDescriptor(convId, userId));
+                    skipped.remove((Integer) req.requestId());
+                }
+                if (!accepted.isEmpty()) {
+                    router.invalidate("friends", userId);
+                }
+                resp.put("accepted", accepted);
+                log.atInfo().addKeyValue("userId", userId).addKeyValue("requests", requestIds.length)
+                        .addKeyValue("accepted", accepted.size()).log("friend requests accepted");
+            } else {
+                List<Integer> rejected = repository.rejectFriendRequests(userId, requestIds);
+                skipped.removeAll(rejected);
+                resp.put("rejected", rejected);
+                log.atInfo().addKeyValue("userId", userId).addKeyValue("requests", requestIds.length)
+                        .addKeyValue("rejected", rejected.size()).log("friend requests rejected");
+            }
+            resp.put("success", true);
+            resp.put("skipped", skipped);
+
+        } catch (Exception e) {
+            log.atError().addKeyValue("userId", userId).setCause(e).log("failed to respond to friend requests");
+            resp.put("success", false);
+            resp.put("message", "Could not update friend requests");
+        }
+        if (ack.isAckRequested()) {
+            ack.sendAckData(resp);
+        }
+    }
+
+    // A new 1-on-1 conversation as seen by one of its members
+    private Map<String, Object> conversationDescriptor(int convId, int otherUserId) throws Exception {
+        UserDirectory.UserProfile other = userDirectory.profile(otherUserId);
+        Map<String, Object> conv = new HashMap<>();
+        conv.put("conversationId", convId);
+        conv.put("isGroup", false);
+        conv.put("otherUserId", otherUserId);
+        conv.put("name", other != null ? other.displayName() : "Unknown");
+        conv.put("avatarRef", other != null ? other.avatarRef() : null);
+        conv.put("online", sessions.isOnline(otherUserId) || router.isOnlineElsewhere(otherUserId));
+        return conv;
+    }
+
+    // Tell a freshly connected device which friends are online right now
+    private void sendPresenceSnapshot(SocketIOClient client, int userId) {
+        try {
+            Map<String, Object> snapshot = new HashMap<>();
+            snapshot.put("onlineUserIds", presence.onlineFriends(userId));
+            outboxes.send(client.getSessionId(), "presence_snapshot", snapshot);
         } catch (Exception e) {
-            e.printStackTrace();
+            log.atError().addKeyValue("userId", userId).setCause(e).log("failed to send presence snapshot");
+        }
+    }
+
+    /**
+     * Send an event to every connected device of a user, on this node or any other.
+     * Returns false if the user is offline.
+     */
+    private boolean sendToUser(int userId, String event, Object payload) {
+        boolean local = sendToLocalSessions(userId, event, payload);
+        boolean remote = router.forward(userId, event, payload);
+        return local || remote;
+    }
+
+    private boolean sendToLocalSessions(int userId, String event, Object payload) {
+        boolean sent = false;
+        for (UUID sid : sessions.sessions(userId)) {
+            if (outboxes.send(sid, event, payload)) {
+                sent = true;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * True if no user is bound to the socket yet (no user_connected), telling the
+     * client through the ack if it asked for one. Events that act for a user take
+     * it from the socket, never from the payload.
+     */
+    private static boolean unbound(AckRequest ack, int userId) {
+        if (userId != -1) return false;
+        if (ack.isAckRequested()) {
+            Map<String, Object> resp = new HashMap<>();
+            resp.put("success", false);
+            resp.put("message", "Not connected as a user");
+            ack.sendAckData(resp);
+        }
+        return true;
+    }
+
+    /**
+     * Take a rate limit token for the event. When there is none, tell the client
+     * (through the ack, or the event it would otherwise get) and return true.
+     * The bucket belongs to the user bound to the socket, not the id in the payload.
+     */
+    private boolean rateLimited(SocketIOClient client, AckRequest ack, String event, int claimedUserId) {
+        int userId = sessions.userOf(client.getSessionId());
+        long waitNanos = rateLimiter.tryAcquire(event, userId != -1 ? userId : claimedUserId);
+        if (waitNanos == 0) return false;
+        eventMetrics.get(event).rateLimited().increment();
+
+        Map<String, Object> resp = new HashMap<>();
+        resp.put("success", false);
+        resp.put("rateLimited", true);
+        resp.put("retryAfterMs", TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        resp.put("message", "You're doing that too fast. Please wait a moment and try again.");
+        if (ack.isAckRequested()) {
+            ack.sendAckData(resp);
+        } else {
+            outboxes.send(client.getSessionId(), RATE_LIMIT_REPLIES.getOrDefault(event, "rate_limited"), resp);
+        }
+        return true;
+    }
+
+    private static int intValue(Map<?, ?> data, String key) {
+        return ((Number) data.get(key)).intValue();
+    }
+
+    private static int[] intValues(Map<?, ?> data, String key) {
+        List<?> values = (List<?>) data.get(key);
+        if (values == null) return new int[0];
+        int[] ints = new int[values.size()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = ((Number) values.get(i)).intValue();
+        }
+        return ints;
+    }
+
+    private void logStats() {
+        statsLog.info("db pool: {} | queries: {}", database.poolStats(), repository.latencyStats());
+        statsLog.info("dispatcher: {}", dispatcher.stats());
+        statsLog.info("messages: {}", messageBatcher.stats());
+        statsLog.info("membership index: {}", membershipIndex.stats());
+        statsLog.info("online: {} | presence: {}", sessions.stats(), presence.stats());
+        statsLog.info("cluster: {}", router.stats());
+        statsLog.info("transfer keys: {}", transferKeys.stats());
+        statsLog.info("outbound: {}", outboxes.stats());
+        statsLog.info("rate limits: {}", rateLimiter.stats());
+        statsLog.info("directory: {} | friend lists: {}", userDirectory.stats(), friendGraph.size());
+        if (ledger != null) {
+            statsLog.info("ledger: {}", ledger.stats());
         }
     }
 
     public void start() {
+        try {
+            new SchemaMigrations(database).migrate();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to update the database schema", e);
+        }
+        try {
+            membershipIndex.loadAll();
+        } catch (Exception e) {
+            // Not fatal: conversations are then loaded on first use
+            log.warn("failed to preload membership index", e);
+        }
+        try {
+            userDirectory.loadLogins();
+        } catch (Exception e) {
+            // Not fatal: names are then looked up in the database on first use
+            log.warn("failed to preload logins", e);
+        }
+        // AuthService announces each signup so the login index never misses a new name
+        signupListener = new PgListener(database, "signup-listen", (channel, payload) ->
+                dispatcher.execute("signup", () -> {
+                    try {
+                        userDirectory.userAdded(payload);
+                    } catch (Exception e) {
+                        log.atWarn().addKeyValue("userId", payload).setCause(e).log("failed to add signed up user");
+                    }
+                }), "birdsenger_user_added");
+        signupListener.start();
+        try {
+            router.start();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to join cluster as " + router.nodeId(), e);
+        }
+        if (useLedger) {
+            try {
+                ledger = Ledger.open(repository,
+                        (convId, senderId, receiverId) -> membershipIndex.isMember(convId, senderId)
+                                && membershipIndex.isMember(convId, receiverId),
+                        Path.of(LEDGER_DIR, router.nodeId()), metrics);
+            } catch (Exception e) {
+                throw new IllegalStateException("Failed to open the ledger", e);
+            }
+        }
+        presence.start(!clustered);
+        outboxes.start();
         server.start();
-        System.out.println("🚀 Socket server started on port 9092");
+        startMetrics();
+        statsScheduler.scheduleAtFixedRate(this::logStats, 60, 60, TimeUnit.SECONDS);
+        statsScheduler.scheduleAtFixedRate(rateLimiter::sweep, 60, 60, TimeUnit.SECONDS);
+        // In the background: the first run after an upgrade may archive many months
+        statsScheduler.scheduleAtFixedRate(partitions::maintain, 0, 24, TimeUnit.HOURS);
+        log.atInfo().addKeyValue("node", router.nodeId()).addKeyValue("port", port).log("socket server started");
+    }
+
+    // Not fatal: the server runs fine without anyone watching it
+    private void startMetrics() {
+        if (METRICS_PORT_OFFSET > 0) {
+            try {
+                metrics.startHttp(METRICS_HOST, port + METRICS_PORT_OFFSET);
+            } catch (Exception e) {
+                log.atWarn().addKeyValue("port", port + METRICS_PORT_OFFSET).setCause(e).log("failed to start metrics endpoint");
+            }
+        }
+        try {
+            metrics.registerMBean(router.nodeId());
+        } catch (Exception e) {
+            log.warn("failed to register metrics MBean", e);
+        }
+    }
+
+    public void stop() {
+        statsScheduler.shutdownNow();
+        metrics.close();
+        server.stop();
+        outboxes.shutdown();
+        presence.shutdown();
+        if (signupListener != null) {
+            signupListener.close();
+        }
+        router.close();
+        if (ledger != null) {
+            ledger.shutdown();
+        }
+        messageBatcher.shutdown();
+        dispatcher.shutdown();
+        database.close();
     }
 
     public static void main(String[] args) {
-        new SocketServer().start();
+        MessageTrace.recordTo(System.getenv("SERVER_TRACE_FILE"));
+        SocketServer socketServer = new SocketServer();
+        Runtime.getRuntime().addShutdownHook(new Thread(socketServer::stop));
+        socketServer.start();
     }
-}
\ No newline at end of file
+}
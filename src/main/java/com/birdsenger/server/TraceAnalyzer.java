@@ -0,0 +1,191 @@
+package com.birdsenger.server;
+
+import com.birdsenger.utils.MessageTrace;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.HdrHistogram.Histogram;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-stage latency breakdown of chat messages from MessageTrace recordings.
+ *
+ * Give it the recordings of the server and of as many clients as you have; events
+ * are matched by trace id. Gaps between stages recorded by different processes
+ * (e.g. client emit to server receive) compare wall clocks, so they are only
+ * meaningful when the machines' clocks agree - run everything on one host, or
+ * read those rows with the clock skew in mind.
+ *
+ * Usage: TraceAnalyzer [--slowest N] server.jfr alice.jfr bob.jfr
+ */
+public class TraceAnalyzer {
+    private static final String EVENT_NAME = "com.birdsenger.MessageTrace";
+
+    // In the order a message goes through them
+    private static final String[] ROWS = {
+            "uplink (client emit -> server receive)",
+            "server queue",
+            "store (batcher + commit)",
+            "store -> fan-out",
+            "fan-out",
+            "ack to sender (commit -> client ack)",
+            "downlink (fan-out -> recipient receive)",
+            "recipient render",
+            "end to end (emit -> rendered)",
+    };
+
+    private static final class Trace {
+        final String id;
+        RecordedEvent send;
+        RecordedEvent queue;
+        RecordedEvent store;
+        RecordedEvent fanOut;
+        final List<RecordedEvent> renders = new ArrayList<>();
+        long slowestMicros = -1;
+
+        Trace(String id) {
+            this.id = id;
+        }
+
+        int senderId() {
+            for (RecordedEvent e : new RecordedEvent[]{send, queue, store, fanOut}) {
+                if (e != null) return e.getInt("userId");
+            }
+            return -1;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int slowest = 5;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--slowest".equals(args[i])) {
+                slowest = Integer.parseInt(args[++i]);
+            } else {
+                files.add(Path.of(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: TraceAnalyzer [--slowest N] <recording.jfr>...");
+            System.exit(1);
+        }
+
+        Map<String, Trace> traces = new HashMap<>();
+        int events = 0;
+        for (Path file : files) {
+            for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                if (!EVENT_NAME.equals(e.getEventType().getName())) continue;
+                String id = e.getString("traceId");
+                if (id == null) continue;
+                events++;
+                Trace trace = traces.computeIfAbsent(id, Trace::new);
+                switch (e.getString("stage")) {
+                    case MessageTrace.CLIENT_SEND -> trace.send = e;
+                    case MessageTrace.SERVER_QUEUE -> trace.queue = e;
+                    case MessageTrace.SERVER_STORE -> trace.store = e;
+                    case MessageTrace.SERVER_FANOUT -> trace.fanOut = e;
+                    case MessageTrace.CLIENT_RENDER -> trace.renders.add(e);
+                    default -> { }
+                }
+            }
+        }
+        System.out.println("🔎 " + events + " events, " + traces.size() + " traces from " + files.size() + " file(s)");
+
+        Map<String, Histogram> rows = new LinkedHashMap<>();
+        for (String row : ROWS) {
+            rows.put(row, new Histogram(3));
+        }
+        int[] skewed = new int[1];
+        for (Trace trace : traces.values()) {
+            breakdown(trace, (row, micros) -> {
+                if (micros < 0) {
+                    skewed[0]++;
+                    micros = 0;
+                }
+                rows.get(row).recordValue(micros);
+            });
+        }
+
+        System.out.printf("%-42s %8s %10s %10s %10s %10s%n", "stage (ms)", "count", "mean", "p50", "p99", "max");
+        for (Map.Entry<String, Histogram> row : rows.entrySet()) {
+            Histogram h = row.getValue();
+            if (h.getTotalCount() == 0) continue;
+            System.out.printf("%-42s %8d %10.2f %10.2f %10.2f %10.2f%n", row.getKey(), h.getTotalCount(),
+                    h.getMean() / 1000, h.getValueAtPercentile(50) / 1000.0, h.getValueAtPercentile(99) / 1000.0,
+                    h.getMaxValue() / 1000.0);
+        }
+        if (skewed[0] > 0) {
+            System.out.println("⚠️ " + skewed[0] + " cross-process gaps were negative (clock skew) and counted as 0");
+        }
+
+        if (slowest > 0) {
+            printSlowest(traces, slowest);
+        }
+    }
+
+    private interface Sink {
+        void accept(String row, long micros);
+    }
+
+    // Every row this trace has the events for; one set of recipient rows per render
+    private static void breakdown(Trace t, Sink sink) {
+        if (t.send != null && t.queue != null) sink.accept(ROWS[0], between(t.send.getStartTime(), t.queue.getStartTime()));
+        if (t.queue != null) sink.accept(ROWS[1], micros(t.queue.getDuration()));
+        if (t.store != null) sink.accept(ROWS[2], micros(t.store.getDuration()));
+        if (t.store != null && t.fanOut != null) sink.accept(ROWS[3], between(t.store.getEndTime(), t.fanOut.getStartTime()));
+        if (t.fanOut != null) sink.accept(ROWS[4], micros(t.fanOut.getDuration()));
+        if (t.store != null && t.send != null) sink.accept(ROWS[5], between(t.store.getEndTime(), t.send.getEndTime()));
+
+        int senderId = t.senderId();
+        for (RecordedEvent render : t.renders) {
+            // The sender's own client gets the push too, but already showed the message from the ack
+            if (render.getInt("userId") == senderId) continue;
+            if (t.fanOut != null) sink.accept(ROWS[6], between(t.fanOut.getStartTime(), render.getStartTime()));
+            sink.accept(ROWS[7], micros(render.getDuration()));
+            if (t.send != null) {
+                long total = between(t.send.getStartTime(), render.getEndTime());
+                sink.accept(ROWS[8], total);
+                t.slowestMicros = Math.max(t.slowestMicros, total);
+            }
+        }
+    }
+
+    private static void printSlowest(Map<String, Trace> traces, int n) {
+        List<Trace> complete = new ArrayList<>();
+        for (Trace trace : traces.values()) {
+            if (trace.slowestMicros >= 0) complete.add(trace);
+        }
+        if (complete.isEmpty()) return;
+        complete.sort(Comparator.comparingLong((Trace t) -> t.slowestMicros).reversed());
+
+        System.out.println();
+        System.out.println("🐢 Slowest traces (ms):");
+        for (Trace trace : complete.subList(0, Math.min(n, complete.size()))) {
+            StringBuilder sb = new StringBuilder();
+            breakdown(trace, (row, micros) -> {
+                if (row.equals(ROWS[8])) return;
+                sb.append("\n    ").append(String.format("%-42s %10.2f", row, micros / 1000.0));
+            });
+            System.out.printf("  %s conversation %d message %d: %.2f%s%n", trace.id,
+                    trace.store != null ? trace.store.getInt("conversationId") : trace.send.getInt("conversationId"),
+                    trace.store != null ? trace.store.getLong("messageId") : trace.send.getLong("messageId"),
+                    trace.slowestMicros / 1000.0, sb);
+        }
+    }
+
+    private static long between(Instant from, Instant to) {
+        return micros(Duration.between(from, to));
+    }
+
+    private static long micros(Duration d) {
+        return d.toNanos() / 1000;
+    }
+}
@@ -0,0 +1,64 @@
+package com.birdsenger.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Recently seen send_money transfer keys and the response each one got.
+ *
+ * A client retrying a transfer sends the same key again; the first request for
+ * a key claims it, and every later one gets the first one's response (waiting
+ * for it if it is still running). The cache is bounded, oldest keys first out;
+ * keys that have aged out are still caught by the unique transfer_key column,
+ * or by the Ledger while its transfer is not in the tables yet.
+ */
+public class TransferKeys {
+    private static final int CAPACITY = Integer.parseInt(System.getenv().getOrDefault("SERVER_TRANSFER_KEYS", "100000"));
+
+    private final Map<UUID, CompletableFuture<Map<String, Object>>> recent;
+    private final LongAdder replays = new LongAdder();
+
+    public TransferKeys() {
+        this(CAPACITY);
+    }
+
+    public TransferKeys(int capacity) {
+        this.recent = new LinkedHashMap<>(1024, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, CompletableFuture<Map<String, Object>>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Claim a key for a new transfer whose response will complete the given future.
+     * Returns null if the caller now owns the key, or the response future of the
+     * transfer that used it first.
+     */
+    public synchronized CompletableFuture<Map<String, Object>> claim(UUID key, CompletableFuture<Map<String, Object>> response) {
+        CompletableFuture<Map<String, Object>> first = recent.putIfAbsent(key, response);
+        if (first != null) {
+            replays.increment();
+        }
+        return first;
+    }
+
+    /**
+     * Release a key whose transfer failed before reaching a decision, so a retry can run it
+     */
+    public synchronized void release(UUID key) {
+        recent.remove(key);
+    }
+
+    public synchronized int size() {
+        return recent.size();
+    }
+
+    public String stats() {
+        return "keys=" + size() + " replays=" + replays.sum();
+    }
+}
@@ -0,0 +1,108 @@
+package com.birdsenger.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Display information about users, cached so outgoing events can carry the
+ * sender's name and avatar reference without a query per message, and every
+ * username and email, so friend requests resolve their target without one.
+ *
+ * The avatar itself is not cached: events carry a short reference that changes
+ * whenever the picture changes, and clients fetch the picture only then.
+ *
+ * Logins are loaded at startup. AuthService announces signups (NOTIFY
+ * birdsenger_user_added) so they are added right away; a name that still isn't
+ * known is looked up in the database once.
+ */
+public class UserDirectory {
+    private static final Logger log = LoggerFactory.getLogger(UserDirectory.class);
+
+    public record UserProfile(int id, String displayName, String avatarRef) {}
+
+    private final ChatRepository repository;
+    private final ConcurrentHashMap<Integer, UserProfile> profiles = new ConcurrentHashMap<>();
+    private final LoginIndex logins = new LoginIndex();
+
+    public UserDirectory(ChatRepository repository) {
+        this.repository = repository;
+    }
+
+    /**
+     * Profile for a user, loaded on first use. Returns null for unknown users.
+     */
+    public UserProfile profile(int userId) throws SQLException {
+        UserProfile profile = profiles.get(userId);
+        if (profile == null) {
+            profile = repository.findUserProfile(userId);
+            if (profile != null) {
+                profiles.put(userId, profile);
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Load every username and email
+     */
+    public void loadLogins() throws SQLException {
+        repository.forEachLogin(this::addLogin);
+        log.atInfo().addKeyValue("names", logins.size()).log("user directory loaded");
+    }
+
+    public void addLogin(int userId, String username, String email) {
+        logins.put(username, userId);
+        logins.put(email, userId);
+    }
+
+    /**
+     * Resolve a username or email (any case) to a user id, or -1
+     */
+    public int findUserId(String usernameOrEmail) throws SQLException {
+        int id = logins.get(usernameOrEmail);
+        if (id >= 0) {
+            return id;
+        }
+        // Unknown (a signup we missed) or two accounts differing only in case
+        id = repository.findUserId(usernameOrEmail);
+        if (id != -1) {
+            logins.put(usernameOrEmail, id);
+        }
+        return id;
+    }
+
+    /**
+     * A signup announced by AuthService: the payload is the new user's id
+     */
+    public void userAdded(String payload) throws SQLException {
+        repository.forLogin(Integer.parseInt(payload.trim()), this::addLogin);
+    }
+
+    /**
+     * Forget a cached profile (name or picture changed)
+     */
+    public void invalidate(int userId) {
+        profiles.remove(userId);
+    }
+
+    /**
+     * Short fingerprint of a profile picture, or null when there is none
+     */
+    public static String avatarRef(String profilePicture) {
+        if (profilePicture == null || profilePicture.isEmpty()) {
+            return null;
+        }
+        return Integer.toHexString(profilePicture.hashCode()) + "-" + Integer.toHexString(profilePicture.length());
+    }
+
+    public int size() {
+        return profiles.size();
+    }
+
+    public String stats() {
+        return "profiles=" + profiles.size() + " logins=" + logins.size();
+    }
+}
@@ -3,11 +3,17 @@ package com.birdsenger.services;
 import com.birdsenger.models.User;
 import com.birdsenger.utils.DatabaseManager;
 import org.mindrot.jbcrypt.BCrypt;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.sql.*;
 import java.util.Random;
 
 public class AuthService {
+    private static final Logger log = LoggerFactory.getLogger(AuthService.class);
+
+    // Work factor for new password hashes
+    static final int BCRYPT_COST = 10;
 
     public User login(String usernameOrEmail, String password) {
         String sql = "SELECT * FROM users WHERE username = ? OR email = ?";
@@ -23,10 +29,6 @@ public class AuthService {
             if (rs.next()) {
                 String storedHash = rs.getString("password_hash");
 
-                System.out.println("🔍 Login attempt for: " + usernameOrEmail);
-                System.out.println("🔍 Password entered: " + password);
-                System.out.println("🔍 Stored hash: " + storedHash);
-
                 // Check if it's plain text (for test user)
                 boolean isMatch = false;
 
@@ -34,34 +36,35 @@ public class AuthService {
                     // BCrypt hash
                     try {
                         isMatch = BCrypt.checkpw(password, storedHash);
-                        System.out.println("🔍 BCrypt check: " + isMatch);
                     } catch (Exception e) {
-                        System.out.println("❌ BCrypt error: " + e.getMessage());
+                        log.atWarn().addKeyValue("login", usernameOrEmail).setCause(e).log("unreadable bcrypt hash");
                         // Try plain text comparison
                         isMatch = password.equals(storedHash);
                     }
                 } else {
                     // Plain text password (test user)
                     isMatch = password.equals(storedHash);
-                    System.out.println("🔍 Plain text check: " + isMatch);
+                    log.atDebug().addKeyValue("login", usernameOrEmail).log("plain text password checked");
                 }
 
                 if (isMatch) {
                     User user = mapResultSetToUser(rs);
-                    System.out.println("✅ Login successful: " + user.getUsername());
+                    log.atInfo().addKeyValue("userId", user.getId()).addKeyValue("username", user.getUsername())
+                            .log("login succeeded");
                     return user;
                 } else {
-                    System.out.println("❌ Password mismatch");
+                    log.atInfo().addKeyValue("login", usernameOrEmail).addKeyValue("reason", "wrong_password")
+                            .log("login failed");
                 }
             } else {
-                System.out.println("❌ User not found: " + usernameOrEmail);
+                log.atInfo().addKeyValue("login", usernameOrEmail).addKeyValue("reason", "unknown_user")
+                        .log("login failed");
             }
 
             return null;
 
         } catch (SQLException e) {
-            System.err.println("❌ Login error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("login query failed", e);
             return null;
         }
     }
@@ -71,17 +74,17 @@ public class AuthService {
                           String securityAnswer) {
 
         if (userExists(username, email)) {
-            System.out.println("❌ Signup failed: Username or email already exists");
+            log.atInfo().addKeyValue("username", username).addKeyValue("reason", "taken").log("signup failed");
             return false;
         }
 
         String sql = "INSERT INTO users (first_name, last_name, email, username, password_hash, " +
-                "security_question, security_answer, balance) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+                "security_question, security_answer, balance) VALUES (?, ?, ?, ?, ?, ?, ?, ?) RETURNING id";
 
         try (Connection conn = DatabaseManager.getInstance().getConnection();
              PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(10));
+            String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt(BCRYPT_COST));
             double initialBalance = 500 + new Random().nextDouble() * 4500;
 
             stmt.setString(1, firstName);
@@ -93,10 +96,12 @@ public class AuthService {
             stmt.setString(7, securityAnswer.toLowerCase());
             stmt.setDouble(8, initialBalance);
 
-            int rows = stmt.executeUpdate();
+            ResultSet rs = stmt.executeQuery();
 
-            if (rows > 0) {
-                System.out.println("✅ Account created: " + username);
+            if (rs.next()) {
+                log.atInfo().addKeyValue("userId", rs.getInt("id")).addKeyValue("username", username)
+                        .log("account created");
+                announceSignup(conn, rs.getInt("id"));
                 createDefaultBankAccount(username, initialBalance);
                 return true;
             }
@@ -104,8 +109,7 @@ public class AuthService {
             return false;
 
         } catch (SQLException e) {
-            System.err.println("❌ Signup error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("signup failed", e);
             return false;
         }
     }
@@ -125,7 +129,7 @@ public class AuthService {
 
                 if (storedAnswer.equalsIgnoreCase(securityAnswer.trim())) {
                     int userId = rs.getInt("id");
-                    String hashedPassword = BCrypt.hashpw(newPassword, BCrypt.gensalt(10));
+                    String hashedPassword = BCrypt.hashpw(newPassword, BCrypt.gensalt(BCRYPT_COST));
 
                     PreparedStatement updateStmt = conn.prepareStatement(updateSql);
                     updateStmt.setString(1, hashedPassword);
@@ -134,18 +138,17 @@ public class AuthService {
                     int rows = updateStmt.executeUpdate();
 
                     if (rows > 0) {
-                        System.out.println("✅ Password reset successful for: " + username);
+                        log.atInfo().addKeyValue("userId", userId).log("password reset");
                         return true;
                     }
                 }
             }
 
-            System.out.println("❌ Password reset failed: Invalid username or security answer");
+            log.atInfo().addKeyValue("username", username).log("password reset refused");
             return false;
 
         } catch (SQLException e) {
-            System.err.println("❌ Password reset error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("password reset failed", e);
             return false;
         }
     }
@@ -166,12 +169,23 @@ public class AuthService {
             }
 
         } catch (SQLException e) {
-            e.printStackTrace();
+            log.error("user lookup failed", e);
         }
 
         return false;
     }
 
+    // Tell running socket servers about the new login so friend requests can find it right away
+    private void announceSignup(Connection conn, int userId) {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT pg_notify('birdsenger_user_added', ?)")) {
+            stmt.setString(1, String.valueOf(userId));
+            stmt.execute();
+        } catch (SQLException e) {
+            // Not fatal: servers look unknown names up in the database
+            log.atWarn().addKeyValue("userId", userId).addKeyValue("error", e.getMessage()).log("failed to announce signup");
+        }
+    }
+
     private void createDefaultBankAccount(String username, double balance) {
         String getUserIdSql = "SELECT id FROM users WHERE username = ?";
         String insertAccountSql = "INSERT INTO bank_accounts (user_id, account_number, account_type, " +
@@ -193,11 +207,11 @@ public class AuthService {
                 insertStmt.setDouble(3, balance);
 
                 insertStmt.executeUpdate();
-                System.out.println("✅ Bank account created: " + accountNumber);
+                log.atInfo().addKeyValue("userId", userId).log("bank account created");
             }
 
         } catch (SQLException e) {
-            System.err.println("❌ Error creating bank account: " + e.getMessage());
+            log.error("failed to create bank account", e);
         }
     }
 
@@ -205,7 +219,8 @@ public class AuthService {
         return String.valueOf(100000 + new Random().nextInt(900000));
     }
 
-    private User mapResultSetToUser(ResultSet rs) throws SQLException {
+    // Package-private so the benchmarks can time it
+    static User mapResultSetToUser(ResultSet rs) throws SQLException {
         User user = new User();
         user.setId(rs.getInt("id"));
         user.setFirstName(rs.getString("first_name"));
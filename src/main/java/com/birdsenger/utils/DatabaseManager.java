@@ -2,10 +2,14 @@ package com.birdsenger.utils;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import java.sql.Connection;
 import java.sql.SQLException;
 
 public class DatabaseManager {
+    private static final Logger log = LoggerFactory.getLogger(DatabaseManager.class);
+
     private static DatabaseManager instance;
     private HikariDataSource dataSource;
 
@@ -51,7 +55,7 @@ public class DatabaseManager {
         config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
 
         dataSource = new HikariDataSource(config);
-        System.out.println("✅ Database connection pool initialized: " + DB_URL);
+        log.info("database connection pool initialized: {}", DB_URL);
     }
 
     public Connection getConnection() throws SQLException {
@@ -67,10 +71,10 @@ public class DatabaseManager {
     public boolean testConnection() {
         try (Connection conn = getConnection()) {
             boolean isValid = conn != null && !conn.isClosed();
-            System.out.println("🔍 Database connection test: " + (isValid ? "SUCCESS ✅" : "FAILED ❌"));
+            log.info("database connection test: {}", isValid ? "ok" : "failed");
             return isValid;
         } catch (SQLException e) {
-            System.err.println("❌ Database connection failed: " + e.getMessage());
+            log.error("database connection failed", e);
             return false;
         }
     }
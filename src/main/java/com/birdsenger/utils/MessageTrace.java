@@ -0,0 +1,104 @@
+package com.birdsenger.utils;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One stage of a chat message's trip from the sender's client to a recipient's screen,
+ * as a JFR event.
+ *
+ * The sender's client picks a trace id and sends it with the message; the server
+ * passes it on in the new_message push, so every stage below carries the same id:
+ *
+ *   client_send    sender: emit until the server's ack
+ *   server_queue   server: event received until its handler starts
+ *   server_store   server: handed to the message batcher until committed
+ *   server_fanout  server: pushing the stored message to every online member
+ *   client_render  recipient: push received until the bubble (or chat list) is updated
+ *
+ * Events cost next to nothing unless a recording is running, either started with
+ * -XX:StartFlightRecording or by recordTo(). TraceAnalyzer turns the recordings
+ * of the clients and the server into a per-stage breakdown.
+ */
+@Name("com.birdsenger.MessageTrace")
+@Label("Message Trace")
+@Category("BirdSenger")
+@Description("One stage of a chat message's trip from sender to recipient")
+@StackTrace(false)
+public class MessageTrace extends Event {
+    private static final Logger log = LoggerFactory.getLogger(MessageTrace.class);
+
+    public static final String CLIENT_SEND = "client_send";
+    public static final String SERVER_QUEUE = "server_queue";
+    public static final String SERVER_STORE = "server_store";
+    public static final String SERVER_FANOUT = "server_fanout";
+    public static final String CLIENT_RENDER = "client_render";
+
+    @Label("Trace Id")
+    String traceId;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Conversation Id")
+    int conversationId;
+
+    @Label("User Id")
+    @Description("The sender for client_send, the recipient for client_render")
+    int userId;
+
+    @Label("Message Id")
+    long messageId;
+
+    public static String newTraceId() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Start timing a stage; commit it with end() once the stage is over
+     */
+    public static MessageTrace begin(String traceId, String stage, int conversationId, int userId) {
+        MessageTrace trace = new MessageTrace();
+        trace.traceId = traceId;
+        trace.stage = stage;
+        trace.conversationId = conversationId;
+        trace.userId = userId;
+        trace.begin();
+        return trace;
+    }
+
+    public void end(long messageId) {
+        this.messageId = messageId;
+        commit();
+    }
+
+    /**
+     * Record message traces to a file until the JVM exits; does nothing without a path
+     */
+    public static void recordTo(String path) {
+        if (path == null || path.isBlank()) return;
+        try {
+            Recording recording = new Recording();
+            recording.setName("birdsenger-trace");
+            recording.enable(MessageTrace.class);
+            recording.setToDisk(true);
+            recording.setDestination(Path.of(path));
+            recording.start();
+            // Stopping writes the destination file
+            Runtime.getRuntime().addShutdownHook(new Thread(recording::stop, "trace-writer"));
+            log.info("tracing messages to {}", path);
+        } catch (Exception e) {
+            log.error("failed to start message tracing", e);
+        }
+    }
+}
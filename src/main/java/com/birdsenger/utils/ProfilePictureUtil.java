@@ -3,6 +3,8 @@ package com.birdsenger.utils;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.shape.Circle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -10,8 +12,14 @@ import java.io.FileInputStream;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ProfilePictureUtil {
+    private static final Logger log = LoggerFactory.getLogger(ProfilePictureUtil.class);
+
+    // userId -> {avatarRef, picture} for pictures fetched by reference
+    private static final Map<Integer, String[]> pictureCache = new ConcurrentHashMap<>();
 
     /**
      * Load profile picture from database for a user
@@ -29,12 +37,31 @@ public class ProfilePictureUtil {
                 return rs.getString("profile_picture");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("load profile picture failed", e);
         }
 
         return null;
     }
 
+    /**
+     * Profile picture for a user as referenced by a socket event. The picture is only
+     * fetched from the database when the reference differs from the cached one.
+     */
+    public static String getProfilePicture(int userId, String avatarRef) {
+        if (avatarRef == null || avatarRef.isEmpty()) {
+            return null;
+        }
+        String[] cached = pictureCache.get(userId);
+        if (cached != null && cached[0].equals(avatarRef)) {
+            return cached[1];
+        }
+        String picture = getProfilePicture(userId);
+        if (picture != null) {
+            pictureCache.put(userId, new String[]{avatarRef, picture});
+        }
+        return picture;
+    }
+
     /**
      * Create an ImageView with circular clip from base64 or path
      */
@@ -71,12 +98,7 @@ public class ProfilePictureUtil {
         try {
             // Check if it's base64 (longer than typical file paths)
             if (base64OrPath.length() > 500 || base64OrPath.startsWith("data:")) {
-                String base64Data = base64OrPath;
-                if (base64Data.contains(",")) {
-                    base64Data = base64Data.split(",")[1];
-                }
-                byte[] imageBytes = java.util.Base64.getDecoder().decode(base64Data);
-                return new Image(new ByteArrayInputStream(imageBytes));
+                return new Image(new ByteArrayInputStream(decodeBase64Image(base64OrPath)));
             } else {
                 // It's a file path
                 File imageFile = new File(base64OrPath);
@@ -85,12 +107,21 @@ public class ProfilePictureUtil {
                 }
             }
         } catch (Exception e) {
-            System.err.println("Failed to load profile image: " + e.getMessage());
+            log.warn("load profile image failed: {}", e.getMessage());
         }
 
         return getDefaultImage();
     }
 
+    /**
+     * Bytes of a base64 picture, with or without a "data:...;base64," prefix
+     */
+    static byte[] decodeBase64Image(String base64) {
+        int comma = base64.indexOf(',');
+        String data = comma >= 0 ? base64.substring(comma + 1) : base64;
+        return java.util.Base64.getDecoder().decode(data);
+    }
+
     /**
      * Get default avatar image
      */
@@ -1,8 +1,12 @@
 package com.birdsenger.utils;
 
 import com.birdsenger.models.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class SessionManager {
+    private static final Logger log = LoggerFactory.getLogger(SessionManager.class);
+
     private static SessionManager instance;
     private User currentUser;
 
@@ -17,7 +21,7 @@ public class SessionManager {
 
     public void setCurrentUser(User user) {
         this.currentUser = user;
-        System.out.println("✅ Session started for: " + user.getFullName());
+        log.atInfo().addKeyValue("userId", user.getId()).log("session started");
     }
 
     public User getCurrentUser() {
@@ -30,7 +34,7 @@ public class SessionManager {
 
     public void logout() {
         if (currentUser != null) {
-            System.out.println("👋 Session ended for: " + currentUser.getFullName());
+            log.atInfo().addKeyValue("userId", currentUser.getId()).log("session ended");
         }
         currentUser = null;
     }
@@ -1,22 +1,51 @@
 package com.birdsenger.utils;
 
 import com.birdsenger.controllers.MessagesController;
+import io.socket.client.AckWithTimeout;
 import io.socket.client.IO;
 import io.socket.client.Socket;
+import org.json.JSONArray;
 import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 
 public class SocketClient {
+    private static final Logger log = LoggerFactory.getLogger(SocketClient.class);
+
     private static SocketClient instance;
     private Socket socket;
     private MessagesController messagesController;
 
+    // Friends the server has told us are online (presence_snapshot / presence_changed)
+    private final Set<Integer> onlineUsers = ConcurrentHashMap.newKeySet();
+
     // Socket server on VPS
     private static final String SOCKET_SERVER = "http://13.229.69.180:9092";
 
+    // send_money is re-sent (same transfer key) when no ack arrives in time
+    private static final int TRANSFER_ATTEMPTS = 3;
+    private static final long TRANSFER_RETRY_MS = 5000;
+    private static final long SEND_TIMEOUT_MS = 10000;
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "socket-retry");
+        t.setDaemon(true);
+        return t;
+    });
+
     private SocketClient() {}
 
     public static SocketClient getInstance() {
@@ -31,7 +60,7 @@ public class SocketClient {
             socket = IO.socket(SOCKET_SERVER);
 
             socket.on(Socket.EVENT_CONNECT, args -> {
-                System.out.println("✅ Connected to Socket.IO server");
+                log.atInfo().addKeyValue("server", SOCKET_SERVER).log("connected to socket server");
 
                 // Notify server of user connection
                 Map<String, Object> data = new HashMap<>();
@@ -42,11 +71,13 @@ public class SocketClient {
             socket.on("new_message", args -> {
                 if (messagesController != null && args.length > 0) {
                     JSONObject data = (JSONObject) args[0];
+                    MessageTrace trace = MessageTrace.begin(data.optString("traceId", null), MessageTrace.CLIENT_RENDER,
+                            data.optInt("conversationId"), userId);
                     javafx.application.Platform.runLater(() -> {
                         try {
-                            messagesController.handleNewMessage(data);
+                            messagesController.handleNewMessage(data, trace);
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("new_message handler failed", e);
                         }
                     });
                 }
@@ -59,17 +90,33 @@ public class SocketClient {
                         try {
                             messagesController.handleMoneyReceived(data);
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("money_received handler failed", e);
                         }
                     });
                 }
             });
 
-            socket.on("friend_status_changed", args -> {
+            // An event without an ack was refused by the server's rate limiter
+            socket.on("rate_limited", args -> {
+                if (messagesController != null && args.length > 0) {
+                    JSONObject data = (JSONObject) args[0];
+                    javafx.application.Platform.runLater(() -> messagesController.handleRateLimited(data));
+                }
+            });
+
+            // The server had to drop events while we were behind: reload what is on screen
+            socket.on("resync", args -> {
+                if (messagesController != null) {
+                    javafx.application.Platform.runLater(() -> messagesController.handleResync());
+                }
+            });
+
+            // A friend request was accepted (by us or by them): the new chat, ready to show
+            socket.on("conversation_created", args -> {
                 if (messagesController != null && args.length > 0) {
                     JSONObject data = (JSONObject) args[0];
                     javafx.application.Platform.runLater(() ->
-                            messagesController.handleFriendStatusChanged(data));
+                            messagesController.handleConversationCreated(data));
                 }
             });
 
@@ -88,68 +135,244 @@ public class SocketClient {
                         try {
                             messagesController.handleFriendRequestResponse(data);
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("friend_request_response handler failed", e);
                         }
                     });
                 }
             });
 
+            socket.on("presence_snapshot", args -> {
+                if (args.length > 0) {
+                    JSONArray ids = ((JSONObject) args[0]).optJSONArray("onlineUserIds");
+                    onlineUsers.clear();
+                    if (ids != null) {
+                        for (int i = 0; i < ids.length(); i++) {
+                            onlineUsers.add(ids.optInt(i));
+                        }
+                    }
+                }
+            });
+
+            socket.on("presence_changed", args -> {
+                if (args.length > 0) {
+                    JSONObject data = (JSONObject) args[0];
+                    int changedUserId = data.optInt("userId", -1);
+                    boolean online = data.optBoolean("online", false);
+                    if (online) onlineUsers.add(changedUserId);
+                    else onlineUsers.remove(changedUserId);
+
+                    if (messagesController != null) {
+                        javafx.application.Platform.runLater(() ->
+                                messagesController.handlePresenceChanged(changedUserId, online));
+                    }
+                }
+            });
+
             socket.connect();
 
         } catch (URISyntaxException e) {
-            System.err.println("❌ Failed to connect to Socket.IO server");
-            e.printStackTrace();
+            log.error("failed to connect to socket server", e);
         }
     }
 
     public void disconnect() {
         if (socket != null && socket.connected()) {
             socket.disconnect();
-            System.out.println("👋 Disconnected from Socket.IO server");
+            log.info("disconnected from socket server");
         }
     }
 
-    public void sendMessage(int conversationId, int senderId, String content, String messageType) {
+    /**
+     * Send a chat message. The future completes with the message as stored by the
+     * server (id and timestamp filled in, same fields as a new_message push), or
+     * fails if the server refused it or didn't answer in time.
+     */
+    public CompletableFuture<JSONObject> sendMessage(int conversationId, int senderId, String content,
+                                                     String messageType) {
+        CompletableFuture<JSONObject> stored = new CompletableFuture<>();
+        if (socket == null || !socket.connected()) {
+            stored.completeExceptionally(new IllegalStateException("Not connected to the server"));
+            return stored;
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("conversationId", conversationId);
+        data.put("senderId", senderId);
+        data.put("content", content);
+        data.put("messageType", messageType);
+        // Follows the message through the server to every recipient, see MessageTrace
+        data.put("traceId", MessageTrace.newTraceId());
+        MessageTrace trace = MessageTrace.begin((String) data.get("traceId"), MessageTrace.CLIENT_SEND,
+                conversationId, senderId);
+
+        socket.emit("send_message", new Object[]{new JSONObject(data)}, new AckWithTimeout(SEND_TIMEOUT_MS) {
+            @Override
+            public void onSuccess(Object... args) {
+                JSONObject result = args.length > 0 ? (JSONObject) args[0] : null;
+                if (result == null || !result.optBoolean("success", false)) {
+                    String message = result != null ? result.optString("message", null) : null;
+                    stored.completeExceptionally(new IllegalStateException(
+                            message != null ? message : "The server could not send your message"));
+                    return;
+                }
+                trace.end(result.optInt("id"));
+                Map<String, Object> message = new HashMap<>(data);
+                message.put("id", result.optInt("id"));
+                message.put("timestamp", result.optLong("timestamp", System.currentTimeMillis()));
+                stored.complete(new JSONObject(message));
+            }
+
+            @Override
+            public void onTimeout() {
+                stored.completeExceptionally(new IllegalStateException("No answer from the server"));
+            }
+        });
+        return stored;
+    }
+
+    /**
+     * Send money. The transfer carries a key so the server runs it at most once;
+     * it is re-sent with the same key if no answer arrives in time (e.g. the socket
+     * reconnected mid-flight). onResult gets the server's answer exactly once.
+     */
+    public void sendMoney(int senderId, int receiverId, double amount, int conversationId,
+                          Consumer<JSONObject> onResult) {
+        if (socket == null) {
+            onResult.accept(failure("Not connected to the server"));
+            return;
+        }
+        Map<String, Object> data = new HashMap<>();
+        data.put("senderId", senderId);
+        data.put("receiverId", receiverId);
+        data.put("amount", amount);
+        data.put("conversationId", conversationId);
+        data.put("transferKey", UUID.randomUUID().toString());
+
+        emitTransfer(new JSONObject(data), 1, new AtomicBoolean(), onResult);
+    }
+
+    private void emitTransfer(JSONObject data, int attempt, AtomicBoolean answered, Consumer<JSONObject> onResult) {
+        // Emits while disconnected are buffered and sent on reconnect
+        socket.emit("send_money", new Object[]{data}, args -> {
+            if (args.length > 0 && answered.compareAndSet(false, true)) {
+                onResult.accept((JSONObject) args[0]);
+            }
+        });
+
+        retryScheduler.schedule(() -> {
+            if (answered.get()) return;
+            if (attempt < TRANSFER_ATTEMPTS) {
+                log.atInfo().addKeyValue("transferKey", data.optString("transferKey")).addKeyValue("attempt", attempt + 1)
+                        .log("no answer for transfer, retrying");
+                emitTransfer(data, attempt + 1, answered, onResult);
+            } else if (answered.compareAndSet(false, true)) {
+                onResult.accept(failure("No answer from the server. Check your balance before trying again."));
+            }
+        }, TRANSFER_RETRY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private static JSONObject failure(String message) {
+        Map<String, Object> result = new HashMap<>();
+        result.put("success", false);
+        result.put("message", message);
+        return new JSONObject(result);
+    }
+
+    public void sendFriendRequest(int senderId, String receiverUsername) {
         if (socket != null && socket.connected()) {
             Map<String, Object> data = new HashMap<>();
-            data.put("conversationId", conversationId);
             data.put("senderId", senderId);
-            data.put("content", content);
-            data.put("messageType", messageType);
+            data.put("receiverUsername", receiverUsername);
+
+            socket.emit("send_friend_request", new JSONObject(data));
+        }
+    }
+
+    /**
+     * Accept or reject one friend request. onResult gets the server's answer:
+     * {success, accepted: [conversation], rejected: [id], skipped: [id]}.
+     */
+    public void respondToFriendRequest(int userId, int requestId, boolean accept, Consumer<JSONObject> onResult) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("userId", userId);
+        data.put("requestId", requestId);
+        data.put("accept", accept);
+
+        emitWithResult("respond_friend_request", new JSONObject(data), onResult);
+    }
+
+    /**
+     * Accept or reject many friend requests in one round trip
+     */
+    public void respondToFriendRequests(int userId, List<Integer> requestIds, boolean accept,
+                                        Consumer<JSONObject> onResult) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("userId", userId);
+        data.put("requestIds", new JSONArray(requestIds));
+        data.put("accept", accept);
 
-            socket.emit("send_message", new JSONObject(data));
+        emitWithResult("respond_friend_requests", new JSONObject(data), onResult);
+    }
+
+    /**
+     * A page of a conversation's history, newest first: the latest messages when
+     * beforeId is 0, otherwise the ones older than that message. onResult gets
+     * {success, messages: [message], hasMore}, messages in new_message form.
+     */
+    public void loadHistory(int userId, int conversationId, int beforeId, Consumer<JSONObject> onResult) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("userId", userId);
+        data.put("conversationId", conversationId);
+        if (beforeId != 0) {
+            data.put("beforeId", beforeId);
+        }
+
+        emitWithResult("load_history", new JSONObject(data), onResult);
+    }
+
+    private void emitWithResult(String event, JSONObject data, Consumer<JSONObject> onResult) {
+        if (socket == null || !socket.connected()) {
+            onResult.accept(failure("Not connected to the server"));
+            return;
         }
+        // Answered exactly once, so a caller waiting on the result (e.g. paging) can't get stuck
+        socket.emit(event, new Object[]{data}, new AckWithTimeout(SEND_TIMEOUT_MS) {
+            @Override
+            public void onSuccess(Object... args) {
+                onResult.accept(args.length > 0 ? (JSONObject) args[0] : failure("No answer from the server"));
+            }
+
+            @Override
+            public void onTimeout() {
+                onResult.accept(failure("No answer from the server"));
+            }
+        });
     }
 
-    public void sendMoney(int senderId, int receiverId, double amount, int conversationId) {
+    public void notifyConversationChanged(int conversationId) {
         if (socket != null && socket.connected()) {
             Map<String, Object> data = new HashMap<>();
-            data.put("senderId", senderId);
-            data.put("receiverId", receiverId);
-            data.put("amount", amount);
             data.put("conversationId", conversationId);
 
-            socket.emit("send_money", new JSONObject(data));
+            socket.emit("conversation_changed", new JSONObject(data));
         }
     }
 
-    public void sendFriendRequest(int senderId, String receiverUsername) {
+    public void markRead(int conversationId, int userId) {
         if (socket != null && socket.connected()) {
             Map<String, Object> data = new HashMap<>();
-            data.put("senderId", senderId);
-            data.put("receiverUsername", receiverUsername);
+            data.put("conversationId", conversationId);
+            data.put("userId", userId);
 
-            socket.emit("send_friend_request", new JSONObject(data));
+            socket.emit("mark_read", new JSONObject(data));
         }
     }
 
-    public void respondToFriendRequest(int requestId, boolean accept) {
+    public void notifyProfileChanged(int userId) {
         if (socket != null && socket.connected()) {
             Map<String, Object> data = new HashMap<>();
-            data.put("requestId", requestId);
-            data.put("accept", accept);
+            data.put("userId", userId);
 
-            socket.emit("respond_friend_request", new JSONObject(data));
+            socket.emit("profile_changed", new JSONObject(data));
         }
     }
 
@@ -157,6 +380,10 @@ public class SocketClient {
         this.messagesController = controller;
     }
 
+    public boolean isUserOnline(int userId) {
+        return onlineUsers.contains(userId);
+    }
+
     public boolean isConnected() {
         return socket != null && socket.connected();
     }
@@ -0,0 +1,78 @@
+-- The schema as it was before migrations; IF NOT EXISTS keeps existing databases as they are
+
+CREATE TABLE IF NOT EXISTS users (
+    id                SERIAL PRIMARY KEY,
+    first_name        VARCHAR(50)  NOT NULL,
+    last_name         VARCHAR(50)  NOT NULL,
+    email             VARCHAR(100) NOT NULL UNIQUE,
+    username          VARCHAR(50)  NOT NULL UNIQUE,
+    password_hash     VARCHAR(255) NOT NULL,
+    security_question VARCHAR(255),
+    security_answer   VARCHAR(255),
+    profile_picture   TEXT,
+    balance           DECIMAL(15, 2) NOT NULL DEFAULT 0,
+    is_online         BOOLEAN   NOT NULL DEFAULT false,
+    last_seen         TIMESTAMP,
+    created_at        TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS conversations (
+    id         SERIAL PRIMARY KEY,
+    name       VARCHAR(100),
+    is_group   BOOLEAN   NOT NULL DEFAULT false,
+    created_by INT REFERENCES users (id) ON DELETE SET NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS conversation_members (
+    conversation_id INT NOT NULL REFERENCES conversations (id) ON DELETE CASCADE,
+    user_id         INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    joined_at       TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (conversation_id, user_id)
+);
+
+CREATE TABLE IF NOT EXISTS messages (
+    id              SERIAL PRIMARY KEY,
+    conversation_id INT  NOT NULL REFERENCES conversations (id) ON DELETE CASCADE,
+    sender_id       INT  NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    content         TEXT NOT NULL,
+    message_type    VARCHAR(20) NOT NULL DEFAULT 'text',
+    is_read         BOOLEAN     NOT NULL DEFAULT false,
+    timestamp       TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS friendships (
+    user_id    INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    friend_id  INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    PRIMARY KEY (user_id, friend_id)
+);
+
+CREATE TABLE IF NOT EXISTS friend_requests (
+    id          SERIAL PRIMARY KEY,
+    sender_id   INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    receiver_id INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    status      VARCHAR(20) NOT NULL DEFAULT 'pending',
+    created_at  TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS transactions (
+    id              SERIAL PRIMARY KEY,
+    sender_id       INT NOT NULL REFERENCES users (id),
+    receiver_id     INT NOT NULL REFERENCES users (id),
+    amount          DECIMAL(15, 2) NOT NULL,
+    conversation_id INT REFERENCES conversations (id) ON DELETE SET NULL,
+    status          VARCHAR(20) NOT NULL DEFAULT 'completed',
+    timestamp       TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE IF NOT EXISTS bank_accounts (
+    id             SERIAL PRIMARY KEY,
+    user_id        INT NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+    account_number VARCHAR(30)  NOT NULL,
+    account_type   VARCHAR(30)  NOT NULL,
+    bank_name      VARCHAR(100) NOT NULL,
+    balance        DECIMAL(15, 2) NOT NULL DEFAULT 0,
+    status         VARCHAR(20) NOT NULL DEFAULT 'active',
+    linked_date    TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
@@ -0,0 +1,9 @@
+-- Idempotent transfers (send_money retries) and the in-memory ledger's checkpoint
+
+ALTER TABLE transactions ADD COLUMN IF NOT EXISTS transfer_key UUID;
+CREATE UNIQUE INDEX IF NOT EXISTS transactions_transfer_key_idx ON transactions (transfer_key);
+
+CREATE TABLE IF NOT EXISTS ledger_checkpoint (
+    name TEXT PRIMARY KEY,
+    seq  BIGINT NOT NULL
+);
@@ -0,0 +1,45 @@
+-- Unread state lives on the member row: a counter bumped by a statement trigger on
+-- every insert into messages (whoever inserts) and a last-read pointer set on read
+
+-- Holds off inserts between the backfill and the trigger
+LOCK TABLE messages IN SHARE MODE;
+
+DO $$
+BEGIN
+    IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+                   WHERE table_name = 'conversation_members' AND column_name = 'unread_count') THEN
+        ALTER TABLE conversation_members
+            ADD COLUMN unread_count INT NOT NULL DEFAULT 0,
+            ADD COLUMN last_read_message_id INT NOT NULL DEFAULT 0;
+
+        -- From the per-message is_read flags they replace
+        UPDATE conversation_members cm SET unread_count = s.unread, last_read_message_id = s.last_read
+        FROM (SELECT cm2.conversation_id, cm2.user_id,
+                     COUNT(*) FILTER (WHERE m.sender_id <> cm2.user_id AND NOT m.is_read) AS unread,
+                     COALESCE(MAX(m.id) FILTER (WHERE m.is_read OR m.sender_id = cm2.user_id), 0) AS last_read
+              FROM conversation_members cm2 JOIN messages m ON m.conversation_id = cm2.conversation_id
+              GROUP BY cm2.conversation_id, cm2.user_id) s
+        WHERE cm.conversation_id = s.conversation_id AND cm.user_id = s.user_id;
+    END IF;
+END $$;
+
+-- Member rows are locked in key order first, so concurrent batches can't deadlock
+CREATE OR REPLACE FUNCTION count_unread_messages() RETURNS trigger LANGUAGE plpgsql AS $$
+BEGIN
+    PERFORM 1 FROM conversation_members cm
+    WHERE cm.conversation_id IN (SELECT conversation_id FROM new_messages)
+    ORDER BY cm.conversation_id, cm.user_id FOR UPDATE;
+
+    UPDATE conversation_members cm SET unread_count = cm.unread_count + n.added
+    FROM (SELECT cm2.conversation_id, cm2.user_id, COUNT(*) AS added
+          FROM new_messages i
+          JOIN conversation_members cm2 ON cm2.conversation_id = i.conversation_id AND cm2.user_id <> i.sender_id
+          GROUP BY cm2.conversation_id, cm2.user_id) n
+    WHERE cm.conversation_id = n.conversation_id AND cm.user_id = n.user_id;
+    RETURN NULL;
+END $$;
+
+DROP TRIGGER IF EXISTS messages_count_unread ON messages;
+CREATE TRIGGER messages_count_unread AFTER INSERT ON messages
+    REFERENCING NEW TABLE AS new_messages
+    FOR EACH STATEMENT EXECUTE FUNCTION count_unread_messages();
@@ -0,0 +1,41 @@
+-- The chat list's read model: each conversation's latest message, replaced by a
+-- statement trigger on every insert into messages
+
+LOCK TABLE messages IN SHARE MODE;
+
+CREATE TABLE IF NOT EXISTS conversation_summaries (
+    conversation_id   INT PRIMARY KEY REFERENCES conversations (id) ON DELETE CASCADE,
+    last_message_id   INT          NOT NULL,
+    last_sender_id    INT          NOT NULL,
+    last_message_type VARCHAR(20)  NOT NULL,
+    last_preview      VARCHAR(100) NOT NULL,
+    last_message_at   TIMESTAMP    NOT NULL
+);
+
+INSERT INTO conversation_summaries
+SELECT DISTINCT ON (conversation_id) conversation_id, id, sender_id, message_type, left(content, 100), timestamp
+FROM messages
+ORDER BY conversation_id, timestamp DESC, id DESC
+ON CONFLICT (conversation_id) DO NOTHING;
+
+CREATE OR REPLACE FUNCTION summarize_conversations() RETURNS trigger LANGUAGE plpgsql AS $$
+BEGIN
+    INSERT INTO conversation_summaries
+    SELECT DISTINCT ON (conversation_id) conversation_id, id, sender_id, message_type, left(content, 100), timestamp
+    FROM new_messages
+    ORDER BY conversation_id, timestamp DESC, id DESC
+    ON CONFLICT (conversation_id) DO UPDATE SET
+        last_message_id = EXCLUDED.last_message_id,
+        last_sender_id = EXCLUDED.last_sender_id,
+        last_message_type = EXCLUDED.last_message_type,
+        last_preview = EXCLUDED.last_preview,
+        last_message_at = EXCLUDED.last_message_at
+    WHERE (EXCLUDED.last_message_at, EXCLUDED.last_message_id)
+        > (conversation_summaries.last_message_at, conversation_summaries.last_message_id);
+    RETURN NULL;
+END $$;
+
+DROP TRIGGER IF EXISTS messages_summarize ON messages;
+CREATE TRIGGER messages_summarize AFTER INSERT ON messages
+    REFERENCING NEW TABLE AS new_messages
+    FOR EACH STATEMENT EXECUTE FUNCTION summarize_conversations();
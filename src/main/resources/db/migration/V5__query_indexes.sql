@@ -0,0 +1,21 @@
+-- One index per access path the application's queries take (ExplainAudit checks them).
+-- Some of these were created at startup before migrations existed; IF NOT EXISTS skips them.
+
+-- History pages and "latest message" lookups, newest first
+CREATE INDEX IF NOT EXISTS messages_conversation_history_idx ON messages (conversation_id, timestamp, id);
+
+-- The chat list and the dashboard badge start from a user's member rows
+CREATE INDEX IF NOT EXISTS conversation_members_user_idx ON conversation_members (user_id, conversation_id);
+
+-- Transaction history is "sent OR received", newest first: one index per side
+CREATE INDEX IF NOT EXISTS transactions_sender_idx ON transactions (sender_id, timestamp);
+CREATE INDEX IF NOT EXISTS transactions_receiver_idx ON transactions (receiver_id, timestamp);
+
+-- Pending requests for a user, and the duplicate check when sending one
+CREATE INDEX IF NOT EXISTS friend_requests_receiver_idx ON friend_requests (receiver_id, status);
+CREATE INDEX IF NOT EXISTS friend_requests_sender_idx ON friend_requests (sender_id, receiver_id, status);
+
+CREATE INDEX IF NOT EXISTS bank_accounts_user_idx ON bank_accounts (user_id, linked_date);
+
+-- Resetting presence at startup touches only the users still marked online
+CREATE INDEX IF NOT EXISTS users_online_idx ON users (id) WHERE is_online;
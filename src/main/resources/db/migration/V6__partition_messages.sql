@@ -0,0 +1,78 @@
+-- messages becomes a table partitioned by month on timestamp, one partition per
+-- month that has messages plus the current one. MessagePartitions creates the
+-- months ahead and archives old ones a month at a time. messages_default catches
+-- rows no partition covers, so inserts never fail.
+--
+-- Limitation: the existing rows are copied into their monthly partitions and the
+-- history index is rebuilt inside this migration, with messages locked against
+-- reads and writes throughout. On a large table that takes about as long as a
+-- full copy of it; schedule the upgrade for a maintenance window.
+
+LOCK TABLE messages IN ACCESS EXCLUSIVE MODE;
+
+DO $$
+DECLARE
+    oldest      TIMESTAMP;
+    month_start TIMESTAMP;
+BEGIN
+    IF (SELECT relkind FROM pg_class WHERE oid = 'messages'::regclass) = 'p' THEN
+        RETURN;
+    END IF;
+
+    -- Triggers with transition tables can't be on a partition; they move to the parent
+    DROP TRIGGER IF EXISTS messages_count_unread ON messages;
+    DROP TRIGGER IF EXISTS messages_summarize ON messages;
+    ALTER TABLE messages RENAME TO messages_legacy;
+
+    -- The key has to include the partition column; lookups by id still use it
+    CREATE TABLE messages (
+        id              INT  NOT NULL DEFAULT nextval('messages_id_seq'),
+        conversation_id INT  NOT NULL REFERENCES conversations (id) ON DELETE CASCADE,
+        sender_id       INT  NOT NULL REFERENCES users (id) ON DELETE CASCADE,
+        content         TEXT NOT NULL,
+        message_type    VARCHAR(20) NOT NULL DEFAULT 'text',
+        is_read         BOOLEAN     NOT NULL DEFAULT false,
+        timestamp       TIMESTAMP   NOT NULL DEFAULT CURRENT_TIMESTAMP,
+        PRIMARY KEY (id, timestamp)
+    ) PARTITION BY RANGE (timestamp);
+    ALTER SEQUENCE messages_id_seq OWNED BY messages.id;
+    CREATE TABLE messages_default PARTITION OF messages DEFAULT;
+
+    -- Schemas created before the baseline may allow NULLs; those rows go with the oldest month
+    SELECT COALESCE(MIN(timestamp), CURRENT_TIMESTAMP) INTO oldest FROM messages_legacy;
+    FOR month_start IN
+        SELECT date_trunc('month', COALESCE(timestamp, oldest)) FROM messages_legacy
+        UNION
+        SELECT date_trunc('month', CURRENT_TIMESTAMP)
+        ORDER BY 1
+    LOOP
+        EXECUTE format('CREATE TABLE %I PARTITION OF messages FOR VALUES FROM (%L) TO (%L)',
+                       'messages_p' || to_char(month_start, 'YYYY_MM'), month_start, month_start + INTERVAL '1 month');
+    END LOOP;
+
+    INSERT INTO messages (id, conversation_id, sender_id, content, message_type, is_read, timestamp)
+    SELECT id, conversation_id, sender_id, content, COALESCE(message_type, 'text'), COALESCE(is_read, false),
+           COALESCE(timestamp, oldest)
+    FROM messages_legacy;
+    DROP TABLE messages_legacy;
+
+    CREATE INDEX messages_conversation_history_idx ON messages (conversation_id, timestamp, id);
+
+    CREATE TRIGGER messages_count_unread AFTER INSERT ON messages
+        REFERENCING NEW TABLE AS new_messages
+        FOR EACH STATEMENT EXECUTE FUNCTION count_unread_messages();
+    CREATE TRIGGER messages_summarize AFTER INSERT ON messages
+        REFERENCING NEW TABLE AS new_messages
+        FOR EACH STATEMENT EXECUTE FUNCTION summarize_conversations();
+END $$;
+
+ANALYZE messages;
+
+-- Partitions that were detached and written to files (see MessageArchive)
+CREATE TABLE IF NOT EXISTS message_archives (
+    partition_name TEXT PRIMARY KEY,
+    range_to       TIMESTAMP NOT NULL,
+    file           TEXT      NOT NULL,
+    row_count      BIGINT    NOT NULL,
+    archived_at    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
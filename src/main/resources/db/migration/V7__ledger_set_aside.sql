@@ -0,0 +1,14 @@
+-- Ledger entries the tables refused (see LedgerProjector). No foreign keys, so
+-- recording one can't fail the way the entry did.
+
+CREATE TABLE IF NOT EXISTS ledger_set_aside (
+    seq             BIGINT PRIMARY KEY,
+    sender_id       INT       NOT NULL,
+    receiver_id     INT       NOT NULL,
+    amount_cents    BIGINT    NOT NULL,
+    conversation_id INT       NOT NULL,
+    transfer_key    UUID,
+    logged_at       TIMESTAMP NOT NULL,
+    error           TEXT,
+    set_aside_at    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
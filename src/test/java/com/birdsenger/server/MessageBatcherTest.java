@@ -0,0 +1,85 @@
+package com.birdsenger.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MessageBatcherTest {
+
+    // Refuses any statement that contains the poisoned content, like a NOT NULL or FK violation would
+    private static final class PoisonedRepository extends ChatRepository {
+        final List<Integer> statementSizes = new ArrayList<>();
+        int nextId = 1;
+
+        PoisonedRepository() {
+            super(null);
+        }
+
+        @Override
+        public synchronized StoredMessage[] insertTextMessages(int[] convIds, int[] senderIds, String[] contents)
+                throws SQLException {
+            statementSizes.add(contents.length);
+            for (String content : contents) {
+                if ("poison".equals(content)) {
+                    throw new SQLException("insert or update on table \"messages\" violates foreign key constraint", "23503");
+                }
+            }
+            StoredMessage[] stored = new StoredMessage[contents.length];
+            for (int i = 0; i < contents.length; i++) {
+                stored[i] = new StoredMessage(nextId++, new Timestamp(System.currentTimeMillis()));
+            }
+            return stored;
+        }
+    }
+
+    @Test
+    void poisonedRowFailsAlone() throws Exception {
+        PoisonedRepository repository = new PoisonedRepository();
+        // A long window so all three land in one batch
+        MessageBatcher batcher = new MessageBatcher(repository, new Metrics("test_"), 200, 256);
+        try {
+            CompletableFuture<ChatRepository.StoredMessage> before = batcher.submit(1, 10, "hello");
+            CompletableFuture<ChatRepository.StoredMessage> poisoned = batcher.submit(2, 11, "poison");
+            CompletableFuture<ChatRepository.StoredMessage> after = batcher.submit(3, 12, "world");
+
+            before.get(5, TimeUnit.SECONDS);
+            after.get(5, TimeUnit.SECONDS);
+            ExecutionException error = assertThrows(ExecutionException.class, () -> poisoned.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(SQLException.class, error.getCause());
+            // The batch once, then each row on its own
+            assertEquals(List.of(3, 1, 1, 1), repository.statementSizes);
+        } finally {
+            batcher.shutdown();
+        }
+    }
+
+    @Test
+    void otherFailuresFailTheBatch() throws Exception {
+        ChatRepository down = new ChatRepository(null) {
+            @Override
+            public StoredMessage[] insertTextMessages(int[] convIds, int[] senderIds, String[] contents)
+                    throws SQLException {
+                throw new SQLException("connection refused", "08001");
+            }
+        };
+        MessageBatcher batcher = new MessageBatcher(down, new Metrics("test_"), 200, 256);
+        try {
+            CompletableFuture<ChatRepository.StoredMessage> first = batcher.submit(1, 10, "hello");
+            CompletableFuture<ChatRepository.StoredMessage> second = batcher.submit(1, 11, "world");
+            assertThrows(ExecutionException.class, () -> first.get(5, TimeUnit.SECONDS));
+            assertThrows(ExecutionException.class, () -> second.get(5, TimeUnit.SECONDS));
+        } finally {
+            batcher.shutdown();
+        }
+    }
+}